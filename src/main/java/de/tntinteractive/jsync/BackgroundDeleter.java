@@ -0,0 +1,153 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Löscht überflüssige Einträge im Ziel in einem eigenen Thread, damit das Löschen großer Verzeichnisbäume den
+ * Abgleich (und damit die ganze Übertragung) nicht aufhält. Optional wird der Eintrag vorher im aufrufenden Thread
+ * in einen Papierkorb-Namen umbenannt, dann ist er sofort aus dem Ziel verschwunden und wird erst danach
+ * nach und nach gelöscht. Ein nach einem Abbruch übrig gebliebener Papierkorb-Eintrag wird beim nächsten Sync
+ * wie jeder andere überflüssige Eintrag gelöscht.
+ */
+final class BackgroundDeleter {
+
+    private static final String TRASH_SUFFIX = ".jstrash";
+
+    private final boolean useTrash;
+    private final AtomicInteger deletedFiles = new AtomicInteger();
+    private final AtomicInteger deletedDirectories = new AtomicInteger();
+    private ExecutorService worker;
+    private volatile IOException failure;
+
+    public BackgroundDeleter(boolean useTrash) {
+        this.useTrash = useTrash;
+    }
+
+    public void start(final String name) {
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, name + "-delete");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Reiht den Eintrag (bei Verzeichnissen mit allem Inhalt) zum Löschen ein.
+     */
+    public void delete(FilePath entry) {
+        final FilePath toDelete = this.useTrash ? moveToTrash(entry) : entry;
+        this.worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                BackgroundDeleter.this.deleteAndCount(toDelete);
+            }
+        });
+    }
+
+    /**
+     * Löscht den Eintrag sofort im aufrufenden Thread, für Einträge, deren Name gleich wieder gebraucht werden kann.
+     */
+    public void deleteNow(FilePath entry) throws IOException {
+        this.deleteRecursive(entry);
+    }
+
+    private static FilePath moveToTrash(FilePath entry) {
+        final String trashName = entry.getName() + TRASH_SUFFIX;
+        try {
+            entry.renameTo(trashName);
+            return entry.getParent().getChild(trashName);
+        } catch (final IOException e) {
+            //z.B. weil es den Namen schon gibt => dann eben direkt löschen
+            Logger.LOGGER.log(Level.FINE, "could not move " + entry.getName() + " to trash", e);
+            return entry;
+        }
+    }
+
+    private void deleteAndCount(FilePath entry) {
+        try {
+            this.deleteRecursive(entry);
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.SEVERE, "could not delete " + entry.getName(), e);
+            this.failure = e;
+        }
+    }
+
+    private void deleteRecursive(FilePath entry) throws IOException {
+        try {
+            if (entry.isDirectory()) {
+                for (final FilePath child : entry.getChildrenSorted()) {
+                    this.deleteRecursive(child);
+                }
+                entry.delete();
+                this.deletedDirectories.incrementAndGet();
+            } else {
+                entry.delete();
+                this.deletedFiles.incrementAndGet();
+            }
+        } catch (final IOException e) {
+            //ein schon verschwundener Eintrag ist kein Fehler
+            if (entry.getParent().hasChild(entry.getName())) {
+                throw e;
+            }
+            Logger.LOGGER.log(Level.FINE, entry.getName() + " vanished before it could be deleted", e);
+        }
+    }
+
+    /**
+     * Wartet, bis alle eingereihten Einträge gelöscht sind.
+     * @throws IOException Wenn mindestens ein Eintrag nicht gelöscht werden konnte.
+     */
+    public void finish() throws IOException, InterruptedException {
+        this.worker.shutdown();
+        this.worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        final IOException e = this.failure;
+        if (e != null) {
+            throw new IOException("deleting extraneous entries failed", e);
+        }
+    }
+
+    /**
+     * Bricht das Löschen ab, falls es noch läuft.
+     */
+    public void close() {
+        if (this.worker != null) {
+            this.worker.shutdownNow();
+        }
+    }
+
+    public int getDeletedFiles() {
+        return this.deletedFiles.get();
+    }
+
+    public int getDeletedDirectories() {
+        return this.deletedDirectories.get();
+    }
+
+}
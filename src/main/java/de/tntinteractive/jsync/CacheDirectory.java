@@ -0,0 +1,108 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Legt Cache-Einträge zu Dateien in einem Verzeichnis ab. Jeder Eintrag liegt in einer eigenen Datei, deren Name
+ * aus dem Hash des Pfads gebildet wird, verteilt auf Unterverzeichnisse nach den ersten beiden Zeichen des Namens.
+ * Verschiedene Caches können sich ein Verzeichnis teilen, wenn sie unterschiedliche Endungen verwenden.
+ */
+final class CacheDirectory {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final FilePath directory;
+    private final String suffix;
+
+    public CacheDirectory(FilePath directory, String suffix) {
+        this.directory = directory;
+        this.suffix = suffix;
+    }
+
+    /**
+     * Liefert den vollständigen Pfad der Datei, unter dem ihr Eintrag abgelegt wird.
+     */
+    public static String pathOf(FilePath file) {
+        final StringBuilder ret = new StringBuilder(file.getName());
+        for (FilePath p = file.getParent(); p != null; p = p.getParent()) {
+            ret.insert(0, '/').insert(0, p.getName());
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Liefert die Datei mit dem Eintrag für den Pfad, oder null, wenn es keinen gibt.
+     */
+    public FilePath find(String path) throws IOException {
+        final String entryName = this.entryNameFor(path);
+        final FilePath subdir = this.subdirFor(entryName, false);
+        if (subdir == null || !subdir.hasChild(entryName)) {
+            return null;
+        }
+        return subdir.getChild(entryName);
+    }
+
+    /**
+     * Liefert eine temporäre Datei, in die der neue Eintrag geschrieben werden kann. Erst mit
+     * {@link #commit(FilePath, String)} wird er sichtbar, damit bei gleichzeitigem Lesen kein halber Eintrag
+     * gesehen wird.
+     */
+    public FilePath createTemp(String path) throws IOException {
+        final String entryName = this.entryNameFor(path);
+        final FilePath subdir = this.subdirFor(entryName, true);
+        return subdir.getChild(entryName + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+    public void commit(FilePath tmp, String path) throws IOException {
+        tmp.renameTo(this.entryNameFor(path));
+    }
+
+    /**
+     * Entfernt den Eintrag für den Pfad, falls es einen gibt.
+     */
+    public void remove(String path) throws IOException {
+        final FilePath entry = this.find(path);
+        if (entry != null) {
+            entry.delete();
+        }
+    }
+
+    private FilePath subdirFor(String entryName, boolean create) throws IOException {
+        final String name = entryName.substring(0, 2);
+        if (this.directory.hasChild(name)) {
+            return this.directory.getChild(name);
+        }
+        return create ? this.directory.createSubdirectory(name) : null;
+    }
+
+    private String entryNameFor(String path) {
+        final byte[] hash = MD4.determineFor(path.getBytes(UTF8), MD4.DIGEST_LENGTH);
+        final StringBuilder ret = new StringBuilder();
+        for (final byte b : hash) {
+            ret.append(Character.forDigit((b >> 4) & 0xF, 16));
+            ret.append(Character.forDigit(b & 0xF, 16));
+        }
+        ret.append(this.suffix);
+        return ret.toString();
+    }
+
+}
@@ -22,6 +22,8 @@
 
 package de.tntinteractive.jsync;
 
+import java.nio.ByteBuffer;
+
 /**
  * A simple 32-bit "rolling" checksum. This checksum algorithm is based upon the
  * algorithm outlined in the paper "The rsync algorithm" by Andrew Tridgell and
@@ -52,9 +54,15 @@ public class Checksum32 {
     private int l;
 
     /**
-     * The block from which the checksum is computed.
+     * The ring buffer holding the current block for {@link #roll(byte)}. It
+     * is reused for following blocks as long as it is large enough.
+     */
+    private byte[] block = new byte[0];
+
+    /**
+     * The length of the block in the ring buffer when it was filled.
      */
-    private byte[] block;
+    private int ringSize;
 
     public Checksum32() {
         this.a = 0;
@@ -84,8 +92,8 @@ public class Checksum32 {
     /**
      * "Roll" the checksum. This method takes a single byte as byte
      * <em>X<sub>l+1</sub></em>, and recomputes the checksum for
-     * <em>X<sub>k+1</sub>...X<sub>l+1</sub></em>. This is the preferred method
-     * for updating the checksum.
+     * <em>X<sub>k+1</sub>...X<sub>l+1</sub></em>. The block has to be set
+     * with {@link #check(byte[], int, int)} before.
      *
      * @param bt
      *            The next byte.
@@ -93,10 +101,8 @@ public class Checksum32 {
      */
     public byte roll(byte bt) {
         final byte rollingOut = this.block[this.k];
-        this.a -= rollingOut;
-        this.b -= this.l * rollingOut;
-        this.a += bt;
-        this.b += this.a;
+        this.a += bt - rollingOut;
+        this.b += this.a - this.l * rollingOut;
         this.block[this.k] = bt;
         this.k++;
         if (this.k == this.l) {
@@ -105,25 +111,106 @@ public class Checksum32 {
         return rollingOut;
     }
 
+    /**
+     * "Roll" the checksum without using the internal copy of the block. This
+     * is used together with {@link #checkInPlace(byte[], int, int)}, when the
+     * caller still has the whole window in its own buffer and can supply the
+     * byte that is rolled out.
+     *
+     * @param rollingOut
+     *            The byte <em>X<sub>k</sub></em>.
+     * @param rollingIn
+     *            The byte <em>X<sub>l+1</sub></em>.
+     */
+    public void roll(byte rollingOut, byte rollingIn) {
+        this.a += rollingIn - rollingOut;
+        this.b += this.a - this.l * rollingOut;
+    }
+
     /**
      * Update the checksum by trimming off a byte only, not adding anything.
      */
     public void trim() {
-        this.a -= this.block[this.k % this.block.length];
-        this.b -= this.l * (this.block[this.k % this.block.length]);
+        final byte rollingOut = this.block[this.k % this.ringSize];
+        this.a -= rollingOut;
+        this.b -= this.l * rollingOut;
         this.k++;
         this.l--;
     }
 
     public static int determineFor(byte[] block) {
-        final Checksum32 c = new Checksum32();
-        c.check(block, 0, block.length);
-        return c.getValue();
+        return checkRange(block, 0, block.length);
+    }
+
+    /**
+     * Compute the checksum of a block without keeping any state. Only the
+     * lower 16 bits of both halves go into the value, and the arithmetic
+     * of the checksum only depends on these bits, so the value is all that
+     * is needed to continue rolling.
+     *
+     * @param buf
+     *            The byte array that holds the block.
+     * @param off
+     *            From whence to begin reading.
+     * @param len
+     *            The length of the block to read.
+     * @return The checksum of the block.
+     */
+    public static int checkRange(byte[] buf, int off, int len) {
+        int sumA = 0;
+        int sumB = 0;
+        final int end = off + len;
+        int i = off;
+        for (; i <= end - 8; i += 8) {
+            final int x0 = buf[i];
+            final int x1 = buf[i + 1];
+            final int x2 = buf[i + 2];
+            final int x3 = buf[i + 3];
+            final int x4 = buf[i + 4];
+            final int x5 = buf[i + 5];
+            final int x6 = buf[i + 6];
+            final int x7 = buf[i + 7];
+            sumB += 8 * (sumA + x0) + 7 * x1 + 6 * x2 + 5 * x3 + 4 * x4 + 3 * x5 + 2 * x6 + x7;
+            sumA += x0 + x1 + x2 + x3 + x4 + x5 + x6 + x7;
+        }
+        for (; i < end; i++) {
+            sumA += buf[i];
+            sumB += sumA;
+        }
+        return (sumA & 0xffff) | (sumB << 16);
+    }
+
+    /**
+     * Like {@link #checkRange(byte[], int, int)}, but for a part of a
+     * (possibly memory mapped) buffer.
+     */
+    public static int checkRange(ByteBuffer buf, int off, int len) {
+        if (buf.hasArray()) {
+            return checkRange(buf.array(), buf.arrayOffset() + off, len);
+        }
+        int sumA = 0;
+        int sumB = 0;
+        final int end = off + len;
+        int i = off;
+        for (; i <= end - 4; i += 4) {
+            final int x0 = buf.get(i);
+            final int x1 = buf.get(i + 1);
+            final int x2 = buf.get(i + 2);
+            final int x3 = buf.get(i + 3);
+            sumB += 4 * (sumA + x0) + 3 * x1 + 2 * x2 + x3;
+            sumA += x0 + x1 + x2 + x3;
+        }
+        for (; i < end; i++) {
+            sumA += buf.get(i);
+            sumB += sumA;
+        }
+        return (sumA & 0xffff) | (sumB << 16);
     }
 
     /**
      * Update the checksum with an entirely different block, and potentially a
-     * different block length.
+     * different block length. The block is copied into the ring buffer for
+     * {@link #roll(byte)}.
      *
      * @param buf
      *            The byte array that holds the new block.
@@ -133,23 +220,43 @@ public class Checksum32 {
      *            The length of the block to read.
      */
     public void check(byte[] buf, int off, int len) {
-        this.block = new byte[len];
+        if (this.block.length < len) {
+            this.block = new byte[len];
+        }
         System.arraycopy(buf, off, this.block, 0, len);
+        this.ringSize = len;
+        this.setValue(checkRange(this.block, 0, len), len);
+    }
+
+    /**
+     * Update the checksum with an entirely different block, without copying
+     * it. Afterwards, only {@link #roll(byte, byte)} may be used to roll the
+     * checksum.
+     *
+     * @param buf
+     *            The byte array that holds the new block.
+     * @param off
+     *            From whence to begin reading.
+     * @param len
+     *            The length of the block to read.
+     */
+    public void checkInPlace(byte[] buf, int off, int len) {
+        this.setValue(checkRange(buf, off, len), len);
+    }
+
+    /**
+     * Like {@link #checkInPlace(byte[], int, int)}, but for a part of a
+     * (possibly memory mapped) buffer.
+     */
+    public void checkInPlace(ByteBuffer buf, int off, int len) {
+        this.setValue(checkRange(buf, off, len), len);
+    }
+
+    private void setValue(int value, int len) {
         this.reset();
-        this.l = this.block.length;
-        int i;
-
-        for (i = 0; i < this.block.length - 4; i += 4) {
-            this.b += 4 * (this.a + this.block[i])
-                    + 3 * this.block[i + 1]
-                    + 2 * this.block[i + 2]
-                    + this.block[i + 3];
-            this.a += this.block[i] + this.block[i + 1] + this.block[i + 2] + this.block[i + 3];
-        }
-        for (; i < this.block.length; i++) {
-            this.a += this.block[i];
-            this.b += this.a;
-        }
+        this.l = len;
+        this.a = value & 0xffff;
+        this.b = value >>> 16;
     }
 
     public void copyBlock(byte[] buffer) {
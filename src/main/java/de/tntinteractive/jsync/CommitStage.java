@@ -0,0 +1,207 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Bringt fertig geschriebene und geprüfte Dateien an ihren Platz, je nach {@link FsyncPolicy} vorher mit fsync.
+ * Bei {@link FsyncPolicy#PER_BATCH} werden die Dateien gesammelt und in einem eigenen Thread erst alle
+ * synchronisiert und dann alle umbenannt, so dass der Empfang nicht auf die Platte warten muss. Ein Batch wird
+ * geschrieben, wenn er voll ist oder seine älteste Datei die maximale Wartezeit erreicht hat.
+ * <p>
+ * Garantiert ist nur, dass der Inhalt einer Tempdatei auf der Platte ist, bevor sie umbenannt wird. Die
+ * Verzeichnisse werden nach dem Umbenennen nicht synchronisiert, denn dafür gibt es in Java 6 keine API; nach
+ * einem Absturz kann ein Umbenennen also fehlen. Direkt geänderte Zieldateien (siehe {@link Features#IN_PLACE})
+ * werden nicht umbenannt und können nach einem Absturz halb geändert sein.
+ */
+final class CommitStage {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final int DEFAULT_MAX_LATENCY = 1000;
+
+    /**
+     * Eine fertige Datei, die noch an ihren Platz gebracht werden muss.
+     */
+    abstract static class PendingFile {
+        private final FilePath written;
+
+        /**
+         * @param written Die geschriebene Datei, also die Tempdatei bzw. bei direkter Änderung die Zieldatei.
+         */
+        PendingFile(FilePath written) {
+            this.written = written;
+        }
+
+        /**
+         * Bringt die Datei nach dem fsync an ihren Platz.
+         */
+        abstract void commit() throws IOException;
+    }
+
+    private final FsyncPolicy policy;
+    private final int batchSize;
+    private final int maxLatency;
+
+    private ScheduledThreadPoolExecutor worker;
+    private List<PendingFile> batch = new ArrayList<PendingFile>();
+    private volatile IOException failure;
+
+    /**
+     * @param batchSize Anzahl der Dateien, ab der ein Batch geschrieben wird.
+     * @param maxLatency Zeit in Millisekunden, die eine Datei höchstens auf ihren Batch wartet.
+     */
+    public CommitStage(FsyncPolicy policy, int batchSize, int maxLatency) {
+        this.policy = policy;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxLatency = maxLatency;
+    }
+
+    public void start(final String name) {
+        if (this.policy != FsyncPolicy.PER_BATCH) {
+            return;
+        }
+        this.worker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, name + "-commit");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        //beim Beenden wird der letzte Batch sowieso sofort geschrieben
+        this.worker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Übernimmt eine fertige Datei. Ohne Batches wird sie gleich im aufrufenden Thread an ihren Platz gebracht.
+     * @throws IOException Wenn das Schreiben dieser oder einer früheren Datei fehlgeschlagen ist.
+     */
+    public void add(PendingFile file) throws IOException {
+        switch (this.policy) {
+        case NONE:
+            file.commit();
+            break;
+        case PER_FILE:
+            file.written.sync();
+            file.commit();
+            break;
+        case PER_BATCH:
+            this.addToBatch(file);
+            break;
+        default:
+            throw new AssertionError("unknown policy " + this.policy);
+        }
+    }
+
+    private synchronized void addToBatch(PendingFile file) throws IOException {
+        this.checkFailure();
+        this.batch.add(file);
+        if (this.batch.size() >= this.batchSize) {
+            this.submitBatch();
+        } else if (this.batch.size() == 1) {
+            final List<PendingFile> current = this.batch;
+            this.worker.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    CommitStage.this.commitIfStillOpen(current);
+                }
+            }, this.maxLatency, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void submitBatch() {
+        if (this.batch.isEmpty()) {
+            return;
+        }
+        final List<PendingFile> full = this.batch;
+        this.batch = new ArrayList<PendingFile>();
+        this.worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                CommitStage.this.commitBatch(full);
+            }
+        });
+    }
+
+    private void commitIfStillOpen(List<PendingFile> scheduled) {
+        synchronized (this) {
+            if (scheduled != this.batch) {
+                //schon wegen Größe geschrieben
+                return;
+            }
+            this.batch = new ArrayList<PendingFile>();
+        }
+        this.commitBatch(scheduled);
+    }
+
+    private void commitBatch(List<PendingFile> files) {
+        if (this.failure != null) {
+            return;
+        }
+        try {
+            for (final PendingFile file : files) {
+                file.written.sync();
+            }
+            for (final PendingFile file : files) {
+                file.commit();
+            }
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.SEVERE, "could not commit received files", e);
+            this.failure = e;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException e = this.failure;
+        if (e != null) {
+            throw new IOException("committing received files failed", e);
+        }
+    }
+
+    /**
+     * Schreibt alle noch wartenden Dateien und wartet, bis sie an ihrem Platz sind.
+     * @throws IOException Wenn mindestens eine Datei nicht geschrieben werden konnte.
+     */
+    public void finish() throws IOException, InterruptedException {
+        if (this.worker == null) {
+            return;
+        }
+        this.submitBatch();
+        this.worker.shutdown();
+        this.worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        this.checkFailure();
+    }
+
+    /**
+     * Bricht das Schreiben ab, falls es noch läuft.
+     */
+    public void close() {
+        if (this.worker != null) {
+            this.worker.shutdownNow();
+        }
+    }
+
+}
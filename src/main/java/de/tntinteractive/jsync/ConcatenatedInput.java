@@ -0,0 +1,98 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Zwei Dateien, die wie eine hintereinander gelesen werden: die ersten Bytes kommen aus der ersten Datei, der Rest
+ * aus der zweiten. Dient als Vorlage, wenn eine abgebrochene Übertragung fortgesetzt wird und sowohl der schon
+ * übertragene Anfang als auch die bisherige Zieldatei genutzt werden sollen.
+ */
+final class ConcatenatedInput implements RandomAccessInput {
+
+    private final RandomAccessInput first;
+    private final long firstLength;
+    private final RandomAccessInput second;
+
+    /**
+     * @param first Die erste Datei, von der nur die ersten firstLength Bytes genutzt werden.
+     * @param second Die zweite Datei, oder null, wenn es nur die erste gibt.
+     */
+    public ConcatenatedInput(RandomAccessInput first, long firstLength, RandomAccessInput second) {
+        this.first = first;
+        this.firstLength = firstLength;
+        this.second = second;
+    }
+
+    @Override
+    public ByteBuffer map(long offset, int length) throws IOException {
+        if (offset + length <= this.firstLength) {
+            return this.first.map(offset, length);
+        }
+        if (offset >= this.firstLength && this.second != null) {
+            return this.second.map(offset - this.firstLength, length);
+        }
+        //über die Grenze hinweg => zusammenkopieren
+        final ByteBuffer ret = ByteBuffer.allocate(length);
+        while (ret.hasRemaining()) {
+            if (this.read(offset + ret.position(), ret) < 0) {
+                throw new IOException("range " + offset + " with length " + length + " is beyond end of file");
+            }
+        }
+        ret.flip();
+        return ret;
+    }
+
+    @Override
+    public int read(long offset, ByteBuffer target) throws IOException {
+        if (offset >= this.firstLength) {
+            return this.second == null ? -1 : this.second.read(offset - this.firstLength, target);
+        }
+        final int oldLimit = target.limit();
+        target.limit((int) Math.min(oldLimit, target.position() + this.firstLength - offset));
+        try {
+            return this.first.read(offset, target);
+        } finally {
+            target.limit(oldLimit);
+        }
+    }
+
+    @Override
+    public long transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+        if (offset >= this.firstLength) {
+            return this.second == null ? 0 : this.second.transferTo(offset - this.firstLength, length, target);
+        }
+        return this.first.transferTo(offset, Math.min(length, this.firstLength - offset), target);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.first.close();
+        } finally {
+            if (this.second != null) {
+                this.second.close();
+            }
+        }
+    }
+
+}
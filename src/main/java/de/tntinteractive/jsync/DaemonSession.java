@@ -40,6 +40,19 @@ public class DaemonSession {
     private InputStream ch2in;
     private OutputStream ch2out;
 
+    private int minBlockSize = Generator.DEFAULT_MIN_BLOCK_SIZE;
+    private int maxBlockSize = Generator.DEFAULT_MAX_BLOCK_SIZE;
+    private int hashThreads = Generator.DEFAULT_HASH_THREADS;
+    private SignatureCache signatureCache;
+    private DigestCache digestCache;
+    private boolean deleteViaTrash;
+    private int writerThreads;
+    private int writeMemory = Receiver.DEFAULT_MEMORY_BUDGET;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+    private int fsyncBatchSize = CommitStage.DEFAULT_BATCH_SIZE;
+    private int fsyncLatency = CommitStage.DEFAULT_MAX_LATENCY;
+    private int features;
+
 
     public DaemonSession(int sessionId, FilePath remoteParentDir) {
         this.sessionId = sessionId;
@@ -47,6 +60,56 @@ public class DaemonSession {
         this.remoteParentDir = remoteParentDir;
     }
 
+    /**
+     * Setzt die Grenzen für die Blockgröße, siehe {@link Generator#setBlockSizeLimits(int, int)}.
+     */
+    public void setBlockSizeLimits(int min, int max) {
+        this.minBlockSize = min;
+        this.maxBlockSize = max;
+    }
+
+    public void setHashThreads(int hashThreads) {
+        this.hashThreads = hashThreads;
+    }
+
+    void setSignatureCache(SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    public void setDeleteViaTrash(boolean deleteViaTrash) {
+        this.deleteViaTrash = deleteViaTrash;
+    }
+
+    /**
+     * Setzt die Anzahl der Threads, die empfangene Dateien schreiben, und den Speicher, den die auf sie
+     * wartenden Daten belegen dürfen, siehe {@link Receiver#setWriterThreads(int)}.
+     */
+    public void setWriterThreads(int writerThreads, int writeMemory) {
+        this.writerThreads = writerThreads;
+        this.writeMemory = writeMemory;
+    }
+
+    /**
+     * Setzt, wann empfangene Dateien auf die Platte geschrieben werden, siehe
+     * {@link Receiver#setFsyncPolicy(FsyncPolicy, int, int)}.
+     */
+    public void setFsyncPolicy(FsyncPolicy policy, int batchSize, int latency) {
+        this.fsyncPolicy = policy;
+        this.fsyncBatchSize = batchSize;
+        this.fsyncLatency = latency;
+    }
+
+    /**
+     * Setzt die mit dem Client ausgehandelten {@link Features}.
+     */
+    void setFeatures(int features) {
+        this.features = features;
+    }
+
     public void addFirstChannel(Socket bound, InputStream in, OutputStream out) {
         this.ch1in = in;
     }
@@ -59,10 +122,24 @@ public class DaemonSession {
         final FastConcurrentList<TargetFileInfo> filePaths = new FastConcurrentList<TargetFileInfo>();
 
         final Receiver receiver = new Receiver(this.ch2in, filePaths, toResend);
+        receiver.setSignatureCache(this.signatureCache);
+        receiver.setDigestCache(this.digestCache);
+        receiver.setRegionResend((this.features & Features.REGION_RESEND) != 0);
+        receiver.setInPlace((this.features & Features.IN_PLACE) != 0);
+        receiver.setSparse((this.features & Features.SPARSE) != 0);
+        receiver.setWriterThreads(this.writerThreads);
+        receiver.setMemoryBudget(this.writeMemory);
+        receiver.setFsyncPolicy(this.fsyncPolicy, this.fsyncBatchSize, this.fsyncLatency);
         final Thread rt = new Thread(receiver, "receiver" + this.sessionId);
         rt.start();
 
         final Generator generator = new Generator(this.ch1in, this.remoteParentDir, toResend, this.ch2out, filePaths);
+        generator.setBlockSizeLimits(this.minBlockSize, this.maxBlockSize);
+        generator.setHashThreads(this.hashThreads);
+        generator.setSignatureCache(this.signatureCache);
+        generator.setDigestCache(this.digestCache);
+        generator.setDeleteViaTrash(this.deleteViaTrash);
+        generator.setSuperBlockSignatures((this.features & Features.SUPER_BLOCK_SIGNATURES) != 0);
         final Thread gt = new Thread(generator, "generator" + this.sessionId);
         gt.start();
 
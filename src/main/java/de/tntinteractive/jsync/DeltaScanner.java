@@ -0,0 +1,546 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sucht in einer Quelldatei nach den Blöcken aus einem {@link SignatureIndex} und schreibt das Diff
+ * für den {@link Receiver}. Das Fenster wird über einen großen Puffer geschoben, der entweder
+ * wiederverwendet und aus einem Stream gefüllt wird oder ein memory-mapped Abschnitt der Datei ist.
+ * Prüfsummen und Hashes werden direkt im Puffer berechnet, pro Byte und pro
+ * Kandidat wird also weder kopiert noch allokiert.
+ */
+final class DeltaScanner {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAPPED_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Liefert die Daten der Quelldatei abschnittsweise.
+     */
+    private interface SourceWindow {
+
+        /**
+         * Verwirft die Daten vor keepFrom und lädt soviele Daten wie möglich nach. Die Daten ab keepFrom
+         * stehen danach am Anfang des gelieferten Puffers, dessen Limit die Menge der gültigen Daten angibt.
+         */
+        public abstract ByteBuffer advance(ByteBuffer current, int keepFrom) throws IOException;
+
+        public abstract boolean isExhausted();
+
+    }
+
+    /**
+     * Liest die Daten aus einem Stream in einen wiederverwendeten Puffer.
+     */
+    private static final class StreamWindow implements SourceWindow {
+
+        private final InputStream source;
+        private final MD4 fileDigest;
+        private final byte[] buffer;
+        private final ByteBuffer wrapped;
+        private boolean eof;
+
+        public StreamWindow(InputStream source, MD4 fileDigest, byte[] buffer) {
+            this.source = source;
+            this.fileDigest = fileDigest;
+            this.buffer = buffer;
+            this.wrapped = ByteBuffer.wrap(buffer);
+            this.wrapped.limit(0);
+        }
+
+        @Override
+        public ByteBuffer advance(ByteBuffer current, int keepFrom) throws IOException {
+            final int remaining = current.limit() - keepFrom;
+            System.arraycopy(this.buffer, keepFrom, this.buffer, 0, remaining);
+            int limit = remaining;
+            while (limit < this.buffer.length) {
+                final int read = this.source.read(this.buffer, limit, this.buffer.length - limit);
+                if (read < 0) {
+                    this.eof = true;
+                    break;
+                }
+                this.fileDigest.engineUpdate(this.buffer, limit, read);
+                limit += read;
+            }
+            this.wrapped.limit(limit);
+            return this.wrapped;
+        }
+
+        @Override
+        public boolean isExhausted() {
+            return this.eof;
+        }
+
+    }
+
+    /**
+     * Blendet die Datei (oder einen Ausschnitt davon) abschnittsweise per memory-mapping ein. Ein Abschnitt wird
+     * nicht mehr referenziert, sobald das Fenster über ihn hinweg ist, und kann dann vom System freigegeben werden.
+     * Ohne Hash (null) werden die Daten nur durchsucht, etwa wenn der Hash der Datei schon bekannt ist.
+     */
+    private static final class MappedWindow implements SourceWindow {
+
+        private final RandomAccessInput source;
+        private final long end;
+        private final int segmentSize;
+        private final MD4 fileDigest;
+        private long segmentStart;
+        private long digestedUpTo;
+        private long mappedUpTo = -1;
+
+        public MappedWindow(RandomAccessInput source, long size, int segmentSize, MD4 fileDigest) {
+            this(source, 0, size, segmentSize, fileDigest);
+        }
+
+        public MappedWindow(RandomAccessInput source, long start, long end, int segmentSize, MD4 fileDigest) {
+            this.source = source;
+            this.segmentStart = start;
+            this.digestedUpTo = start;
+            this.end = end;
+            this.segmentSize = segmentSize;
+            this.fileDigest = fileDigest;
+        }
+
+        @Override
+        public ByteBuffer advance(ByteBuffer current, int keepFrom) throws IOException {
+            this.segmentStart += keepFrom;
+            final int length = (int) Math.min(this.segmentSize, this.end - this.segmentStart);
+            final ByteBuffer segment = this.source.map(this.segmentStart, length);
+            final long segmentEnd = this.segmentStart + length;
+            this.mappedUpTo = segmentEnd;
+            if (this.fileDigest != null && segmentEnd > this.digestedUpTo) {
+                final int newDataStart = (int) (this.digestedUpTo - this.segmentStart);
+                this.fileDigest.engineUpdate(segment, newDataStart, length - newDataStart);
+                this.digestedUpTo = segmentEnd;
+            }
+            return segment;
+        }
+
+        @Override
+        public boolean isExhausted() {
+            return this.mappedUpTo >= this.end;
+        }
+
+    }
+
+    private final SignatureIndex hashes;
+    private final ReceiverCommandWriter writer;
+
+    private final Checksum32 rollingChecksum = new Checksum32();
+    private final MD4 blockDigest = new MD4();
+    private final MD4 fileDigest = new MD4();
+    private byte[] streamBuffer = new byte[BUFFER_SIZE];
+    private byte[] strongHash = new byte[0];
+    private int mappedSegmentSize = MAPPED_SEGMENT_SIZE;
+    private boolean targetUpdatedInPlace;
+    private boolean detectUnchanged;
+
+    private SourceWindow source;
+    private int blockSize;
+    private ByteBuffer window;
+    private long windowOffset;
+    private int pos;
+    private int literalStart;
+    private int lastMatchedBlock;
+    private long pendingCopyOffset;
+    private long pendingCopyLength;
+    private boolean commandsWritten;
+    private long unchangedLength;
+
+    public DeltaScanner(SignatureIndex hashes, ReceiverCommandWriter writer) {
+        this.hashes = hashes;
+        this.writer = writer;
+    }
+
+    /**
+     * Setzt die Größe der memory-mapped Abschnitte (nur für Testfälle sinnvoll).
+     */
+    void setMappedSegmentSize(int mappedSegmentSize) {
+        this.mappedSegmentSize = mappedSegmentSize;
+    }
+
+    /**
+     * Wenn gesetzt, ändert der {@link Receiver} die Zieldatei direkt (siehe {@link Features#IN_PLACE}). Dann
+     * werden nur Blöcke kopiert, die in der Zieldatei nicht vor der aktuellen Position der Quelldatei liegen,
+     * denn die davor sind beim Empfänger evtl. schon überschrieben.
+     */
+    public void setTargetUpdatedInPlace(boolean targetUpdatedInPlace) {
+        this.targetUpdatedInPlace = targetUpdatedInPlace;
+    }
+
+    /**
+     * Wenn gesetzt, wird erkannt, wenn die ganze Quelldatei der Reihe nach aus dem Anfang der Zieldatei kopiert
+     * werden kann. Der Kopierbefehl wird dann nicht geschrieben, siehe {@link #getUnchangedLength()}.
+     */
+    public void setDetectUnchanged(boolean detectUnchanged) {
+        this.detectUnchanged = detectUnchanged;
+    }
+
+    /**
+     * Liefert nach dem Abgleich einer Datei deren Länge, wenn sie unverändert am Anfang der Zieldatei steht und
+     * deshalb nichts für sie geschrieben wurde, sonst -1.
+     */
+    public long getUnchangedLength() {
+        return this.unchangedLength;
+    }
+
+    /**
+     * Liest die Quelldatei vollständig aus dem Stream und schreibt Rohdaten- und Kopierbefehle für sie.
+     * @return Der MD4-Hash der gesamten Quelldatei.
+     */
+    public byte[] scan(InputStream input, int blockSize, int strongHashSize) throws IOException {
+        this.begin(input, blockSize, strongHashSize);
+        return this.finish();
+    }
+
+    /**
+     * Wie {@link #scan(InputStream, int, int)}, aber die Datei wird abschnittsweise memory-mapped gelesen.
+     */
+    public byte[] scanMapped(RandomAccessInput input, long size, int blockSize, int strongHashSize)
+        throws IOException {
+        this.beginMapped(input, size, blockSize, strongHashSize);
+        return this.finish();
+    }
+
+    /**
+     * Wie {@link #scanMapped(RandomAccessInput, long, int, int)}, aber für einige Bereiche der Quelldatei ist schon
+     * bekannt, wo sie in der Zieldatei stehen (aus dem Abgleich der Superblöcke). Sie werden ohne Suche kopiert,
+     * mit den Signaturen aus dem Index wird nur in den Lücken dazwischen gesucht. Die bekannten Bereiche werden
+     * dabei nicht gelesen, deshalb muss der Hash der gesamten Quelldatei aus dem ersten Durchlauf übergeben
+     * werden.
+     * @param knownMatches Je drei Werte: Offset in der Quelldatei, Offset in der Zieldatei und Länge. Nach dem
+     *      Offset in der Quelldatei sortiert und ohne Überlappungen.
+     * @param fileDigest Der MD4-Hash der gesamten Quelldatei aus dem Abgleich der Superblöcke.
+     * @return Der übergebene Hash der gesamten Quelldatei.
+     */
+    public byte[] scanMappedWithKnownMatches(RandomAccessInput input, long size, int newBlockSize,
+            int strongHashSize, long[] knownMatches, byte[] fileDigest) throws IOException {
+        this.beginFile(newBlockSize, strongHashSize);
+        final int segmentSize = Math.max(this.mappedSegmentSize, 4 * newBlockSize);
+        long done = 0;
+        for (int i = 0; i < knownMatches.length; i += 3) {
+            final long sourceOffset = knownMatches[i];
+            final long length = knownMatches[i + 2];
+            if (sourceOffset > done) {
+                this.beginWindow(new MappedWindow(input, done, sourceOffset, segmentSize, null), done);
+                this.finishWindow(false);
+            }
+            this.addCopy(knownMatches[i + 1], length);
+            done = sourceOffset + length;
+        }
+        if (done < size) {
+            this.beginWindow(new MappedWindow(input, done, size, segmentSize, null), done);
+            this.finishWindow(true);
+        }
+        this.finishCopies();
+        return fileDigest;
+    }
+
+    /**
+     * Beginnt eine neue Datei und liest schon mal den Anfang der Quelldatei ein. Danach können mit
+     * {@link #matchNextBlockInPlace(int, int, byte[])} Blöcke geprüft werden, noch bevor alle Signaturen
+     * bekannt sind. Abgeschlossen wird die Datei mit {@link #finish()}.
+     */
+    public void begin(InputStream input, int newBlockSize, int strongHashSize) throws IOException {
+        if (this.streamBuffer.length < 4 * newBlockSize) {
+            this.streamBuffer = new byte[4 * newBlockSize];
+        }
+        this.begin(new StreamWindow(input, this.fileDigest, this.streamBuffer), newBlockSize, strongHashSize);
+    }
+
+    /**
+     * Wie {@link #begin(InputStream, int, int)}, aber die Datei wird abschnittsweise memory-mapped gelesen.
+     */
+    public void beginMapped(RandomAccessInput input, long size, int newBlockSize, int strongHashSize)
+        throws IOException {
+        final int segmentSize = Math.max(this.mappedSegmentSize, 4 * newBlockSize);
+        this.begin(new MappedWindow(input, size, segmentSize, this.fileDigest), newBlockSize, strongHashSize);
+    }
+
+    /**
+     * Schickt die Datei vollständig als Rohdaten, einen Befehl pro memory-mapped Abschnitt.
+     * @return Der MD4-Hash der gesamten Quelldatei.
+     */
+    public byte[] copyMapped(RandomAccessInput input, long size) throws IOException {
+        this.fileDigest.engineReset();
+        this.unchangedLength = -1;
+        final MappedWindow mapped = new MappedWindow(input, size, this.mappedSegmentSize, this.fileDigest);
+        ByteBuffer segment = ByteBuffer.allocate(0);
+        while (!mapped.isExhausted()) {
+            segment = mapped.advance(segment, segment.limit());
+            if (segment.limit() > 0) {
+                this.writer.writeRawData(segment, 0, segment.limit());
+            }
+        }
+        return this.fileDigest.engineDigest();
+    }
+
+    private void begin(SourceWindow input, int newBlockSize, int strongHashSize) throws IOException {
+        this.beginFile(newBlockSize, strongHashSize);
+        this.beginWindow(input, 0);
+    }
+
+    private void beginFile(int newBlockSize, int strongHashSize) {
+        if (this.strongHash.length != strongHashSize) {
+            this.strongHash = new byte[strongHashSize];
+        }
+        this.fileDigest.engineReset();
+        this.blockSize = newBlockSize;
+        this.lastMatchedBlock = -2;
+        this.pendingCopyLength = 0;
+        this.commandsWritten = false;
+        this.unchangedLength = -1;
+    }
+
+    /**
+     * @param startOffset Position des Fensteranfangs in der Quelldatei.
+     */
+    private void beginWindow(SourceWindow input, long startOffset) throws IOException {
+        this.source = input;
+        this.window = ByteBuffer.allocate(0);
+        this.windowOffset = startOffset;
+        this.pos = 0;
+        this.literalStart = 0;
+        this.refill();
+    }
+
+    /**
+     * Prüft, ob der nächste Block der Quelldatei (direkt an der aktuellen Position, ohne zu rollen) zur
+     * übergebenen Signatur passt. Wenn ja, wird er als Kopie vermerkt und die Position weitergeschoben.
+     * Das ist vor allem für Dateien gedacht, an die nur angehängt wurde: Dort passen die Blöcke am Anfang
+     * der Reihe nach und können schon verarbeitet werden, während die restlichen Signaturen noch unterwegs sind.
+     * @return false, wenn der Block nicht passt. Dann sollte bis zum Ende der Datei nur noch
+     *      {@link #finish()} verwendet werden.
+     */
+    public boolean matchNextBlockInPlace(int blockNumber, int rollingHash, byte[] expectedStrongHash)
+        throws IOException {
+        if (this.window.limit() - this.pos < this.blockSize) {
+            this.refill();
+            if (this.window.limit() - this.pos < this.blockSize) {
+                return false;
+            }
+        }
+        this.rollingChecksum.checkInPlace(this.window, this.pos, this.blockSize);
+        if (this.rollingChecksum.getValue() != rollingHash) {
+            return false;
+        }
+        this.blockDigest.determineInto(this.window, this.pos, this.blockSize, this.strongHash);
+        if (!Arrays.equals(this.strongHash, expectedStrongHash)) {
+            return false;
+        }
+        this.addCopy(blockNumber * ((long) this.blockSize), this.blockSize);
+        this.lastMatchedBlock = blockNumber;
+        this.pos += this.blockSize;
+        this.literalStart = this.pos;
+        return true;
+    }
+
+    /**
+     * Durchsucht den Rest der Quelldatei mit allen Signaturen aus dem Index und schließt die Datei ab.
+     * @return Der MD4-Hash der gesamten Quelldatei.
+     */
+    public byte[] finish() throws IOException {
+        this.finishWindow(true);
+        this.finishCopies();
+        return this.fileDigest.engineDigest();
+    }
+
+    /**
+     * Schreibt am Ende der Datei den letzten Kopierbefehl. Ist er der einzige Befehl und beginnt am Anfang der
+     * Zieldatei, ist die Datei dort unverändert, das wird dann nur vermerkt.
+     */
+    private void finishCopies() throws IOException {
+        if (this.detectUnchanged && !this.commandsWritten
+                && this.pendingCopyLength > 0 && this.pendingCopyOffset == 0) {
+            this.unchangedLength = this.pendingCopyLength;
+            this.pendingCopyLength = 0;
+            return;
+        }
+        this.flushPendingCopy();
+    }
+
+    /**
+     * Durchsucht den Rest des aktuellen Fensters und schreibt die Rohdaten raus. Der letzte Kopierbefehl bleibt
+     * offen, damit er evtl. noch mit dem nächsten zusammengefasst werden kann.
+     * @param atFileEnd true, wenn das Fenster bis zum Dateiende reicht, dann wird dort noch der unvollständige
+     *      letzte Block gesucht.
+     */
+    private void finishWindow(boolean atFileEnd) throws IOException {
+        if (this.hashes.isEmpty()) {
+            //ohne Signaturen gibt es nichts zu suchen, der Rest wird nur noch durchgereicht. Das Ende der Datei
+            //  bleibt aber im Fenster, weil es evtl. noch zum letzten Block passt
+            while (!this.source.isExhausted()) {
+                this.pos = Math.max(this.pos, this.window.limit() - this.blockSize);
+                this.refill();
+            }
+        } else {
+            this.searchRest();
+        }
+        if (atFileEnd) {
+            this.matchTail();
+        }
+
+        this.pos = this.window.limit();
+        this.flushLiteralData();
+        this.source = null;
+        this.window = null;
+    }
+
+    private void searchRest() throws IOException {
+        final int blockSize = this.blockSize;
+        boolean checksumValid = false;
+        while (true) {
+            if (this.window.limit() - this.pos < blockSize) {
+                this.refill();
+                if (this.window.limit() - this.pos < blockSize) {
+                    //EOF, der Rest ist kürzer als ein Block
+                    break;
+                }
+            }
+            if (!checksumValid) {
+                this.rollingChecksum.checkInPlace(this.window, this.pos, blockSize);
+                checksumValid = true;
+            }
+
+            final int currentChecksum = this.rollingChecksum.getValue();
+            if (this.hashes.containsRollingHash(currentChecksum)) {
+                this.blockDigest.determineInto(this.window, this.pos, blockSize, this.strongHash);
+                //bei mehreren passenden Blöcken wird der Nachfolger des letzten genommen, damit
+                //  möglichst lange zusammenhängende Bereiche entstehen
+                final int matchingBlock = this.findMatchingBlock(currentChecksum);
+                if (matchingBlock >= 0) {
+                    this.flushLiteralData();
+                    this.addCopy(matchingBlock * ((long) blockSize), blockSize);
+                    this.lastMatchedBlock = matchingBlock;
+                    this.pos += blockSize;
+                    this.literalStart = this.pos;
+                    checksumValid = false;
+                    continue;
+                }
+            }
+
+            //wenn er hier hinkommt, dann hat er kein Match gefunden => Fenster um ein Byte weiterschieben
+            if (this.pos + blockSize == this.window.limit()) {
+                this.refill();
+                if (this.pos + blockSize == this.window.limit()) {
+                    //EOF
+                    break;
+                }
+            }
+            this.rollingChecksum.roll(this.window.get(this.pos), this.window.get(this.pos + blockSize));
+            this.pos++;
+        }
+    }
+
+    private int findMatchingBlock(int currentChecksum) {
+        if (!this.targetUpdatedInPlace) {
+            return this.hashes.find(currentChecksum, this.strongHash, this.lastMatchedBlock + 1);
+        }
+        //am liebsten wird der Block genau an der aktuellen Position genommen, den muss der Empfänger dann gar
+        //  nicht schreiben
+        final long sourceOffset = this.windowOffset + this.pos;
+        final long minBlock = (sourceOffset + this.blockSize - 1) / this.blockSize;
+        if (minBlock > Integer.MAX_VALUE) {
+            return -1;
+        }
+        final int preferredBlock = sourceOffset % this.blockSize == 0 ? (int) minBlock : this.lastMatchedBlock + 1;
+        return this.hashes.find(currentChecksum, this.strongHash, preferredBlock, (int) minBlock);
+    }
+
+    /**
+     * Prüft, ob das Ende der Quelldatei zum unvollständigen letzten Block der Zieldatei passt. Die Suche lässt
+     * mindestens die letzten Bytes bis zur Blockgröße im Fenster, soweit sie noch nicht kopiert wurden.
+     */
+    private void matchTail() throws IOException {
+        final int tailLength = this.hashes.getTailLength();
+        final int tailStart = this.window.limit() - tailLength;
+        if (tailLength == 0 || tailStart < this.literalStart) {
+            return;
+        }
+        if (this.targetUpdatedInPlace
+                && this.hashes.getTailBlockNumber() * ((long) this.blockSize) < this.windowOffset + tailStart) {
+            return;
+        }
+        this.rollingChecksum.checkInPlace(this.window, tailStart, tailLength);
+        this.blockDigest.determineInto(this.window, tailStart, tailLength, this.strongHash);
+        if (!this.hashes.tailMatches(this.rollingChecksum.getValue(), this.strongHash)) {
+            return;
+        }
+        this.pos = tailStart;
+        this.flushLiteralData();
+        this.addCopy(this.hashes.getTailBlockNumber() * ((long) this.blockSize), tailLength);
+        this.pos = this.window.limit();
+        this.literalStart = this.pos;
+    }
+
+    /**
+     * Schreibt die noch nicht verschickten Daten vor dem Fenster raus und lässt die Quelle neue Daten nachladen.
+     */
+    private void refill() throws IOException {
+        if (this.source.isExhausted()) {
+            return;
+        }
+        this.flushLiteralData();
+        this.window = this.source.advance(this.window, this.pos);
+        this.windowOffset += this.pos;
+        this.pos = 0;
+        this.literalStart = 0;
+    }
+
+    /**
+     * Merkt sich den zu kopierenden Bereich. Schließt er direkt an den vorigen an, werden beide zusammengefasst.
+     */
+    private void addCopy(long offset, long length) throws IOException {
+        if (this.pendingCopyLength > 0 && this.pendingCopyOffset + this.pendingCopyLength == offset) {
+            this.pendingCopyLength += length;
+            return;
+        }
+        this.flushPendingCopy();
+        this.pendingCopyOffset = offset;
+        this.pendingCopyLength = length;
+    }
+
+    private void flushPendingCopy() throws IOException {
+        if (this.pendingCopyLength == 0) {
+            return;
+        }
+        this.commandsWritten = true;
+        if (this.pendingCopyLength <= Short.MAX_VALUE) {
+            this.writer.writeCopyBlock(this.pendingCopyOffset, (short) this.pendingCopyLength);
+        } else {
+            this.writer.writeCopyRange(this.pendingCopyOffset, this.pendingCopyLength);
+        }
+        this.pendingCopyLength = 0;
+    }
+
+    private void flushLiteralData() throws IOException {
+        if (this.pos > this.literalStart) {
+            this.flushPendingCopy();
+            this.commandsWritten = true;
+            this.writer.writeRawData(this.window, this.literalStart, this.pos - this.literalStart);
+            this.literalStart = this.pos;
+        }
+    }
+
+}
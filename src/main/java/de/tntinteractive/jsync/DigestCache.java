@@ -0,0 +1,149 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+
+/**
+ * Speichert die MD4-Hashes ganzer Dateien für den Abgleich über Prüfsummen (siehe {@link Features#CHECKSUMS}).
+ * Ein Eintrag gilt für Pfad, Größe und Änderungszeitpunkt der Datei. Der Client verwendet den Cache für die
+ * Quelldateien, der Daemon für die Zieldateien.
+ */
+final class DigestCache {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String ENTRY_SUFFIX = ".md4";
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final CacheDirectory directory;
+
+    /**
+     * @param directory Verzeichnis, in dem die Einträge abgelegt werden. Es kann dasselbe wie für den
+     *      {@link SignatureCache} sein.
+     */
+    public DigestCache(FilePath directory) {
+        this.directory = new CacheDirectory(directory, ENTRY_SUFFIX);
+    }
+
+    /**
+     * Liefert den Hash der Datei. Wenn der Cache null ist oder keinen passenden Eintrag hat, wird die Datei
+     * gelesen (und der Hash im Cache abgelegt).
+     */
+    public static byte[] determine(DigestCache cache, FilePath file) throws IOException {
+        if (cache == null) {
+            return compute(file);
+        }
+        final byte[] cached = cache.load(file);
+        if (cached != null) {
+            return cached;
+        }
+        final long size = file.getSize();
+        final long lastChange = file.getLastChange();
+        final byte[] digest = compute(file);
+        cache.store(file, size, lastChange, digest);
+        return digest;
+    }
+
+    /**
+     * Liest die Datei vollständig und bestimmt ihren MD4-Hash.
+     */
+    public static byte[] compute(FilePath file) throws IOException {
+        final MD4 md4 = new MD4();
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(CHUNK_SIZE, file.getSize())));
+        final RandomAccessInput in = file.openRandomAccessInput();
+        try {
+            long offset = 0;
+            while (true) {
+                buffer.clear();
+                final int read = in.read(offset, buffer);
+                if (read < 0) {
+                    break;
+                }
+                md4.engineUpdate(buffer.array(), 0, read);
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return md4.engineDigest();
+    }
+
+    /**
+     * Liefert den gespeicherten Hash der Datei, oder null, wenn es keinen zu Größe und Änderungszeitpunkt
+     * passenden gibt.
+     */
+    public byte[] load(FilePath file) {
+        final String path = CacheDirectory.pathOf(file);
+        try {
+            final FilePath entry = this.directory.find(path);
+            if (entry == null) {
+                return null;
+            }
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(entry.openInputStream()));
+            try {
+                if (in.readInt() != FORMAT_VERSION
+                        || !in.readUTF().equals(path)
+                        || in.readLong() != file.getSize()
+                        || in.readLong() != file.getLastChange()) {
+                    return null;
+                }
+                final byte[] digest = new byte[MD4.DIGEST_LENGTH];
+                in.readFully(digest);
+                return digest;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.WARNING, "could not read digest cache entry for " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Speichert den Hash für die Datei. Größe und Änderungszeitpunkt sollten bestimmt worden sein, bevor
+     * die Datei zum Berechnen des Hashs gelesen wurde.
+     * Fehler werden nur protokolliert, weil der Cache für den Sync nicht notwendig ist.
+     */
+    public void store(FilePath file, long size, long lastChange, byte[] digest) {
+        final String path = CacheDirectory.pathOf(file);
+        try {
+            final FilePath tmp = this.directory.createTemp(path);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmp.openOutputStream()));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(path);
+                out.writeLong(size);
+                out.writeLong(lastChange);
+                out.write(digest);
+            } finally {
+                out.close();
+            }
+            this.directory.commit(tmp, path);
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.WARNING, "could not write digest cache entry for " + path, e);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Listet Zielverzeichnisse im Voraus in einem kleinen Thread-Pool auf, damit der {@link Generator} beim Abstieg
+ * in ein Verzeichnis nicht auf das (z.B. bei Netzlaufwerken langsame) Auflisten warten muss. Sobald der Inhalt
+ * eines Verzeichnisses abgeholt wird, werden seine Unterverzeichnisse zum Auflisten eingereiht, denn in diese steigt
+ * der Abgleich als nächstes ab. Die Attribute der Einträge werden dabei gleich mitbestimmt, siehe
+ * {@link ListedFilePath}.
+ * Die Methoden werden nur vom Thread des Generators aufgerufen.
+ */
+final class DirectoryPrefetcher {
+
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * Höchstzahl vorausgelesener, aber noch nicht abgeholter Verzeichnisse, damit bei sehr vielen
+     * Unterverzeichnissen nicht beliebig viel im Speicher landet.
+     */
+    private static final int MAX_PREFETCHED = 256;
+
+    private final Map<FilePath, Future<List<FilePath>>> prefetched =
+            new IdentityHashMap<FilePath, Future<List<FilePath>>>();
+    private ExecutorService pool;
+
+    /**
+     * Startet den Pool mit der übergebenen Anzahl Threads. Ohne Aufruf (oder mit 0 Threads) wird nur beim Abholen
+     * direkt aufgelistet.
+     */
+    public void start(int threadCount, final String name) {
+        if (threadCount <= 0) {
+            return;
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, name + "-prefetch" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Liefert den sortierten Inhalt des Verzeichnisses. Wurde es vorausgelesen, wird dabei höchstens noch auf
+     * das Ende des Auflistens gewartet. Das Verzeichnis muss dazu dasselbe Objekt sein, das in einem vorher
+     * gelieferten Inhalt enthalten war.
+     */
+    public List<FilePath> getChildrenSorted(FilePath dir) throws IOException, InterruptedException {
+        List<FilePath> children = null;
+        final Future<List<FilePath>> future = this.prefetched.remove(dir);
+        if (future != null) {
+            try {
+                children = future.get();
+            } catch (final ExecutionException e) {
+                //z.B. wenn sich das Verzeichnis zwischenzeitlich geändert hat => direkt noch einmal versuchen
+                Logger.LOGGER.log(Level.FINE, "prefetching " + dir.getName() + " failed", e.getCause());
+            }
+        }
+        if (children == null) {
+            children = list(dir);
+        }
+        this.prefetchSubdirectories(children);
+        return children;
+    }
+
+    /**
+     * Verwirft ein evtl. vorausgelesenes Listing, z.B. weil das Verzeichnis gelöscht wird.
+     */
+    public void discard(FilePath dir) {
+        final Future<List<FilePath>> future = this.prefetched.remove(dir);
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+
+    public void close() {
+        if (this.pool != null) {
+            this.pool.shutdownNow();
+        }
+        this.prefetched.clear();
+    }
+
+    private void prefetchSubdirectories(List<FilePath> children) {
+        if (this.pool == null) {
+            return;
+        }
+        for (final FilePath child : children) {
+            if (this.prefetched.size() >= MAX_PREFETCHED) {
+                return;
+            }
+            if (child.isDirectory()) {
+                this.prefetched.put(child, this.pool.submit(new Callable<List<FilePath>>() {
+                    @Override
+                    public List<FilePath> call() throws IOException {
+                        return list(child);
+                    }
+                }));
+            }
+        }
+    }
+
+    private static List<FilePath> list(FilePath dir) throws IOException {
+        final List<FilePath> ret = new ArrayList<FilePath>();
+        for (final FilePath child : dir.getChildrenSorted()) {
+            ret.add(new ListedFilePath(child));
+        }
+        return ret;
+    }
+
+}
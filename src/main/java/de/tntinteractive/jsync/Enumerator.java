@@ -33,6 +33,8 @@ public class Enumerator implements Runnable {
     private final GeneratorCommandWriter writer;
     private final FastConcurrentList<FilePath> filePaths;
     private final ExceptionBuffer exc;
+    private boolean sendDigests;
+    private DigestCache digestCache;
 
     public Enumerator(FilePath localDir, OutputStream target,
             FastConcurrentList<FilePath> filePathBuffer, ExceptionBuffer exc) {
@@ -42,6 +44,20 @@ public class Enumerator implements Runnable {
         this.exc = exc;
     }
 
+    /**
+     * Wenn gesetzt, wird zu jeder Datei der MD4-Hash ihres Inhalts mitgeschickt (siehe {@link Features#CHECKSUMS}).
+     */
+    public void setSendDigests(boolean sendDigests) {
+        this.sendDigests = sendDigests;
+    }
+
+    /**
+     * Setzt den Cache, aus dem die Hashes unveränderter Dateien genommen werden, statt sie neu zu berechnen.
+     */
+    void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
     @Override
     public void run() {
         try {
@@ -62,7 +78,15 @@ public class Enumerator implements Runnable {
                 count += this.sendDirRecursive(child);
             } else {
                 this.filePaths.add(child);
-                this.writer.writeFile(child.getName(), child.getSize(), child.getLastChange());
+                if (this.sendDigests) {
+                    //Größe und Zeitpunkt vor dem Lesen bestimmen, wie beim Ablegen im Cache
+                    final long size = child.getSize();
+                    final long lastChange = child.getLastChange();
+                    this.writer.writeFileWithDigest(child.getName(), size, lastChange,
+                            DigestCache.determine(this.digestCache, child));
+                } else {
+                    this.writer.writeFile(child.getName(), child.getSize(), child.getLastChange());
+                }
                 count++;
             }
         }
@@ -0,0 +1,72 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+/**
+ * Optionale Protokollerweiterungen, die Client und Daemon beim Aufbau der Session aushandeln. Der Client schickt
+ * die gewünschten Erweiterungen als Bitmaske, der Daemon antwortet mit denen, die er davon unterstützt.
+ */
+final class Features {
+
+    /**
+     * Abgleich großer Dateien in zwei Stufen, erst über Superblöcke, dann über die normalen Blöcke.
+     */
+    public static final int SUPER_BLOCK_SIGNATURES = 1;
+
+    /**
+     * Der {@link Enumerator} schickt zu jeder Datei den Hash ihres Inhalts mit. Unterscheiden sich Quell- und
+     * Zieldatei nur im Änderungszeitpunkt, wird dann nur dieser übernommen.
+     */
+    public static final int CHECKSUMS = 2;
+
+    /**
+     * Schlägt die Prüfung einer Datei fehl, werden nur die Abschnitte neu übertragen, deren Hashes nicht passen.
+     */
+    public static final int REGION_RESEND = 4;
+
+    /**
+     * Bestehende Zieldateien werden direkt geändert statt über eine Tempdatei neu aufgebaut. Der {@link Sender}
+     * verwendet dafür nur Blöcke, die beim Empfänger noch nicht überschrieben sein können.
+     */
+    public static final int IN_PLACE = 8;
+
+    /**
+     * Längere Folgen von Null-Bytes werden nur mit ihrer Länge übertragen, und der {@link Receiver} lässt in neu
+     * aufgebauten Dateien Löcher für sie, so dass dünn besetzte Dateien (z.B. Images virtueller Platten) dünn
+     * besetzt bleiben.
+     */
+    public static final int SPARSE = 16;
+
+    /**
+     * Stellt sich beim Abgleich heraus, dass die Quelldatei unverändert am Anfang der Zieldatei steht, wird sie
+     * nur als unverändert gemeldet. Der {@link Receiver} prüft dann nur ihren Hash und setzt den
+     * Änderungszeitpunkt, statt sie neu zu schreiben.
+     */
+    public static final int UNCHANGED = 32;
+
+    /**
+     * Alle Erweiterungen, die diese Version unterstützt.
+     */
+    public static final int SUPPORTED = SUPER_BLOCK_SIGNATURES | CHECKSUMS | REGION_RESEND | IN_PLACE | SPARSE
+            | UNCHANGED;
+
+    private Features() {
+    }
+
+}
@@ -57,4 +57,14 @@ public interface FilePath {
 
     public abstract RandomAccessInput openRandomAccessInput() throws IOException;
 
+    /**
+     * Öffnet die Datei zum Lesen und Ändern an beliebigen Stellen, ohne sie vorher zu leeren.
+     */
+    public abstract RandomAccessOutput openRandomAccessOutput() throws IOException;
+
+    /**
+     * Schreibt den Inhalt und die Metadaten der Datei auf die Platte (fsync).
+     */
+    public abstract void sync() throws IOException;
+
 }
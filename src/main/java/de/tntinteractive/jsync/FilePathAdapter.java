@@ -24,6 +24,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -152,4 +153,19 @@ public class FilePathAdapter implements FilePath {
         return new RandomAccessFileInput(this.file);
     }
 
+    @Override
+    public RandomAccessOutput openRandomAccessOutput() throws IOException {
+        return new RandomAccessFileOutput(this.file);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        final RandomAccessFile f = new RandomAccessFile(this.file, "rw");
+        try {
+            f.getFD().sync();
+        } finally {
+            f.close();
+        }
+    }
+
 }
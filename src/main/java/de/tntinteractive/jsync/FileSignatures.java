@@ -0,0 +1,214 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Die Blocksignaturen einer Datei für eine bestimmte Blockgröße. Es wird jeweils der vollständige MD4-Hash
+ * gespeichert, so dass daraus die verkürzten Hashes für jede Hashlänge gebildet werden können.
+ */
+final class FileSignatures {
+
+    /**
+     * Größe der Stücke, in denen die Datei gelesen wird (auf ein Vielfaches der Blockgröße abgerundet).
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Die für die Berechnung nötigen Objekte, die pro Thread wiederverwendet werden.
+     */
+    private static final class Scratch {
+        private final MD4 md4 = new MD4();
+        private final byte[] digest = new byte[MD4.DIGEST_LENGTH];
+        private ByteBuffer chunk = ByteBuffer.allocate(0);
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final int blockSize;
+    private final int blockCount;
+    private final int[] rollingHashes;
+    private final byte[] digests;
+    private final int tailLength;
+    private final int tailRollingHash;
+    private final byte[] tailDigest;
+
+    private FileSignatures(int blockSize, int blockCount, int[] rollingHashes, byte[] digests,
+            int tailLength, int tailRollingHash, byte[] tailDigest) {
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.rollingHashes = rollingHashes;
+        this.digests = digests;
+        this.tailLength = tailLength;
+        this.tailRollingHash = tailRollingHash;
+        this.tailDigest = tailDigest;
+    }
+
+    /**
+     * Liest die Datei und bestimmt ihre Signaturen. Gelesen wird in großen Stücken in einen pro Thread
+     * wiederverwendeten Puffer, gehasht wird direkt darin.
+     * @param expectedSize Die erwartete Dateigröße. Gelesen wird trotzdem bis zum tatsächlichen Dateiende.
+     */
+    public static FileSignatures compute(RandomAccessInput input, long expectedSize, int blockSize)
+        throws IOException {
+        return compute(input, 0, Long.MAX_VALUE, expectedSize, blockSize);
+    }
+
+    /**
+     * Bestimmt die Signaturen für einen Ausschnitt der Datei. Endet der Ausschnitt nicht auf einer Blockgrenze,
+     * bekommt der Rest eine eigene Signatur, wie das Ende einer Datei.
+     * @param start Anfang des Ausschnitts, sinnvollerweise auf einer Blockgrenze.
+     * @param end Ende des Ausschnitts, bzw. {@link Long#MAX_VALUE} für das Dateiende.
+     */
+    public static FileSignatures computeRange(RandomAccessInput input, long start, long end, int blockSize)
+        throws IOException {
+        return compute(input, start, end, end == Long.MAX_VALUE ? 0 : end - start, blockSize);
+    }
+
+    private static FileSignatures compute(RandomAccessInput input, long start, long end, long expectedSize,
+            int blockSize) throws IOException {
+        final Scratch scratch = SCRATCH.get();
+        final int chunkSize = Math.max(1, CHUNK_SIZE / blockSize) * blockSize;
+        if (scratch.chunk.capacity() < chunkSize) {
+            scratch.chunk = ByteBuffer.allocate(chunkSize);
+        }
+        final ByteBuffer chunk = scratch.chunk;
+        final byte[] data = chunk.array();
+
+        int[] rollingHashes = new int[(int) Math.min(Integer.MAX_VALUE / MD4.DIGEST_LENGTH,
+                Math.max(16, expectedSize / blockSize))];
+        byte[] digests = new byte[rollingHashes.length * MD4.DIGEST_LENGTH];
+        int count = 0;
+        int tailLength = 0;
+        int tailRollingHash = 0;
+        final byte[] tailDigest = new byte[MD4.DIGEST_LENGTH];
+        long offset = start;
+        while (true) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunkSize, end - offset));
+            while (chunk.hasRemaining()) {
+                if (input.read(offset + chunk.position(), chunk) < 0) {
+                    break;
+                }
+            }
+            final int filled = chunk.position();
+            int pos = 0;
+            for (; pos + blockSize <= filled; pos += blockSize) {
+                if (count == rollingHashes.length) {
+                    rollingHashes = Arrays.copyOf(rollingHashes, 2 * count);
+                    digests = Arrays.copyOf(digests, 2 * count * MD4.DIGEST_LENGTH);
+                }
+                rollingHashes[count] = Checksum32.checkRange(data, pos, blockSize);
+                scratch.md4.determineInto(data, pos, blockSize, scratch.digest);
+                System.arraycopy(scratch.digest, 0, digests, count * MD4.DIGEST_LENGTH, MD4.DIGEST_LENGTH);
+                count++;
+            }
+            offset += filled;
+            if (filled < chunkSize) {
+                //Datei- bzw. Ausschnittsende erreicht, da das Stück ein Vielfaches der Blockgröße ist, kann nur hier
+                //  ein Rest bleiben
+                tailLength = filled - pos;
+                if (tailLength > 0) {
+                    tailRollingHash = Checksum32.checkRange(data, pos, tailLength);
+                    scratch.md4.determineInto(data, pos, tailLength, tailDigest);
+                }
+                break;
+            }
+        }
+        return new FileSignatures(blockSize, count, rollingHashes, digests,
+                tailLength, tailRollingHash, tailDigest);
+    }
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    public int getBlockCount() {
+        return this.blockCount;
+    }
+
+    /**
+     * Schreibt die Signaturen als Befehle für den {@link Sender}, mit Hashes der übergebenen Länge.
+     */
+    public void writeTo(SenderCommandWriter writer, int strongHashSize) throws IOException {
+        final byte[] strongHash = new byte[strongHashSize];
+        for (int i = 0; i < this.blockCount; i++) {
+            MD4.fold(this.digests, i * MD4.DIGEST_LENGTH, strongHash);
+            writer.writeHashes(this.rollingHashes[i], strongHash);
+        }
+        if (this.tailLength > 0) {
+            //der unvollständige Rest bekommt eine eigene Signatur, damit ein unverändertes Dateiende
+            //  nicht als Rohdaten geschickt werden muss
+            MD4.fold(this.tailDigest, 0, strongHash);
+            writer.writeTailHash(this.tailLength, this.tailRollingHash, strongHash);
+        }
+    }
+
+    /**
+     * Speichert die Signaturen (für den {@link SignatureCache}).
+     */
+    public void store(DataOutputStream out) throws IOException {
+        out.writeInt(this.blockSize);
+        out.writeInt(this.blockCount);
+        for (int i = 0; i < this.blockCount; i++) {
+            out.writeInt(this.rollingHashes[i]);
+            out.write(this.digests, i * MD4.DIGEST_LENGTH, MD4.DIGEST_LENGTH);
+        }
+        out.writeInt(this.tailLength);
+        out.writeInt(this.tailRollingHash);
+        out.write(this.tailDigest);
+    }
+
+    /**
+     * Liest mit {@link #store(DataOutputStream)} gespeicherte Signaturen einer Datei der übergebenen Größe.
+     */
+    public static FileSignatures load(DataInputStream in, long fileSize) throws IOException {
+        final int blockSize = in.readInt();
+        final int blockCount = in.readInt();
+        if (blockSize <= 0 || blockCount != fileSize / blockSize) {
+            throw new IOException("signature data does not fit to file size " + fileSize);
+        }
+        final int[] rollingHashes = new int[blockCount];
+        final byte[] digests = new byte[blockCount * MD4.DIGEST_LENGTH];
+        for (int i = 0; i < blockCount; i++) {
+            rollingHashes[i] = in.readInt();
+            in.readFully(digests, i * MD4.DIGEST_LENGTH, MD4.DIGEST_LENGTH);
+        }
+        final int tailLength = in.readInt();
+        if (tailLength != fileSize % blockSize) {
+            throw new IOException("signature data does not fit to file size " + fileSize);
+        }
+        final int tailRollingHash = in.readInt();
+        final byte[] tailDigest = new byte[MD4.DIGEST_LENGTH];
+        in.readFully(tailDigest);
+        return new FileSignatures(blockSize, blockCount, rollingHashes, digests,
+                tailLength, tailRollingHash, tailDigest);
+    }
+
+}
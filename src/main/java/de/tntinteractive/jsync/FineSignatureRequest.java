@@ -0,0 +1,74 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+/**
+ * Die Anforderung feiner Signaturen für eine Datei, die über Superblöcke abgeglichen wird: Der {@link Sender}
+ * teilt mit, welche Superblöcke der Zieldatei er in der Quelldatei gefunden hat. Für alle anderen schickt der
+ * {@link Generator} danach die Signaturen der normalen Blöcke. Der {@link Receiver} reicht die Anforderung über
+ * die {@link TargetFileInfo} und die Resend-Queue an den Generator weiter.
+ */
+final class FineSignatureRequest {
+
+    private final int blockSize;
+    private final int superBlockSize;
+    private final int superBlockCount;
+    private final byte[] matchedBits;
+
+    /**
+     * @param matchedBits Ein Bit pro Superblock (niedrigstes Bit zuerst), gesetzt, wenn er gefunden wurde.
+     */
+    public FineSignatureRequest(int blockSize, int superBlockSize, int superBlockCount, byte[] matchedBits) {
+        if (matchedBits.length != bitsLength(superBlockCount)) {
+            throw new IllegalArgumentException("wrong bit count for " + superBlockCount + " super blocks");
+        }
+        this.blockSize = blockSize;
+        this.superBlockSize = superBlockSize;
+        this.superBlockCount = superBlockCount;
+        this.matchedBits = matchedBits;
+    }
+
+    /**
+     * Liefert die Anzahl Bytes, die für die Bits der übergebenen Anzahl Superblöcke nötig sind.
+     */
+    public static int bitsLength(int superBlockCount) {
+        return (superBlockCount + 7) / 8;
+    }
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    public int getSuperBlockSize() {
+        return this.superBlockSize;
+    }
+
+    public int getSuperBlockCount() {
+        return this.superBlockCount;
+    }
+
+    public byte[] getMatchedBits() {
+        return this.matchedBits;
+    }
+
+    public boolean isMatched(int superBlock) {
+        return (this.matchedBits[superBlock / 8] & (1 << (superBlock % 8))) != 0;
+    }
+
+}
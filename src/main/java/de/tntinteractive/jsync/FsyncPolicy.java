@@ -0,0 +1,48 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.util.Locale;
+
+/**
+ * Legt fest, ob und wie fertig empfangene Dateien auf die Platte geschrieben werden, bevor sie an ihren Platz
+ * kommen (siehe {@link CommitStage}). Die Verzeichnisse werden nach dem Umbenennen nicht synchronisiert.
+ */
+public enum FsyncPolicy {
+    /**
+     * Kein fsync, das Schreiben bleibt dem Betriebssystem überlassen (Standard).
+     */
+    NONE,
+    /**
+     * Die Dateien werden gesammelt und in einem eigenen Thread gemeinsam synchronisiert und umbenannt.
+     */
+    PER_BATCH,
+    /**
+     * Jede Datei wird sofort synchronisiert und umbenannt.
+     */
+    PER_FILE;
+
+    /**
+     * Liefert die Policy zu einem Namen wie "none", "per-batch" oder "per-file".
+     */
+    public static FsyncPolicy parse(String name) {
+        return valueOf(name.toUpperCase(Locale.ENGLISH).replace('-', '_'));
+    }
+
+}
@@ -19,10 +19,16 @@
 package de.tntinteractive.jsync;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 
@@ -40,13 +46,68 @@ public class Generator implements Runnable {
      */
     private static final String MAX_FILENAME = "\uFFFF\uFFFF\uFFFF";
 
+    /**
+     * Standardwert für die kleinste Blockgröße. Kleinere Dateien werden mit Blöcken dieser Größe verglichen.
+     */
+    public static final int DEFAULT_MIN_BLOCK_SIZE = 2044;
+
+    /**
+     * Standardwert für die größte Blockgröße. Sie wird erst bei Dateien im Terabyte-Bereich erreicht.
+     */
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Standardwert für die Anzahl der Threads, die parallel Signaturen berechnen.
+     */
+    public static final int DEFAULT_HASH_THREADS = 4;
+
+    /**
+     * Länge der starken Hashes in der ersten Runde. Bei jeder Resend-Runde wird sie um eins größer.
+     */
+    static final int INITIAL_STRONG_HASH_SIZE = 4;
+
+    /**
+     * Anzahl Blöcke pro Superblock beim Abgleich über Superblöcke.
+     */
+    static final int SUPER_BLOCK_FACTOR = 32;
+
+    /**
+     * Mindestanzahl vollständiger Superblöcke, ab der sich der Abgleich über Superblöcke lohnt.
+     */
+    static final int MIN_SUPER_BLOCK_COUNT = 4;
+
+    /**
+     * Größe der Abschnitte, deren Hashes nach einer fehlgeschlagenen Prüfung einzeln verglichen werden.
+     */
+    static final int RESEND_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Mindestanzahl Abschnitte, ab der sich die Wiederholung nur der fehlerhaften Abschnitte lohnt.
+     */
+    static final int MIN_RESEND_SEGMENT_COUNT = 4;
+
+    /**
+     * Größe der Stücke, in denen eine abgebrochene Tempdatei vom Ende her nach dem letzten Block mit Daten
+     * durchsucht wird.
+     */
+    private static final int RESUME_SCAN_CHUNK_SIZE = 1024 * 1024;
+
     private final DataInputStream input;
     private final FilePath localParentDir;
-    private final SenderCommandWriter writer;
+    private final OrderedCommandOutput output;
+    private final DirectoryPrefetcher prefetcher = new DirectoryPrefetcher();
+    private BackgroundDeleter deleter;
     private final FastConcurrentList<TargetFileInfo> sourceFilePaths;
 
     private final BlockingQueue<Integer> toResend;
-    private int strongHashSize = 4;
+    private int strongHashSize = INITIAL_STRONG_HASH_SIZE;
+    private int minBlockSize = DEFAULT_MIN_BLOCK_SIZE;
+    private int maxBlockSize = DEFAULT_MAX_BLOCK_SIZE;
+    private int hashThreads = DEFAULT_HASH_THREADS;
+    private SignatureCache signatureCache;
+    private boolean superBlockSignatures;
+    private DigestCache digestCache;
+    private boolean deleteViaTrash;
 
     private static class GeneratorCommandData {
 
@@ -54,12 +115,19 @@ public class Generator implements Runnable {
         private final String name;
         private final long size;
         private final long lastChange;
+        private final byte[] digest;
 
         public GeneratorCommandData(final GeneratorCommand type, final String name, final long size, final long lastChange) {
+            this(type, name, size, lastChange, null);
+        }
+
+        public GeneratorCommandData(final GeneratorCommand type, final String name, final long size,
+                final long lastChange, final byte[] digest) {
             this.type = type;
             this.name = name;
             this.size = size;
             this.lastChange = lastChange;
+            this.digest = digest;
         }
 
         public GeneratorCommand getType() {
@@ -78,6 +146,13 @@ public class Generator implements Runnable {
             return this.lastChange;
         }
 
+        /**
+         * Liefert den Hash des Inhalts der Quelldatei, oder null, wenn er nicht mitgeschickt wurde.
+         */
+        public byte[] getDigest() {
+            return this.digest;
+        }
+
     }
 
     private static class GeneratorCommandIterator implements ExplicitMoveIterator<GeneratorCommandData> {
@@ -107,6 +182,13 @@ public class Generator implements Runnable {
                 final long size = this.input.readLong();
                 final long changedAt = this.input.readLong();
                 this.current = new GeneratorCommandData(GeneratorCommand.FILE, name, size, changedAt);
+            } else if (command == GeneratorCommand.FILE_WITH_DIGEST.getCode()) {
+                final String name = this.input.readUTF();
+                final long size = this.input.readLong();
+                final long changedAt = this.input.readLong();
+                final byte[] digest = new byte[MD4.DIGEST_LENGTH];
+                this.input.readFully(digest);
+                this.current = new GeneratorCommandData(GeneratorCommand.FILE, name, size, changedAt, digest);
             } else if (command == GeneratorCommand.STEP_DOWN.getCode()) {
                 final String name = this.input.readUTF();
                 this.current = new GeneratorCommandData(GeneratorCommand.STEP_DOWN, name, -1, -1);
@@ -129,13 +211,80 @@ public class Generator implements Runnable {
         this.input = new DataInputStream(source);
         this.localParentDir = remoteParentDir;
         this.toResend = toResend;
-        this.writer = new SenderCommandWriter(new DataOutputStream(target));
+        this.output = new OrderedCommandOutput(target);
         this.sourceFilePaths = filePaths;
     }
 
+    /**
+     * Setzt die Grenzen, zwischen denen die Blockgröße abhängig von der Dateigröße gewählt wird.
+     */
+    public void setBlockSizeLimits(final int min, final int max) {
+        if (min <= 0 || max < min || max > Integer.MAX_VALUE / 8) {
+            throw new IllegalArgumentException("invalid block size limits " + min + " - " + max);
+        }
+        this.minBlockSize = min;
+        this.maxBlockSize = max;
+    }
+
+    /**
+     * Setzt die Anzahl der Threads, die die Signaturen geänderter Dateien parallel berechnen.
+     */
+    public void setHashThreads(final int hashThreads) {
+        if (hashThreads <= 0) {
+            throw new IllegalArgumentException("invalid thread count " + hashThreads);
+        }
+        this.hashThreads = hashThreads;
+    }
+
+    /**
+     * Setzt den Cache, aus dem die Signaturen unveränderter Zieldateien genommen werden, statt sie neu
+     * zu berechnen.
+     */
+    void setSignatureCache(final SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    /**
+     * Wenn gesetzt, werden für große Dateien zuerst nur die Signaturen von Superblöcken (aus mehreren Blöcken)
+     * geschickt und die feinen Signaturen nur für die Superblöcke, die der {@link Sender} nicht gefunden hat.
+     * Das spart bei großen, kaum geänderten Dateien den Großteil der Signaturen. Der Client muss das unterstützen,
+     * siehe {@link Features#SUPER_BLOCK_SIGNATURES}.
+     */
+    public void setSuperBlockSignatures(final boolean superBlockSignatures) {
+        this.superBlockSignatures = superBlockSignatures;
+    }
+
+    /**
+     * Wenn gesetzt, werden überflüssige Einträge im Ziel vor dem Löschen im Hintergrund erst in einen
+     * Papierkorb-Namen umbenannt, siehe {@link BackgroundDeleter}.
+     */
+    public void setDeleteViaTrash(final boolean deleteViaTrash) {
+        this.deleteViaTrash = deleteViaTrash;
+    }
+
+    /**
+     * Setzt den Cache für die Hashes ganzer Zieldateien, die beim Abgleich über Prüfsummen gebraucht werden.
+     */
+    void setDigestCache(final DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * Bestimmt die Blockgröße für eine Datei: Wie bei rsync wird die Wurzel aus der Dateigröße genommen (auf ein
+     * Vielfaches von 8 gerundet), damit die Anzahl der Signaturen nur mit der Wurzel der Dateigröße wächst.
+     */
+    static int determineBlockSize(final long fileSize, final int min, final int max) {
+        final long root = ((long) Math.sqrt(Math.max(0, fileSize)) + 7) & ~7L;
+        return (int) Math.max(min, Math.min(max, root));
+    }
+
     @Override
     public void run() {
         try {
+            this.output.start(this.hashThreads, Thread.currentThread().getName());
+            this.prefetcher.start(DirectoryPrefetcher.DEFAULT_THREADS, Thread.currentThread().getName());
+            this.deleter = new BackgroundDeleter(this.deleteViaTrash);
+            this.deleter.start(Thread.currentThread().getName());
 
             final ExplicitMoveIterator<GeneratorCommandData> commandIter = new GeneratorCommandIterator(this.input);
             final GeneratorCommandData baseDirCommand = commandIter.get();
@@ -157,7 +306,12 @@ public class Generator implements Runnable {
 
             sanityCheck(!commandIter.hasCurrent());
 
-            this.writer.writeEnumeratorDone();
+            this.output.submitDirect(new OrderedCommandOutput.Commands() {
+                @Override
+                public void writeTo(final SenderCommandWriter writer) throws IOException {
+                    writer.writeEnumeratorDone();
+                }
+            });
             this.strongHashSize++;
 
             int lastIndex = -1;
@@ -170,24 +324,57 @@ public class Generator implements Runnable {
                     //neue Runde
                     this.strongHashSize++;
                 }
+                final FineSignatureRequest request = this.sourceFilePaths.get(index).takeFineSignatureRequest();
+                if (request != null) {
+                    //zweite Phase einer Datei mit Superblöcken, das ist keine neue Runde
+                    this.writeFineSignatures(index, request);
+                    continue;
+                }
+                final FilePath failedTempFile = this.sourceFilePaths.get(index).takeFailedTempFile();
+                if (failedTempFile != null) {
+                    if (failedTempFile.getSize() >= (long) MIN_RESEND_SEGMENT_COUNT * RESEND_SEGMENT_SIZE) {
+                        //nur die fehlerhaften Abschnitte neu übertragen, das ist keine neue Runde
+                        this.writeRegionResend(index, failedTempFile);
+                        continue;
+                    }
+                    failedTempFile.delete();
+                }
                 lastIndex = index;
                 this.writeCopyCommandForMissingFile(index);
             }
 
-            this.writer.writeEverythingOk();
+            //erst wenn auch das Löschen fertig ist, entspricht das Ziel der Quelle
+            this.deleter.finish();
+            Logger.LOGGER.info(Thread.currentThread().getName() + ": deleted " + this.deleter.getDeletedFiles()
+                    + " extraneous files and " + this.deleter.getDeletedDirectories() + " directories");
+
+            this.output.submitDirect(new OrderedCommandOutput.Commands() {
+                @Override
+                public void writeTo(final SenderCommandWriter writer) throws IOException {
+                    writer.writeEverythingOk();
+                }
+            });
+            this.output.finish();
         } catch (final InterruptedException e) {
         } catch (final IOException e) {
             Logger.LOGGER.log(Level.SEVERE, "exception in generator", e);
         } finally {
-            this.writer.close();
+            if (this.deleter != null) {
+                this.deleter.close();
+            }
+            this.prefetcher.close();
+            this.output.close();
         }
     }
 
     private void mergeRecursive(final FilePath localDir,
-            final ExplicitMoveIterator<GeneratorCommandData> commandIter) throws IOException {
+            final ExplicitMoveIterator<GeneratorCommandData> commandIter) throws IOException, InterruptedException {
 
-        final ExplicitMoveIterator<FilePath> childrenIter =
-                new ExplicitMoveAdapter<FilePath>(localDir.getChildrenSorted());
+        final List<FilePath> children = this.prefetcher.getChildrenSorted(localDir);
+        //die Namen der schon behandelten Tempdateien, die nicht mehr als überflüssig gelöscht werden dürfen
+        final Set<String> handledNames = new HashSet<String>();
+        final Map<String, FilePath> partialFiles = this.handleLeftoverTempFiles(children, handledNames);
+        final ExplicitMoveIterator<FilePath> childrenIter = new ExplicitMoveAdapter<FilePath>(children);
         while (!Thread.currentThread().isInterrupted()) {
             final GeneratorCommandData currentCommand = commandIter.get();
             final String remoteName = currentCommand.getName();
@@ -202,7 +389,7 @@ public class Generator implements Runnable {
                     this.createAllRecursive(subdir, commandIter);
                 } else if (remoteName.compareTo(localName) > 0) {
                     //es lokal ein Verzeichnis, das es an der Quelle nicht gibt
-                    childrenIter.get().delete();
+                    this.deleteLocal(childrenIter.get(), handledNames);
                     childrenIter.move();
                 } else {
                     //es gibt an der Quelle und lokal einen gleichnamigen Eintrag
@@ -211,7 +398,8 @@ public class Generator implements Runnable {
                         commandIter.move();
                         this.mergeRecursive(childrenIter.get(), commandIter);
                     } else {
-                        //aber es ist lokal eine Datei => löschen und Verzeichnis erzeugen
+                        //aber es ist lokal eine Datei => löschen und Verzeichnis erzeugen (hier nicht im Hintergrund,
+                        //  weil der Name sofort frei sein muss)
                         childrenIter.get().delete();
                         final FilePath subdir = localDir.createSubdirectory(remoteName);
                         commandIter.move();
@@ -225,17 +413,23 @@ public class Generator implements Runnable {
                 if (remoteName.compareTo(localName) < 0) {
                     //es gibt an der Quelle eine Datei, die es lokal nicht gibt => Kommando für Sender erzeugen
                     final int index = this.sourceFilePaths.add(
-                            new TargetFileInfo(localDir.getChild(remoteName), currentCommand.getLastChange()));
-                    this.writeCopyCommandForMissingFile(index);
+                            new TargetFileInfo(localDir.getChild(remoteName), currentCommand.getLastChange(),
+                                    currentCommand.getSize()));
+                    if (this.resumePartialFile(index, partialFiles, handledNames, true)) {
+                        this.writeCopyCommandForExistingFile(index, null);
+                    } else {
+                        this.writeCopyCommandForMissingFile(index);
+                    }
                     commandIter.move();
                 } else if (remoteName.compareTo(localName) > 0) {
                     //es lokal eine Datei, die es an der Quelle nicht gibt
-                    childrenIter.get().delete();
+                    this.deleteLocal(childrenIter.get(), handledNames);
                     childrenIter.move();
                 } else {
                     //es gibt an der Quelle und lokal einen gleichnamigen Eintrag
                     final int index = this.sourceFilePaths.add(
-                            new TargetFileInfo(localDir.getChild(remoteName), currentCommand.getLastChange()));
+                            new TargetFileInfo(localDir.getChild(remoteName), currentCommand.getLastChange(),
+                                    currentCommand.getSize()));
                     if (childrenIter.get().isDirectory()) {
                         //aber es ist lokal ein Verzeichnis => löschen und Kommando für Sender erzeugen
                         throw new RuntimeException();
@@ -246,9 +440,13 @@ public class Generator implements Runnable {
                     } else {
                         //und es ist auch lokal eine Datei => wenn Attribute gleich sind, nichts tun,
                         //  sonst Kommando (mit Hashes) für Sender erzeugen
-                        if (commandIter.get().getSize() != childrenIter.get().getSize()
-                            || commandIter.get().getLastChange() != childrenIter.get().getLastChange()) {
-                            this.writeCopyCommandForExistingFile(index);
+                        if (commandIter.get().getSize() != childrenIter.get().getSize()) {
+                            this.resumePartialFile(index, partialFiles, handledNames, true);
+                            this.writeCopyCommandForExistingFile(index, null);
+                        } else if (commandIter.get().getLastChange() != childrenIter.get().getLastChange()) {
+                            //bei gleicher Größe kann es sein, dass sich nur der Zeitpunkt geändert hat
+                            this.resumePartialFile(index, partialFiles, handledNames, false);
+                            this.writeCopyCommandForExistingFile(index, commandIter.get().getDigest());
                         }
                     }
                     commandIter.move();
@@ -260,7 +458,7 @@ public class Generator implements Runnable {
                 //  überflüssige Einträge löschen und raus aus Methode
                 commandIter.move();
                 while (childrenIter.hasCurrent()) {
-                    childrenIter.get().delete();
+                    this.deleteLocal(childrenIter.get(), handledNames);
                     childrenIter.move();
                 }
                 return;
@@ -270,38 +468,352 @@ public class Generator implements Runnable {
         }
     }
 
-    private void writeCopyCommandForExistingFile(final int index) throws IOException {
+    private void deleteLocal(final FilePath localEntry, final Set<String> handledNames) throws IOException {
+        if (handledNames.contains(localEntry.getName())) {
+            return;
+        }
+        this.prefetcher.discard(localEntry);
+        if (isReceiverTempFile(localEntry)) {
+            //der Receiver verwendet den Namen evtl. gleich selbst, deshalb nicht erst später im Hintergrund
+            this.deleter.deleteNow(localEntry);
+        } else {
+            this.deleter.delete(localEntry);
+        }
+    }
+
+    private static boolean isReceiverTempFile(final FilePath entry) {
+        final String name = entry.getName();
+        return !entry.isDirectory()
+                && (name.endsWith(Receiver.TMP_SUFFIX) || name.endsWith(Receiver.REGION_RESEND_SUFFIX));
+    }
+
+    /**
+     * Behandelt die Tempdateien abgebrochener früherer Übertragungen in einem Verzeichnis, bevor für dessen
+     * Dateien Befehle verschickt werden. Der {@link Receiver} legt seine Tempdateien unter denselben Namen an,
+     * deshalb dürfen sie nicht im Hintergrund gelöscht werden. Zurückgestellte Tempdateien eines fehlgeschlagenen
+     * Versuchs werden nie weiterverwendet und sofort gelöscht.
+     * @return Die normalen Tempdateien, die evtl. weiterverwendet werden können, nach dem Namen der Zieldatei.
+     */
+    private Map<String, FilePath> handleLeftoverTempFiles(final List<FilePath> children,
+            final Set<String> handledNames) throws IOException {
+        final Map<String, FilePath> ret = new HashMap<String, FilePath>();
+        for (final FilePath child : children) {
+            if (!isReceiverTempFile(child)) {
+                continue;
+            }
+            final String name = child.getName();
+            if (name.endsWith(Receiver.TMP_SUFFIX)) {
+                ret.put(name.substring(0, name.length() - Receiver.TMP_SUFFIX.length()), child);
+            } else {
+                this.deleter.deleteNow(child);
+                handledNames.add(name);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gibt es für die Datei noch die Tempdatei einer abgebrochenen Übertragung, die mindestens einen Block lang
+     * ist, wird deren Anfang weiterverwendet: Sie wird umbenannt (weil der {@link Receiver} die neue Tempdatei
+     * unter dem alten Namen anlegt) und für den {@link Receiver} vermerkt. Wie viel davon nutzbar ist, wird erst
+     * beim Berechnen der Signaturen im Thread-Pool bestimmt, damit der Abgleich der Verzeichnisse nicht darauf
+     * warten muss. Ob die Blöcke wirklich passen, entscheidet wie bei der Zieldatei der Abgleich der Signaturen.
+     * Sonst wird die Tempdatei sofort gelöscht, weil der {@link Receiver} gleich eine neue unter demselben Namen
+     * anlegen kann.
+     * @param resume false, wenn die Tempdatei auf keinen Fall weiterverwendet werden soll.
+     * @return true, wenn die Tempdatei weiterverwendet wird.
+     */
+    private boolean resumePartialFile(final int index, final Map<String, FilePath> partialFiles,
+            final Set<String> handledNames, final boolean resume) throws IOException {
+        final TargetFileInfo info = this.sourceFilePaths.get(index);
+        final FilePath target = info.getFilePath();
+        final FilePath leftover = partialFiles.remove(target.getName());
+        if (leftover == null) {
+            return false;
+        }
+        handledNames.add(leftover.getName());
+        if (!resume || leftover.getSize() < this.determineResumeBlockSize(info)) {
+            this.deleter.deleteNow(leftover);
+            return false;
+        }
+        try {
+            final String partialName = target.getName() + Receiver.PARTIAL_SUFFIX;
+            leftover.renameTo(partialName);
+            handledNames.add(partialName);
+            //die nutzbare Länge wird erst mit den Signaturen bestimmt
+            info.setPartialFile(target.getParent().getChild(partialName), -1);
+            return true;
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.WARNING, "could not reuse partial file for " + target.getName(), e);
+            this.deleter.deleteNow(leftover);
+            return false;
+        }
+    }
+
+    /**
+     * Wie {@link #determineResumableLength(FilePath, int)}, aber ein Lesefehler führt nur dazu, dass nichts von der
+     * Tempdatei verwendet wird.
+     */
+    private static long determinePartialLength(final FilePath partialFile, final int blockSize) {
+        try {
+            return determineResumableLength(partialFile, blockSize);
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.WARNING, "could not reuse partial file " + partialFile.getName(), e);
+            return 0;
+        }
+    }
+
+    private int determineResumeBlockSize(final TargetFileInfo info) {
+        return determineBlockSize(info.getSourceSize(), this.minBlockSize, this.maxBlockSize) + this.strongHashSize;
+    }
+
+    /**
+     * Bestimmt, wieviel vom Anfang einer abgebrochenen Tempdatei nutzbar ist: alle ganzen Blöcke bis zum letzten,
+     * der nicht nur aus Nullen besteht. Eine vorab auf die volle Größe gebrachte Tempdatei enthält hinter dem
+     * geschriebenen Teil nur Nullen. Gelesen wird vom Ende her in großen Stücken.
+     */
+    static long determineResumableLength(final FilePath partialFile, final int blockSize) throws IOException {
+        final int chunkSize = Math.max(1, RESUME_SCAN_CHUNK_SIZE / blockSize) * blockSize;
+        final ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        final RandomAccessInput in = partialFile.openRandomAccessInput();
+        try {
+            long end = partialFile.getSize() / blockSize * blockSize;
+            while (end > 0) {
+                final int length = (int) Math.min(chunkSize, end);
+                final long start = end - length;
+                chunk.clear();
+                chunk.limit(length);
+                while (chunk.hasRemaining()) {
+                    if (in.read(start + chunk.position(), chunk) < 0) {
+                        throw new IOException("file " + partialFile.getName() + " changed while reading it");
+                    }
+                }
+                for (int blockEnd = length; blockEnd > 0; blockEnd -= blockSize) {
+                    if (!ZeroRuns.isZero(chunk, blockEnd - blockSize, blockSize)) {
+                        return start + blockEnd;
+                    }
+                }
+                end = start;
+            }
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Die Signaturen werden im Thread-Pool berechnet (oder aus dem Cache gelesen), damit der Abgleich der
+     * Verzeichnisse währenddessen weiterlaufen kann.
+     * @param sourceDigest Der Hash der Quelldatei, oder null. Wenn er gesetzt ist und zum Inhalt der Zieldatei
+     *      passt, wird statt der Befehle für den Sender nur der Änderungszeitpunkt der Zieldatei gesetzt.
+     */
+    private void writeCopyCommandForExistingFile(final int index, final byte[] sourceDigest)
+        throws IOException, InterruptedException {
+        final OrderedCommandOutput.Commands signatureCommands = this.createSignatureCommands(index);
+        if (sourceDigest == null) {
+            this.output.submitParallel(signatureCommands);
+            return;
+        }
+        final TargetFileInfo info = this.sourceFilePaths.get(index);
+        final DigestCache cache = this.digestCache;
+        this.output.submitParallel(new OrderedCommandOutput.Commands() {
+            @Override
+            public void writeTo(final SenderCommandWriter writer) throws IOException {
+                final FilePath file = info.getFilePath();
+                if (!Arrays.equals(sourceDigest, DigestCache.determine(cache, file))) {
+                    signatureCommands.writeTo(writer);
+                    return;
+                }
+                file.setLastChange(info.getSourceChangeTime());
+                if (cache != null) {
+                    cache.store(file, file.getSize(), file.getLastChange(), sourceDigest);
+                }
+            }
+        });
+    }
+
+    private OrderedCommandOutput.Commands createSignatureCommands(final int index) {
         //als zweiter Sicherheitsmechanismus werden beim Resend nicht nur die Hashes länger, sondern auch
         //  die Blöcke
-        final int blockSize = 2044 + this.strongHashSize;
-        this.writer.writeFileStart(index, this.strongHashSize, blockSize);
-        final InputStream in = this.sourceFilePaths.get(index).getFilePath().openInputStream();
+        final TargetFileInfo info = this.sourceFilePaths.get(index);
+        final FilePath file = info.getFilePath();
+        final int hashSize = this.strongHashSize;
+        final SignatureCache cache = this.signatureCache;
+        final FilePath partialFile = info.getPartialFile();
+        if (partialFile != null) {
+            //Fortsetzung einer abgebrochenen Übertragung: die Blöcke der Zieldatei werden hinter denen vom Anfang
+            //  der alten Tempdatei durchnummeriert, so wie der Receiver die beiden als Vorlage hintereinander legt
+            final int resumeBlockSize = this.determineResumeBlockSize(info);
+            final boolean targetExists = file.getParent().hasChild(file.getName());
+            return new OrderedCommandOutput.Commands() {
+                @Override
+                public void writeTo(final SenderCommandWriter writer) throws IOException {
+                    //der Receiver liest die Länge erst, wenn der Sender die Signaturen bekommen hat
+                    final long partialLength = determinePartialLength(partialFile, resumeBlockSize);
+                    info.setPartialFile(partialFile, partialLength);
+                    Logger.LOGGER.info("resuming " + file.getName() + " from " + partialLength
+                            + " bytes of an earlier attempt");
+                    writer.writeFileStart(index, hashSize, resumeBlockSize);
+                    final RandomAccessInput in = partialFile.openRandomAccessInput();
+                    try {
+                        FileSignatures.computeRange(in, 0, partialLength, resumeBlockSize).writeTo(writer, hashSize);
+                    } finally {
+                        in.close();
+                    }
+                    if (targetExists) {
+                        determineSignatures(cache, file, resumeBlockSize, hashSize).writeTo(writer, hashSize);
+                    }
+                    writer.writeFileEnd();
+                }
+            };
+        }
+        final int blockSize = determineBlockSize(file.getSize(), this.minBlockSize, this.maxBlockSize) + hashSize;
+        final long superBlockSize = (long) blockSize * SUPER_BLOCK_FACTOR;
+        if (this.superBlockSignatures && superBlockSize <= Integer.MAX_VALUE / 4
+                && file.getSize() >= MIN_SUPER_BLOCK_COUNT * superBlockSize) {
+            return new OrderedCommandOutput.Commands() {
+                @Override
+                public void writeTo(final SenderCommandWriter writer) throws IOException {
+                    writer.writeSuperBlockFileStart(index, hashSize, blockSize, (int) superBlockSize);
+                    //der Cache enthält nur die feinen Signaturen
+                    determineSignatures(null, file, (int) superBlockSize, hashSize).writeTo(writer, hashSize);
+                    writer.writeFileEnd();
+                }
+            };
+        }
+        return new OrderedCommandOutput.Commands() {
+            @Override
+            public void writeTo(final SenderCommandWriter writer) throws IOException {
+                writer.writeFileStart(index, hashSize, blockSize);
+                determineSignatures(cache, file, blockSize, hashSize).writeTo(writer, hashSize);
+                writer.writeFileEnd();
+            }
+        };
+    }
+
+    /**
+     * Schickt die feinen Signaturen für die Superblöcke, die der {@link Sender} nicht gefunden hat. Gelesen werden
+     * nur diese Bereiche der Zieldatei, die Nummern der anderen Blöcke werden übersprungen.
+     */
+    private void writeFineSignatures(final int index, final FineSignatureRequest request)
+        throws IOException, InterruptedException {
+        final FilePath file = this.sourceFilePaths.get(index).getFilePath();
+        final int hashSize = this.strongHashSize;
+        this.output.submitParallel(new OrderedCommandOutput.Commands() {
+            @Override
+            public void writeTo(final SenderCommandWriter writer) throws IOException {
+                final int blockSize = request.getBlockSize();
+                final int superBlockSize = request.getSuperBlockSize();
+                final int blocksPerSuperBlock = superBlockSize / blockSize;
+                writer.writeFileStart(index, hashSize, blockSize);
+                final RandomAccessInput in = file.openRandomAccessInput();
+                try {
+                    long nextBlock = 0;
+                    for (int i = 0; i < request.getSuperBlockCount(); i++) {
+                        if (request.isMatched(i)) {
+                            continue;
+                        }
+                        final long firstBlock = (long) i * blocksPerSuperBlock;
+                        if (firstBlock > nextBlock) {
+                            writer.writeSkipBlocks((int) (firstBlock - nextBlock));
+                        }
+                        final long start = (long) i * superBlockSize;
+                        final long end = i == request.getSuperBlockCount() - 1
+                                ? Long.MAX_VALUE : start + superBlockSize;
+                        final FileSignatures signatures = FileSignatures.computeRange(in, start, end, blockSize);
+                        signatures.writeTo(writer, hashSize);
+                        nextBlock = firstBlock + signatures.getBlockCount();
+                    }
+                } finally {
+                    in.close();
+                }
+                writer.writeFileEnd();
+            }
+        });
+    }
+
+    /**
+     * Schickt die Hashes der Abschnitte der fehlgeschlagenen Tempdatei, damit der Sender nur die abweichenden
+     * Abschnitte neu schickt. Zusammen mit dem Hash über die ganze Datei ergibt das einen zweistufigen Hashbaum,
+     * dessen untere Stufe nur im Fehlerfall bestimmt und übertragen wird.
+     */
+    private void writeRegionResend(final int index, final FilePath failedTempFile)
+        throws IOException, InterruptedException {
+        this.output.submitParallel(new OrderedCommandOutput.Commands() {
+            @Override
+            public void writeTo(final SenderCommandWriter writer) throws IOException {
+                writer.writeRegionResend(index, RESEND_SEGMENT_SIZE,
+                        determineSegmentDigests(failedTempFile, RESEND_SEGMENT_SIZE));
+            }
+        });
+    }
+
+    /**
+     * Bestimmt die vollständigen MD4-Hashes aller Abschnitte der Datei und liefert sie hintereinander.
+     */
+    static byte[] determineSegmentDigests(final FilePath file, final int segmentSize) throws IOException {
+        final MD4 md4 = new MD4();
+        final ByteBuffer segment = ByteBuffer.allocate(segmentSize);
+        final long size = file.getSize();
+        final byte[] digests = new byte[(int) ((size + segmentSize - 1) / segmentSize) * MD4.DIGEST_LENGTH];
+        final RandomAccessInput in = file.openRandomAccessInput();
         try {
-            this.sendHashes(in, blockSize);
+            long offset = 0;
+            for (int i = 0; i < digests.length; i += MD4.DIGEST_LENGTH) {
+                segment.clear();
+                segment.limit((int) Math.min(segmentSize, size - offset));
+                while (segment.hasRemaining()) {
+                    if (in.read(offset + segment.position(), segment) < 0) {
+                        throw new IOException("file " + file.getName() + " changed while reading it");
+                    }
+                }
+                md4.engineUpdate(segment.array(), 0, segment.position());
+                System.arraycopy(md4.engineDigest(), 0, digests, i, MD4.DIGEST_LENGTH);
+                offset += segment.position();
+            }
         } finally {
             in.close();
         }
-        this.writer.writeFileEnd();
+        return digests;
     }
 
-    private void sendHashes(final InputStream in, final int blockSize) throws IOException {
-        final byte[] block = new byte[blockSize];
-        while (StreamHelper.readFully(in, block) == block.length) {
-            //nur vollständig gelesene Blöcke werden gehasht, der unvollständige Rest wird
-            // der Einfachheit halber nicht mitgeschickt
-            final int rollingHash = Checksum32.determineFor(block);
-            final byte[] strongHash = MD4.determineFor(block, this.strongHashSize);
-            this.writer.writeHashes(rollingHash, strongHash);
+    private static FileSignatures determineSignatures(final SignatureCache cache, final FilePath file,
+            final int blockSize, final int strongHashSize) throws IOException {
+        if (cache != null) {
+            final FileSignatures cached = cache.load(file, blockSize);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final long size = file.getSize();
+        final long lastChange = file.getLastChange();
+        final FileSignatures signatures;
+        final RandomAccessInput in = file.openRandomAccessInput();
+        try {
+            signatures = FileSignatures.compute(in, size, blockSize);
+        } finally {
+            in.close();
         }
+        //die Signaturen aus Resend-Runden werden beim nächsten Mal nicht gebraucht
+        if (cache != null && strongHashSize == INITIAL_STRONG_HASH_SIZE) {
+            cache.store(file, size, lastChange, signatures);
+        }
+        return signatures;
     }
 
-    private void writeCopyCommandForMissingFile(final int index) throws IOException {
-        this.writer.writeFileStart(index, this.strongHashSize, 0);
-        this.writer.writeFileEnd();
+    private void writeCopyCommandForMissingFile(final int index) throws IOException, InterruptedException {
+        final int hashSize = this.strongHashSize;
+        this.output.submitDirect(new OrderedCommandOutput.Commands() {
+            @Override
+            public void writeTo(final SenderCommandWriter writer) throws IOException {
+                writer.writeFileStart(index, hashSize, 0);
+                writer.writeFileEnd();
+            }
+        });
     }
 
     private void createAllRecursive(final FilePath dir, final ExplicitMoveIterator<GeneratorCommandData> commandIter)
-        throws IOException {
+        throws IOException, InterruptedException {
 
         while (true) {
             final GeneratorCommandData cur = commandIter.get();
@@ -313,7 +825,7 @@ public class Generator implements Runnable {
                 break;
             case FILE:
                 final int index = this.sourceFilePaths.add(
-                        new TargetFileInfo(dir.getChild(cur.getName()), cur.getLastChange()));
+                        new TargetFileInfo(dir.getChild(cur.getName()), cur.getLastChange(), cur.getSize()));
                 this.writeCopyCommandForMissingFile(index);
                 commandIter.move();
                 break;
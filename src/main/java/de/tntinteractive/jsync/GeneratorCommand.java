@@ -21,7 +21,8 @@ package de.tntinteractive.jsync;
 public enum GeneratorCommand {
     STEP_DOWN(1),
     FILE(2),
-    STEP_UP(3);
+    STEP_UP(3),
+    FILE_WITH_DIGEST(4);
 
     private final byte code;
 
@@ -42,6 +42,17 @@ class GeneratorCommandWriter {
         this.output.writeLong(lastChange);
     }
 
+    /**
+     * Wie {@link #writeFile(String, long, long)}, aber zusätzlich mit dem MD4-Hash des Inhalts.
+     */
+    void writeFileWithDigest(String name, long size, long lastChange, byte[] digest) throws IOException {
+        this.output.writeByte(GeneratorCommand.FILE_WITH_DIGEST.getCode());
+        this.output.writeUTF(name);
+        this.output.writeLong(size);
+        this.output.writeLong(lastChange);
+        this.output.write(digest);
+    }
+
     void writeStepUp() throws IOException {
         this.output.writeByte(GeneratorCommand.STEP_UP.getCode());
     }
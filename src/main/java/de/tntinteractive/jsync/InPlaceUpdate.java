@@ -0,0 +1,149 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Ändert eine bestehende Zieldatei direkt, statt sie in einer Tempdatei neu aufzubauen (siehe
+ * {@link Features#IN_PLACE}). Die Datei wird der Reihe nach neu geschrieben, Bereiche, die schon an der richtigen
+ * Stelle stehen, werden aber nur für den Hash gelesen und nicht geschrieben. Kopiert werden darf nur aus Bereichen
+ * ab der aktuellen Schreibposition, dafür sorgt der {@link Sender}.
+ */
+final class InPlaceUpdate {
+
+    private final RandomAccessOutput file;
+    private final ByteBuffer buffer;
+    private final MD4 digest = new MD4();
+    private long position;
+
+    /**
+     * @param buffer Puffer für das Lesen und Schreiben, mit einem Array dahinter. Er wird über mehrere
+     *      Dateien wiederverwendet.
+     */
+    public InPlaceUpdate(FilePath target, ByteBuffer buffer) throws IOException {
+        this.file = target.openRandomAccessOutput();
+        this.buffer = buffer;
+    }
+
+    /**
+     * Schreibt die nächsten Bytes aus dem Kanal an die aktuelle Position.
+     */
+    public void writeRawData(ReadableByteChannel input, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            this.buffer.clear();
+            this.buffer.limit(Math.min(remaining, this.buffer.capacity()));
+            while (this.buffer.hasRemaining()) {
+                if (input.read(this.buffer) < 0) {
+                    throw new EOFException("input ended within raw data, " + remaining + " bytes missing");
+                }
+            }
+            this.buffer.flip();
+            remaining -= this.buffer.limit();
+            this.writeRawData(this.buffer);
+        }
+    }
+
+    /**
+     * Schreibt den Rest des Puffers an die aktuelle Position.
+     */
+    public void writeRawData(ByteBuffer data) throws IOException {
+        final int length = data.remaining();
+        this.digest.engineUpdate(data, data.position(), length);
+        this.file.write(this.position, data);
+        this.position += length;
+    }
+
+    /**
+     * Schreibt die übergebene Anzahl Nullen an die aktuelle Position. Löcher können in einer bestehenden Datei
+     * nicht entstehen, aber wo schon Nullen stehen, wird nichts geschrieben.
+     */
+    public void writeZeros(long length) throws IOException {
+        final byte[] data = this.buffer.array();
+        long done = 0;
+        while (done < length) {
+            final int chunk = (int) Math.min(this.buffer.capacity(), length - done);
+            this.buffer.clear();
+            this.buffer.limit(chunk);
+            while (this.buffer.hasRemaining()) {
+                if (this.file.read(this.position + this.buffer.position(), this.buffer) < 0) {
+                    break;
+                }
+            }
+            if (this.buffer.hasRemaining() || !ZeroRuns.isZero(this.buffer, 0, chunk)) {
+                Arrays.fill(data, 0, chunk, (byte) 0);
+                this.buffer.clear();
+                this.buffer.limit(chunk);
+                this.file.write(this.position, this.buffer);
+            }
+            this.position += chunk;
+            done += chunk;
+        }
+        ZeroRuns.digest(this.digest, length);
+    }
+
+    /**
+     * Kopiert einen Bereich der bisherigen Datei an die aktuelle Position. Steht er schon dort, wird nichts
+     * geschrieben.
+     */
+    public void copy(long offset, long length) throws IOException {
+        if (offset < this.position) {
+            throw new IOException("in-place copy from " + offset + " would read data already overwritten up to "
+                    + this.position);
+        }
+        final boolean alreadyInPlace = offset == this.position;
+        long done = 0;
+        while (done < length) {
+            this.buffer.clear();
+            this.buffer.limit((int) Math.min(this.buffer.capacity(), length - done));
+            while (this.buffer.hasRemaining()) {
+                if (this.file.read(offset + done + this.buffer.position(), this.buffer) < 0) {
+                    throw new IOException("target file too short, copy from " + offset + " with length " + length);
+                }
+            }
+            final int chunk = this.buffer.position();
+            this.digest.engineUpdate(this.buffer.array(), 0, chunk);
+            if (!alreadyInPlace) {
+                this.buffer.flip();
+                this.file.write(this.position, this.buffer);
+            }
+            this.position += chunk;
+            done += chunk;
+        }
+    }
+
+    /**
+     * Schneidet die Datei hinter den geschriebenen Daten ab und schließt sie.
+     * @return Der MD4-Hash der neuen Datei.
+     */
+    public byte[] finish() throws IOException {
+        try {
+            this.file.truncate(this.position);
+        } finally {
+            this.file.close();
+        }
+        return this.digest.engineDigest();
+    }
+
+}
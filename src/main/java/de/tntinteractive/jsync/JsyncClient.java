@@ -20,31 +20,194 @@ package de.tntinteractive.jsync;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class JsyncClient {
 
-    public static final String FIRST_CHANNEL_HEADER = "JSYNC CH1";
+    /**
+     * Kennung des ersten Kanals. Die Versionsnummer darin ändert sich, wenn das Protokoll ohne Aushandlung
+     * inkompatibel geändert wird (in Version 2: Blockgröße in FILE_START als int, Kopierbefehl COPY_RANGE), damit
+     * Client und Daemon verschiedener Versionen gleich beim Verbindungsaufbau abbrechen.
+     */
+    public static final String FIRST_CHANNEL_HEADER = "JSYNC2 CH1";
     public static final String SECOND_CHANNEL_HEADER = "JSYNC CH2";
+    /**
+     * Wie {@link #FIRST_CHANNEL_HEADER}, aber mit Aushandlung der {@link Features}. Wird nur verwendet, wenn
+     * Erweiterungen gewünscht sind.
+     */
+    public static final String FIRST_CHANNEL_HEADER_WITH_FEATURES = "JSYNC2 CH1F";
+    /**
+     * Kennung des ersten Kanals bei Clients mit der alten Protokollversion. Der Daemon lehnt sie mit einer
+     * Fehlermeldung ab.
+     */
+    static final String OLD_FIRST_CHANNEL_HEADER = "JSYNC CH1";
+
+    private boolean memoryMapped;
+    private boolean pipelined;
+    private int requestedFeatures;
+    private int acceptedFeatures;
+    private DigestCache digestCache;
 
     public static void main(final String[] args) {
         System.out.println(getHeader("JsyncClient"));
         try {
-            final File localDirectory = parseLocalDirArg(args[0]);
-            final String[] hostAndPort = args[1].split(":");
+            final JsyncClient client = new JsyncClient();
+            final List<String> positionalArgs = client.parseOptions(args);
+            final File localDirectory = parseLocalDirArg(positionalArgs.get(0));
+            final String[] hostAndPort = positionalArgs.get(1).split(":");
             final int port = Integer.parseInt(hostAndPort[1]);
-            new JsyncClient().syncDirectory(localDirectory, hostAndPort[0], port, args[2]);
+            client.syncDirectory(localDirectory, hostAndPort[0], port, positionalArgs.get(2));
         } catch (final Throwable e) {
             e.printStackTrace();
-            System.out.println("Expected command line: <localDir> <host:port> <targetDir>");
+            System.out.println("Expected command line: [options] <localDir> <host:port> <targetDir>");
+            System.out.println("Options:");
+            System.out.println("  -mmap      read source files using memory mapping");
+            System.out.println("  -pipeline  start matching blocks while the signatures are still arriving");
+            System.out.println("  -superblocks  match large files using coarse signatures first (needs daemon support)");
+            System.out.println("  -checksum  compare whole-file digests when only the modification time differs");
+            System.out.println("  -digestcache=<dir>  directory for caching the digests of source files (for -checksum)");
+            System.out.println("  -regionresend  after a failed check, resend only the wrong parts of large files");
+            System.out.println("  -inplace   update existing target files directly instead of via a temp file");
+            System.out.println("  -sparse    send runs of zeros only by length and keep them as holes in the target");
+            System.out.println("  -skipunchanged  do not rewrite target files whose content turns out to be unchanged");
             System.exit(99);
         }
     }
 
+    /**
+     * Übernimmt die mit "-" beginnenden Optionen und liefert die restlichen Argumente.
+     */
+    private List<String> parseOptions(final String[] args) {
+        final List<String> positionalArgs = new ArrayList<String>();
+        for (final String arg : args) {
+            if (!arg.startsWith("-")) {
+                positionalArgs.add(arg);
+            } else if (arg.equals("-mmap")) {
+                this.setMemoryMapped(true);
+            } else if (arg.equals("-pipeline")) {
+                this.setPipelined(true);
+            } else if (arg.equals("-superblocks")) {
+                this.setSuperBlockSignatures(true);
+            } else if (arg.equals("-regionresend")) {
+                this.setRegionResend(true);
+            } else if (arg.equals("-inplace")) {
+                this.setInPlace(true);
+            } else if (arg.equals("-sparse")) {
+                this.setSparse(true);
+            } else if (arg.equals("-skipunchanged")) {
+                this.setSkipUnchanged(true);
+            } else if (arg.equals("-checksum")) {
+                this.setChecksums(true);
+            } else if (arg.startsWith("-digestcache=")) {
+                final File cacheDir = new File(arg.substring("-digestcache=".length())).getAbsoluteFile();
+                cacheDir.mkdirs();
+                if (!cacheDir.isDirectory()) {
+                    throw new IllegalArgumentException("digest cache directory could not be created: " + cacheDir);
+                }
+                this.digestCache = new DigestCache(new FilePathAdapter(cacheDir));
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        return positionalArgs;
+    }
+
+    /**
+     * Wenn gesetzt, werden die Quelldateien memory-mapped gelesen. Das lohnt sich vor allem bei großen Dateien.
+     */
+    public void setMemoryMapped(final boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Wenn gesetzt, beginnt der Abgleich einer Datei schon, während die Signaturen noch empfangen werden.
+     */
+    public void setPipelined(final boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Wenn gesetzt, werden große Dateien zuerst über die Signaturen von Superblöcken abgeglichen, und nur für die
+     * geänderten Bereiche werden die normalen Signaturen übertragen.
+     */
+    public void setSuperBlockSignatures(final boolean superBlockSignatures) {
+        if (superBlockSignatures) {
+            this.requestedFeatures |= Features.SUPER_BLOCK_SIGNATURES;
+        } else {
+            this.requestedFeatures &= ~Features.SUPER_BLOCK_SIGNATURES;
+        }
+    }
+
+    /**
+     * Wenn gesetzt, werden Dateien, bei denen sich nur der Änderungszeitpunkt unterscheidet, über den Hash der
+     * ganzen Datei abgeglichen. Ist der Inhalt gleich, wird nur der Änderungszeitpunkt übernommen.
+     */
+    public void setChecksums(final boolean checksums) {
+        if (checksums) {
+            this.requestedFeatures |= Features.CHECKSUMS;
+        } else {
+            this.requestedFeatures &= ~Features.CHECKSUMS;
+        }
+    }
+
+    /**
+     * Wenn gesetzt, werden nach einer fehlgeschlagenen Prüfung großer Dateien nur die Abschnitte neu übertragen,
+     * deren Hashes nicht passen, statt die ganze Datei erneut abzugleichen.
+     */
+    public void setRegionResend(final boolean regionResend) {
+        if (regionResend) {
+            this.requestedFeatures |= Features.REGION_RESEND;
+        } else {
+            this.requestedFeatures &= ~Features.REGION_RESEND;
+        }
+    }
+
+    /**
+     * Wenn gesetzt, werden bestehende Zieldateien direkt geändert, statt sie in einer Tempdatei neu aufzubauen.
+     * Das spart bei großen Dateien mit wenigen Änderungen viel Schreibaufwand und Plattenplatz, dafür ist die
+     * Zieldatei während der Übertragung (und nach einem Abbruch) in einem Zwischenzustand.
+     */
+    public void setInPlace(final boolean inPlace) {
+        if (inPlace) {
+            this.requestedFeatures |= Features.IN_PLACE;
+        } else {
+            this.requestedFeatures &= ~Features.IN_PLACE;
+        }
+    }
+
+    /**
+     * Wenn gesetzt, werden Dateien, die sich beim Abgleich als inhaltlich unverändert herausstellen (z.B. weil sich
+     * nur der Änderungszeitpunkt unterscheidet), im Ziel nicht neu geschrieben.
+     */
+    public void setSkipUnchanged(final boolean skipUnchanged) {
+        if (skipUnchanged) {
+            this.requestedFeatures |= Features.UNCHANGED;
+        } else {
+            this.requestedFeatures &= ~Features.UNCHANGED;
+        }
+    }
+
+    /**
+     * Wenn gesetzt, werden Folgen von Nullen nur mit ihrer Länge übertragen und bleiben in neu aufgebauten
+     * Zieldateien Löcher. Das lohnt sich vor allem für dünn besetzte Dateien wie Images virtueller Platten.
+     */
+    public void setSparse(final boolean sparse) {
+        if (sparse) {
+            this.requestedFeatures |= Features.SPARSE;
+        } else {
+            this.requestedFeatures &= ~Features.SPARSE;
+        }
+    }
+
     public static String getHeader(final String programName) {
         return programName + " V1.1, Copyright (C) 2013-2017  Tobias Baum";
     }
@@ -74,7 +237,9 @@ public class JsyncClient {
             final int sessionId = this.initiateSession(ch1in, ch1out, remoteParentDirectory,
                     localDirectory.getName().equals("."));
 
-            final Socket ch2 = new Socket(remoteHost, remotePort);
+            //der zweite Kanal wird über NIO geöffnet, damit der Sender Dateien direkt hineinkopieren kann
+            final SocketChannel ch2channel = SocketChannel.open(new InetSocketAddress(remoteHost, remotePort));
+            final Socket ch2 = ch2channel.socket();
             ch2.setKeepAlive(true);
             try {
                 final InputStream ch2in = ch2.getInputStream();
@@ -85,10 +250,18 @@ public class JsyncClient {
                 final ExceptionBuffer exc = new ExceptionBuffer();
 
                 final Sender sender = new Sender(ch2in, filePaths, ch2out, exc);
+                sender.setMemoryMapped(this.memoryMapped);
+                sender.setPipelined(this.pipelined);
+                sender.setTargetChannel(ch2channel);
+                sender.setInPlace((this.acceptedFeatures & Features.IN_PLACE) != 0);
+                sender.setSparse((this.acceptedFeatures & Features.SPARSE) != 0);
+                sender.setSkipUnchanged((this.acceptedFeatures & Features.UNCHANGED) != 0);
                 final Thread st = new Thread(sender, "sender");
                 st.start();
 
                 final Enumerator enumerator = new Enumerator(new FilePathAdapter(localDirectory), ch1out, filePaths, exc);
+                enumerator.setSendDigests((this.acceptedFeatures & Features.CHECKSUMS) != 0);
+                enumerator.setDigestCache(this.digestCache);
                 final Thread et = new Thread(enumerator, "enumerator");
                 et.start();
 
@@ -109,15 +282,31 @@ public class JsyncClient {
     private int initiateSession(final InputStream ch1in, final OutputStream ch1out, final String remoteParentDirectory,
             final boolean createDir) throws IOException {
         final DataOutputStream out = new DataOutputStream(ch1out);
-        out.writeUTF(FIRST_CHANNEL_HEADER);
+        final boolean withFeatures = this.requestedFeatures != 0;
+        out.writeUTF(withFeatures ? FIRST_CHANNEL_HEADER_WITH_FEATURES : FIRST_CHANNEL_HEADER);
         out.writeUTF(remoteParentDirectory);
         out.writeBoolean(createDir);
+        if (withFeatures) {
+            out.writeInt(this.requestedFeatures);
+        }
 
         final DataInputStream in = new DataInputStream(ch1in);
-        final int sessionId = in.readInt();
+        final int sessionId;
+        try {
+            sessionId = in.readInt();
+        } catch (final EOFException e) {
+            //ältere Daemons kennen die Kennung nicht und schließen einfach die Verbindung
+            throw new IOException("The daemon closed the connection, it probably uses an older protocol version", e);
+        }
         if (sessionId < 0) {
             throw new IOException("Error while initiating session: " + in.readUTF());
         }
+        if (withFeatures) {
+            this.acceptedFeatures = in.readInt();
+            if (this.acceptedFeatures != this.requestedFeatures) {
+                System.out.println("The daemon does not support all requested options, continuing without them.");
+            }
+        }
         return sessionId;
     }
 
@@ -27,8 +27,10 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 
@@ -41,20 +43,61 @@ public class JsyncDaemon {
     private static final long MAX_WAIT_TIME_FOR_SECOND_CHANNEL = 30 *1000;
 
     private static int lastId;
+    private static int minBlockSize = Generator.DEFAULT_MIN_BLOCK_SIZE;
+    private static int maxBlockSize = Generator.DEFAULT_MAX_BLOCK_SIZE;
+    private static int hashThreads = Generator.DEFAULT_HASH_THREADS;
+    private static String signatureCacheDir;
+    private static boolean deleteViaTrash;
+    private static int writerThreads;
+    private static int writeMemory = Receiver.DEFAULT_MEMORY_BUDGET;
+    private static FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+    private static int fsyncBatchSize = CommitStage.DEFAULT_BATCH_SIZE;
+    private static int fsyncLatency = CommitStage.DEFAULT_MAX_LATENCY;
+    private static SignatureCache signatureCache;
+    private static DigestCache digestCache;
     private static final Map<Integer, DaemonSession> sessionsWithMissingChannel = new HashMap<Integer, DaemonSession>();
 
     public static void main(final String[] args) {
         Logger.LOGGER.info(JsyncClient.getHeader("JsyncDaemon"));
         ServerSocket s = null;
         try {
-            if (args.length < 1 || args.length > 2) {
+            final List<String> positionalArgs = parseOptions(args);
+            if (positionalArgs.size() < 1 || positionalArgs.size() > 2) {
                 throw new IllegalArgumentException("wrong number of command line arguments");
             }
-            final int port = Integer.parseInt(args[0]);
-            final String ip = args.length > 1 ? args[1] : null;
+            if (hashThreads <= 0) {
+                throw new IllegalArgumentException("number of hash threads must be positive");
+            }
+            if (writerThreads < 0) {
+                throw new IllegalArgumentException("number of writer threads must not be negative");
+            }
+            if (maxBlockSize < minBlockSize) {
+                throw new IllegalArgumentException("maximal block size is smaller than minimal block size");
+            }
+            if (signatureCacheDir != null) {
+                final File cacheDir = new File(signatureCacheDir).getAbsoluteFile();
+                cacheDir.mkdirs();
+                if (!cacheDir.isDirectory()) {
+                    throw new IllegalArgumentException("signature cache directory could not be created: " + cacheDir);
+                }
+                signatureCache = new SignatureCache(new FilePathAdapter(cacheDir), minBlockSize, maxBlockSize);
+                digestCache = new DigestCache(new FilePathAdapter(cacheDir));
+            }
+            final int port = Integer.parseInt(positionalArgs.get(0));
+            final String ip = positionalArgs.size() > 1 ? positionalArgs.get(1) : null;
             s = new ServerSocket(port, 30, ip == null ? null : InetAddress.getByName(ip));
         } catch (final Exception e) {
-            Logger.LOGGER.info("command line: <port> (<ip>)");
+            Logger.LOGGER.info("command line: [options] <port> (<ip>)");
+            Logger.LOGGER.info("options: -minblock=<bytes> -maxblock=<bytes>  limits for the size-dependent block size");
+            Logger.LOGGER.info("         -hashthreads=<n>  number of threads computing signatures of changed files");
+            Logger.LOGGER.info("         -sigcache=<dir>  directory for caching the signatures and digests of target files");
+            Logger.LOGGER.info("         -trash  rename extraneous target entries before deleting them in the background");
+            Logger.LOGGER.info("         -writerthreads=<n>  number of threads writing received files (default: 0, "
+                    + "i.e. in the receiving thread)");
+            Logger.LOGGER.info("         -writemem=<bytes>  received data that may wait for the writer threads");
+            Logger.LOGGER.info("         -fsync=none|per-batch|per-file  when to sync received files to disk");
+            Logger.LOGGER.info("             (file contents only, directories are not synced after renaming)");
+            Logger.LOGGER.info("         -fsyncbatch=<files> -fsynclatency=<ms>  size of and maximal wait for a batch");
             Logger.LOGGER.log(Level.SEVERE, "error during start-up", e);
             System.exit(99);
         }
@@ -72,6 +115,41 @@ public class JsyncDaemon {
         }
     }
 
+    /**
+     * Übernimmt die mit "-" beginnenden Optionen und liefert die restlichen Argumente.
+     */
+    private static List<String> parseOptions(final String[] args) {
+        final List<String> positionalArgs = new ArrayList<String>();
+        for (final String arg : args) {
+            if (!arg.startsWith("-")) {
+                positionalArgs.add(arg);
+            } else if (arg.startsWith("-minblock=")) {
+                minBlockSize = Integer.parseInt(arg.substring("-minblock=".length()));
+            } else if (arg.startsWith("-maxblock=")) {
+                maxBlockSize = Integer.parseInt(arg.substring("-maxblock=".length()));
+            } else if (arg.startsWith("-hashthreads=")) {
+                hashThreads = Integer.parseInt(arg.substring("-hashthreads=".length()));
+            } else if (arg.startsWith("-sigcache=")) {
+                signatureCacheDir = arg.substring("-sigcache=".length());
+            } else if (arg.equals("-trash")) {
+                deleteViaTrash = true;
+            } else if (arg.startsWith("-writerthreads=")) {
+                writerThreads = Integer.parseInt(arg.substring("-writerthreads=".length()));
+            } else if (arg.startsWith("-writemem=")) {
+                writeMemory = Integer.parseInt(arg.substring("-writemem=".length()));
+            } else if (arg.startsWith("-fsync=")) {
+                fsyncPolicy = FsyncPolicy.parse(arg.substring("-fsync=".length()));
+            } else if (arg.startsWith("-fsyncbatch=")) {
+                fsyncBatchSize = Integer.parseInt(arg.substring("-fsyncbatch=".length()));
+            } else if (arg.startsWith("-fsynclatency=")) {
+                fsyncLatency = Integer.parseInt(arg.substring("-fsynclatency=".length()));
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        return positionalArgs;
+    }
+
     private static void handleConnection(final Socket bound) throws IOException {
         final InputStream in = bound.getInputStream();
         final OutputStream out = bound.getOutputStream();
@@ -79,10 +157,13 @@ public class JsyncDaemon {
         final DataOutputStream dOut = new DataOutputStream(out);
 
         final String header = dIn.readUTF();
-        if (header.equals(JsyncClient.FIRST_CHANNEL_HEADER)) {
+        final boolean withFeatures = header.equals(JsyncClient.FIRST_CHANNEL_HEADER_WITH_FEATURES);
+        if (withFeatures || header.equals(JsyncClient.FIRST_CHANNEL_HEADER)) {
             final String remoteParentDir = dIn.readUTF();
             final boolean createDir = dIn.readBoolean();
-            final File dir = new File(remoteParentDir);
+            final int features = withFeatures ? dIn.readInt() & Features.SUPPORTED : 0;
+            //absolut, damit die Pfade im Signatur-Cache eindeutig sind
+            final File dir = new File(remoteParentDir).getAbsoluteFile();
             if (createDir) {
                 dir.mkdir();
                 if (!dir.exists()) {
@@ -103,12 +184,23 @@ public class JsyncDaemon {
                     + dir + " from " + bound.getRemoteSocketAddress());
 
             final DaemonSession session = new DaemonSession(sessionId, new FilePathAdapter(dir));
+            session.setBlockSizeLimits(minBlockSize, maxBlockSize);
+            session.setHashThreads(hashThreads);
+            session.setSignatureCache(signatureCache);
+            session.setDigestCache(digestCache);
+            session.setDeleteViaTrash(deleteViaTrash);
+            session.setWriterThreads(writerThreads, writeMemory);
+            session.setFsyncPolicy(fsyncPolicy, fsyncBatchSize, fsyncLatency);
+            session.setFeatures(features);
             cleanSessionMap();
             sessionsWithMissingChannel.put(sessionId, session);
 
             session.addFirstChannel(bound, in, out);
 
             dOut.writeInt(sessionId);
+            if (withFeatures) {
+                dOut.writeInt(features);
+            }
         } else if (header.equals(JsyncClient.SECOND_CHANNEL_HEADER)) {
             final int sessionId = dIn.readInt();
             final DaemonSession session = sessionsWithMissingChannel.get(sessionId);
@@ -121,6 +213,8 @@ public class JsyncDaemon {
             session.addSecondChannel(bound, in, out);
             Logger.LOGGER.info(
                     "second channel for " + sessionId + " connected. Now " + Thread.activeCount() + " threads active.");
+        } else if (header.equals(JsyncClient.OLD_FIRST_CHANNEL_HEADER)) {
+            sendError(bound, dOut, "The client uses an older protocol version, please update it");
         } else {
             Logger.LOGGER.warning("invalid header received: " + header);
             bound.close();
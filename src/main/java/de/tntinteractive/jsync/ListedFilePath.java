@@ -0,0 +1,130 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Ein Eintrag aus einem Verzeichnislisting, dessen Attribute schon beim Auflisten bestimmt wurden (siehe
+ * {@link DirectoryPrefetcher}). Typ, Größe und Änderungszeitpunkt geben den Stand beim Auflisten wieder,
+ * alles andere wird an den eigentlichen Pfad weitergereicht.
+ */
+final class ListedFilePath implements FilePath {
+
+    private final FilePath delegate;
+    private final boolean isDirectory;
+    private final long size;
+    private final long lastChange;
+
+    public ListedFilePath(FilePath delegate) {
+        this.delegate = delegate;
+        this.isDirectory = delegate.isDirectory();
+        //bei Verzeichnissen werden Größe und Zeitpunkt beim Abgleich nicht gebraucht
+        this.size = this.isDirectory ? -1 : delegate.getSize();
+        this.lastChange = this.isDirectory ? -1 : delegate.getLastChange();
+    }
+
+    @Override
+    public String getName() {
+        return this.delegate.getName();
+    }
+
+    @Override
+    public FilePath getParent() {
+        return this.delegate.getParent();
+    }
+
+    @Override
+    public Iterable<? extends FilePath> getChildrenSorted() throws IOException {
+        return this.delegate.getChildrenSorted();
+    }
+
+    @Override
+    public FilePath getChild(String name) {
+        return this.delegate.getChild(name);
+    }
+
+    @Override
+    public boolean hasChild(String name) {
+        return this.delegate.hasChild(name);
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return this.isDirectory;
+    }
+
+    @Override
+    public long getSize() {
+        return this.isDirectory ? this.delegate.getSize() : this.size;
+    }
+
+    @Override
+    public long getLastChange() {
+        return this.isDirectory ? this.delegate.getLastChange() : this.lastChange;
+    }
+
+    @Override
+    public void setLastChange(long lastChange) throws IOException {
+        this.delegate.setLastChange(lastChange);
+    }
+
+    @Override
+    public FilePath createSubdirectory(String name) throws IOException {
+        return this.delegate.createSubdirectory(name);
+    }
+
+    @Override
+    public void delete() throws IOException {
+        this.delegate.delete();
+    }
+
+    @Override
+    public void renameTo(String newName) throws IOException {
+        this.delegate.renameTo(newName);
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+        return this.delegate.openInputStream();
+    }
+
+    @Override
+    public OutputStream openOutputStream() throws IOException {
+        return this.delegate.openOutputStream();
+    }
+
+    @Override
+    public RandomAccessInput openRandomAccessInput() throws IOException {
+        return this.delegate.openRandomAccessInput();
+    }
+
+    @Override
+    public RandomAccessOutput openRandomAccessOutput() throws IOException {
+        return this.delegate.openRandomAccessOutput();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        this.delegate.sync();
+    }
+
+}
@@ -24,8 +24,10 @@
 
 package de.tntinteractive.jsync;
 
+import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.MessageDigestSpi;
+import java.util.Arrays;
 
 /**
  * <p>An implementation of Ron Rivest's MD4 message digest algorithm.
@@ -77,6 +79,10 @@ public class MD4 extends MessageDigestSpi implements Cloneable {
     /** Word buffer for transforming. */
     private final int[] X = new int[16];
 
+    /** Buffers for the allocation-free digest methods. */
+    private final byte[] pad = new byte[BLOCK_LENGTH + 8];
+    private final byte[] fullDigest = new byte[DIGEST_LENGTH];
+
     // Constructors.
     // -----------------------------------------------------------------
 
@@ -108,6 +114,27 @@ public class MD4 extends MessageDigestSpi implements Cloneable {
         return md4.shortenedDigest(wantedSize);
     }
 
+    /**
+     * Computes the shortened digest of the given part of the buffer and stores it in
+     * <code>target</code> (whose length is the wanted size). This instance is reset before and
+     * after, so that it can be reused for every block without allocating anything.
+     */
+    public void determineInto(byte[] block, int offset, int len, byte[] target) {
+        this.engineReset();
+        this.engineUpdate(block, offset, len);
+        this.shortenedDigestInto(target);
+    }
+
+    /**
+     * Like {@link #determineInto(byte[], int, int, byte[])}, but for a part of a
+     * (possibly memory mapped) buffer.
+     */
+    public void determineInto(ByteBuffer block, int offset, int len, byte[] target) {
+        this.engineReset();
+        this.engineUpdate(block, offset, len);
+        this.shortenedDigestInto(target);
+    }
+
     // java.lang.Cloneable interface implementation --------------------
 
     @Override
@@ -155,34 +182,84 @@ public class MD4 extends MessageDigestSpi implements Cloneable {
         }
     }
 
+    /**
+     * Updates the digest with the given part of the buffer. Heap buffers are
+     * processed directly, the content of other buffers (e.g. memory mapped
+     * files or reused direct I/O buffers) is copied to the internal block
+     * buffer with bulk gets, one block at a time.
+     */
+    public void engineUpdate(ByteBuffer b, int offset, int len) {
+        if (b.hasArray()) {
+            this.engineUpdate(b.array(), b.arrayOffset() + offset, len);
+            return;
+        }
+        final ByteBuffer source = b.duplicate();
+        source.clear();
+        source.position(offset);
+        source.limit(offset + len);
+        int n = (int)(this.count % BLOCK_LENGTH);
+        this.count += len;
+        while (source.hasRemaining()) {
+            final int chunk = Math.min(BLOCK_LENGTH - n, source.remaining());
+            source.get(this.buffer, n, chunk);
+            n += chunk;
+            if (n == BLOCK_LENGTH) {
+                this.transform(this.buffer, 0);
+                n = 0;
+            }
+        }
+    }
+
     /**
      * Pack the four chaining variables into a byte array.
      */
     @Override
     public byte[] engineDigest() {
-        final byte[] tail = this.padBuffer();
-        this.engineUpdate(tail, 0, tail.length);
-        final byte[] digest = {
-                (byte) this.a, (byte) (this.a >>> 8), (byte) (this.a >>> 16), (byte) (this.a >>> 24),
-                (byte) this.b, (byte) (this.b >>> 8), (byte) (this.b >>> 16), (byte) (this.b >>> 24),
-                (byte) this.c, (byte) (this.c >>> 8), (byte) (this.c >>> 16), (byte) (this.c >>> 24),
-                (byte) this.d, (byte) (this.d >>> 8), (byte) (this.d >>> 16), (byte) (this.d >>> 24)
-        };
+        final byte[] digest = new byte[DIGEST_LENGTH];
+        this.digestInto(digest);
+        return digest;
+    }
 
-        this.engineReset();
+    private void digestInto(byte[] digest) {
+        final int padLength = this.padInto(this.pad);
+        this.engineUpdate(this.pad, 0, padLength);
+        digest[ 0] = (byte) this.a; digest[ 1] = (byte) (this.a >>> 8);
+        digest[ 2] = (byte) (this.a >>> 16); digest[ 3] = (byte) (this.a >>> 24);
+        digest[ 4] = (byte) this.b; digest[ 5] = (byte) (this.b >>> 8);
+        digest[ 6] = (byte) (this.b >>> 16); digest[ 7] = (byte) (this.b >>> 24);
+        digest[ 8] = (byte) this.c; digest[ 9] = (byte) (this.c >>> 8);
+        digest[10] = (byte) (this.c >>> 16); digest[11] = (byte) (this.c >>> 24);
+        digest[12] = (byte) this.d; digest[13] = (byte) (this.d >>> 8);
+        digest[14] = (byte) (this.d >>> 16); digest[15] = (byte) (this.d >>> 24);
 
-        return digest;
+        this.engineReset();
     }
 
     public byte[] shortenedDigest(int size) {
-        final byte[] fullDigest = this.engineDigest();
         final byte[] shortened = new byte[size];
-        for (int i = 0; i < fullDigest.length; i++) {
-            shortened[i % size] ^= fullDigest[i];
-        }
+        this.shortenedDigestInto(shortened);
         return shortened;
     }
 
+    /**
+     * Finishes the digest and folds it into <code>target</code>, whose length is the wanted size.
+     */
+    public void shortenedDigestInto(byte[] target) {
+        this.digestInto(this.fullDigest);
+        fold(this.fullDigest, 0, target);
+    }
+
+    /**
+     * Folds the full digest stored at <code>offset</code> in <code>digest</code> into
+     * <code>target</code>, like {@link #shortenedDigestInto(byte[])} does.
+     */
+    public static void fold(byte[] digest, int offset, byte[] target) {
+        Arrays.fill(target, (byte) 0);
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            target[i % target.length] ^= digest[offset + i];
+        }
+    }
+
     @Override
     protected int engineDigest(byte[] out, int off, int len) throws DigestException {
         if (off < 0 || off + len >= out.length) {
@@ -205,13 +282,15 @@ public class MD4 extends MessageDigestSpi implements Cloneable {
      * Pad the buffer by appending the byte 0x80, then as many zero bytes
      * to fill the buffer 8 bytes shy of being a multiple of 64 bytes, then
      * append the length of the buffer, in bits, before padding.
+     *
+     * @return the number of bytes written to <code>pad</code>.
      */
-    protected byte[] padBuffer() {
+    protected int padInto(byte[] pad) {
         final int n = (int) (this.count % BLOCK_LENGTH);
         int padding = (n < 56) ? (56 - n) : (120 - n);
-        final byte[] pad = new byte[padding + 8];
 
         pad[0] = (byte) 0x80;
+        Arrays.fill(pad, 1, padding, (byte) 0);
         final long bits = this.count << 3;
         pad[padding++] = (byte)  bits;
         pad[padding++] = (byte) (bits >>>  8);
@@ -222,7 +301,7 @@ public class MD4 extends MessageDigestSpi implements Cloneable {
         pad[padding++] = (byte) (bits >>> 48);
         pad[padding  ] = (byte) (bits >>> 56);
 
-        return pad;
+        return padding + 1;
     }
 
     /** Transform a 64-byte block. */
@@ -0,0 +1,337 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Schreibt die Befehle für den {@link Sender} in der Reihenfolge, in der sie erzeugt wurden, auch wenn ein Teil
+ * davon (die Signaturen geänderter Dateien) parallel in einem Thread-Pool berechnet wird.
+ * Die Befehle für eine Datei werden in Stücken begrenzter Größe an einen einzigen Schreib-Thread weitergegeben,
+ * der immer nur die Stücke des ältesten noch offenen Eintrags schreibt. So geraten die Befehle verschiedener
+ * Dateien nicht durcheinander, und die Signaturen der Datei, auf die der Sender gerade wartet, gehen schon
+ * während des Hashens raus. Die Threads für spätere Dateien warten, wenn sie ihre wenigen Stücke gefüllt haben.
+ */
+final class OrderedCommandOutput {
+
+    /**
+     * Eine zusammengehörige Folge von Befehlen, z.B. alle Befehle für eine Datei.
+     */
+    interface Commands {
+
+        public abstract void writeTo(SenderCommandWriter writer) throws IOException;
+
+    }
+
+    /**
+     * Höchstzahl der noch nicht geschriebenen Einträge. Danach wartet der Erzeuger, damit nicht beliebig
+     * viele Signaturen im Speicher landen.
+     */
+    private static final int MAX_PENDING = 256;
+
+    /**
+     * Größe der Stücke, in denen die Befehle eines Eintrags an den Schreib-Thread gehen.
+     */
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    /**
+     * Höchstzahl der fertigen, aber noch nicht geschriebenen Stücke pro Eintrag.
+     */
+    private static final int MAX_CHUNKS_PER_ENTRY = 2;
+
+    private static final byte[] END_OF_ENTRY = new byte[0];
+
+    /**
+     * Die Befehle eines eingereihten Eintrags, in Stücken. Das letzte Stück ist {@link #END_OF_ENTRY}.
+     */
+    private static final class Entry {
+        private final BlockingQueue<byte[]> chunks;
+        private Future<?> job;
+        private volatile IOException failure;
+
+        public Entry(BlockingQueue<byte[]> chunks) {
+            this.chunks = chunks;
+        }
+    }
+
+    /**
+     * Gibt alles, was hineingeschrieben wird, in Stücken an einen {@link Entry} weiter. Ist dessen Queue voll,
+     * wird gewartet.
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+        private final Entry entry;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int filled;
+
+        public ChunkOutputStream(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (this.filled == this.buffer.length) {
+                this.passOn();
+            }
+            this.buffer[this.filled++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (this.filled == this.buffer.length) {
+                    this.passOn();
+                }
+                final int part = Math.min(len, this.buffer.length - this.filled);
+                System.arraycopy(b, off, this.buffer, this.filled, part);
+                this.filled += part;
+                off += part;
+                len -= part;
+            }
+        }
+
+        /**
+         * Gibt das angefangene Stück weiter.
+         */
+        public void passOn() throws IOException {
+            if (this.filled == 0) {
+                return;
+            }
+            put(this.entry, Arrays.copyOf(this.buffer, this.filled));
+            this.filled = 0;
+        }
+    }
+
+    private static final Entry END_MARKER = new Entry(null);
+
+    private final OutputStream target;
+    private final BlockingQueue<Entry> pending = new ArrayBlockingQueue<Entry>(MAX_PENDING);
+    private ExecutorService pool;
+    private Thread writerThread;
+    private volatile IOException failure;
+
+    public OrderedCommandOutput(OutputStream target) {
+        this.target = target;
+    }
+
+    /**
+     * Startet den Schreib-Thread und den Pool mit der übergebenen Anzahl Threads für die parallelen Befehle.
+     */
+    public void start(int threadCount, final String name) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, name + "-hash" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                OrderedCommandOutput.this.writeLoop();
+            }
+        }, name + "-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Erzeugt die Befehle sofort im aufrufenden Thread und reiht sie zum Schreiben ein. Das ist für wenige Befehle
+     * gedacht, sie werden komplett zwischengespeichert, damit der aufrufende Thread nie auf den Schreib-Thread
+     * warten muss.
+     */
+    public void submitDirect(Commands commands) throws IOException, InterruptedException {
+        this.checkFailure();
+        final Entry entry = new Entry(new LinkedBlockingQueue<byte[]>());
+        produce(entry, commands);
+        this.pending.put(entry);
+    }
+
+    /**
+     * Lässt die Befehle im Thread-Pool erzeugen. Geschrieben werden sie trotzdem an der Stelle der Reihenfolge,
+     * an der sie eingereiht wurden.
+     */
+    public void submitParallel(final Commands commands) throws IOException, InterruptedException {
+        this.checkFailure();
+        final Entry entry = new Entry(new ArrayBlockingQueue<byte[]>(MAX_CHUNKS_PER_ENTRY));
+        entry.job = this.pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                produce(entry, commands);
+            }
+        });
+        try {
+            this.pending.put(entry);
+        } catch (final InterruptedException e) {
+            entry.job.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Wartet, bis alle eingereihten Befehle geschrieben sind.
+     */
+    public void finish() throws IOException, InterruptedException {
+        this.pending.put(END_MARKER);
+        this.writerThread.join();
+        this.checkFailure();
+    }
+
+    /**
+     * Beendet die Threads und schließt den Stream. Wurde vorher nicht {@link #finish()} aufgerufen, werden noch
+     * ausstehende Befehle verworfen.
+     */
+    public void close() {
+        if (this.pool != null) {
+            this.pool.shutdownNow();
+        }
+        if (this.writerThread != null) {
+            this.writerThread.interrupt();
+        }
+        try {
+            this.target.close();
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.WARNING, "error while closing", e);
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                final Entry next = this.takeFlushingBefore(this.pending);
+                if (next == END_MARKER) {
+                    this.flush();
+                    return;
+                }
+                if (this.failure != null) {
+                    //nach einem Fehler werden die restlichen Einträge nur noch verworfen, damit der Erzeuger
+                    //  nicht hängen bleibt
+                    this.discard(next);
+                    continue;
+                }
+                try {
+                    byte[] chunk;
+                    while ((chunk = this.takeFlushingBefore(next.chunks)) != END_OF_ENTRY) {
+                        this.target.write(chunk);
+                    }
+                    if (next.failure != null) {
+                        this.fail(next.failure);
+                    }
+                } catch (final IOException e) {
+                    this.fail(e);
+                    this.discard(next);
+                }
+            }
+        } catch (final InterruptedException e) {
+            return;
+        }
+    }
+
+    /**
+     * Holt das nächste Element aus der Queue. Muss darauf gewartet werden, wird vorher alles bisher Geschriebene
+     * weitergegeben, damit der Sender nicht unnötig wartet.
+     */
+    private <T> T takeFlushingBefore(BlockingQueue<T> queue) throws InterruptedException {
+        final T ret = queue.poll();
+        if (ret != null) {
+            return ret;
+        }
+        this.flush();
+        return queue.take();
+    }
+
+    private void flush() {
+        if (this.failure != null) {
+            return;
+        }
+        try {
+            this.target.flush();
+        } catch (final IOException e) {
+            this.fail(e);
+        }
+    }
+
+    private void discard(Entry entry) {
+        final Future<?> job = entry.job;
+        if (job != null) {
+            job.cancel(true);
+        }
+        entry.chunks.clear();
+    }
+
+    private void fail(Throwable t) {
+        Logger.LOGGER.log(Level.SEVERE, "exception while writing sender commands", t);
+        this.failure = t instanceof IOException ? (IOException) t : new IOException(t);
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException e = this.failure;
+        if (e != null) {
+            throw new IOException("writing sender commands failed", e);
+        }
+    }
+
+    /**
+     * Erzeugt die Befehle in die Stücke des Eintrags. Ein Fehler wird im Eintrag vermerkt, das Ende wird
+     * in jedem Fall markiert, damit der Schreib-Thread nicht hängen bleibt.
+     */
+    private static void produce(Entry entry, Commands commands) {
+        try {
+            final ChunkOutputStream out = new ChunkOutputStream(entry);
+            commands.writeTo(new SenderCommandWriter(new DataOutputStream(out)));
+            out.passOn();
+        } catch (final InterruptedIOException e) {
+            //abgebrochen, der Eintrag wird nicht mehr geschrieben
+            return;
+        } catch (final IOException e) {
+            entry.failure = e;
+        } catch (final RuntimeException e) {
+            entry.failure = new IOException(e);
+        }
+        try {
+            put(entry, END_OF_ENTRY);
+        } catch (final InterruptedIOException e) {
+            return;
+        }
+    }
+
+    private static void put(Entry entry, byte[] chunk) throws InterruptedIOException {
+        try {
+            entry.chunks.put(chunk);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("writing commands was cancelled");
+        }
+    }
+
+}
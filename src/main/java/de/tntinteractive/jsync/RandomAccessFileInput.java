@@ -21,32 +21,39 @@ package de.tntinteractive.jsync;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 class RandomAccessFileInput implements RandomAccessInput {
 
     private final FileChannel f;
-    private final ByteBuffer buffer;
 
     public RandomAccessFileInput(File file) throws IOException {
-        this.f = new FileInputStream(file).getChannel();
-        this.buffer = ByteBuffer.wrap(new byte[Short.MAX_VALUE]);
+        this(new FileInputStream(file).getChannel());
+    }
+
+    protected RandomAccessFileInput(FileChannel channel) {
+        this.f = channel;
+    }
+
+    protected final FileChannel getChannel() {
+        return this.f;
+    }
+
+    @Override
+    public ByteBuffer map(long offset, int length) throws IOException {
+        return this.f.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    @Override
+    public int read(long offset, ByteBuffer target) throws IOException {
+        return this.f.read(target, offset);
     }
 
     @Override
-    public void copyTo(OutputStream target, long offset, short length) throws IOException {
-        this.buffer.rewind();
-        this.buffer.limit(length);
-        this.f.position(offset);
-        while (this.buffer.position() < this.buffer.limit()) {
-            final int read = this.f.read(this.buffer, offset);
-            if (read < 0) {
-                break;
-            }
-        }
-        target.write(this.buffer.array(), 0, this.buffer.position());
+    public long transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+        return this.f.transferTo(offset, length, target);
     }
 
     @Override
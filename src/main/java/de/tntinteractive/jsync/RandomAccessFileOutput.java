@@ -0,0 +1,59 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+class RandomAccessFileOutput extends RandomAccessFileInput implements RandomAccessOutput {
+
+    private final RandomAccessFile file;
+
+    public RandomAccessFileOutput(File file) throws IOException {
+        this(new RandomAccessFile(file, "rw"));
+    }
+
+    private RandomAccessFileOutput(RandomAccessFile file) {
+        super(file.getChannel());
+        this.file = file;
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer data) throws IOException {
+        long position = offset;
+        while (data.hasRemaining()) {
+            position += this.getChannel().write(data, position);
+        }
+    }
+
+    @Override
+    public void truncate(long length) throws IOException {
+        this.getChannel().truncate(length);
+    }
+
+    @Override
+    public void preallocate(long length) throws IOException {
+        //ohne fallocate in Java bleibt nur setLength, das aber z.B. unter NTFS den Platz tatsächlich reserviert
+        //  und unter Linux dem verzögerten Allokieren des Dateisystems die Größe der Datei verrät
+        this.file.setLength(length);
+    }
+
+}
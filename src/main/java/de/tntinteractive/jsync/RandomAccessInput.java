@@ -19,11 +19,29 @@
 package de.tntinteractive.jsync;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 public interface RandomAccessInput {
 
-    public abstract void copyTo(OutputStream target, long offset, short length) throws IOException;
+    /**
+     * Liefert den angegebenen Bereich der Datei als (bei echten Dateien: memory-mapped) Puffer.
+     * Die Position des Puffers ist 0, das Limit die Länge.
+     */
+    public abstract ByteBuffer map(long offset, int length) throws IOException;
+
+    /**
+     * Liest ab dem Offset soviele Bytes, wie in den Puffer passen (bei echten Dateien über den FileChannel).
+     * @return Die Anzahl gelesener Bytes, oder -1 am Dateiende.
+     */
+    public abstract int read(long offset, ByteBuffer target) throws IOException;
+
+    /**
+     * Schreibt den angegebenen Bereich der Datei in den Kanal, bei echten Dateien möglichst ohne Umweg
+     * über den Java-Heap.
+     * @return Die Anzahl der tatsächlich geschriebenen Bytes.
+     */
+    public abstract long transferTo(long offset, long length, WritableByteChannel target) throws IOException;
 
     public abstract void close() throws IOException;
 
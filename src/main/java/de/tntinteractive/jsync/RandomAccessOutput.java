@@ -0,0 +1,45 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Eine Datei, die an beliebigen Stellen gelesen und geändert werden kann (für {@link Features#IN_PLACE}).
+ */
+public interface RandomAccessOutput extends RandomAccessInput {
+
+    /**
+     * Schreibt den Rest des Puffers ab dem Offset in die Datei. Die Datei wird dabei bei Bedarf verlängert.
+     */
+    public abstract void write(long offset, ByteBuffer data) throws IOException;
+
+    /**
+     * Schneidet die Datei nach der übergebenen Länge ab.
+     */
+    public abstract void truncate(long length) throws IOException;
+
+    /**
+     * Bringt die Datei vorab auf die erwartete Länge, damit das Dateisystem den Platz möglichst am Stück vergeben
+     * kann. Der Inhalt des neuen Bereichs ist undefiniert, bis er geschrieben wird.
+     */
+    public abstract void preallocate(long length) throws IOException;
+
+}
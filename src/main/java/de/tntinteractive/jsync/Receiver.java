@@ -19,20 +19,414 @@
 package de.tntinteractive.jsync;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 /**
  * Empfängt das Diff vom {@link Sender} und baut daraufhin die Zieldatei auf.
+ * Normalerweise passiert alles im Thread des Receivers. Mit {@link #setWriterThreads(int)} wird der Stream nur noch
+ * dort dekodiert, die Befehle für eine Datei gehen an einen Pool von Schreib-Threads, so dass der Empfang der
+ * nächsten Dateien nicht auf die Platte warten muss.
  */
 public class Receiver implements Runnable {
 
-    private static final String TMP_SUFFIX = ".jstmp";
+    static final String TMP_SUFFIX = ".jstmp";
+    static final String REGION_RESEND_SUFFIX = ".jsresend";
+
+    /**
+     * Unter diesem Namen liegt die Tempdatei einer abgebrochenen früheren Übertragung, während sie als Vorlage dient.
+     */
+    static final String PARTIAL_SUFFIX = ".jspartial";
+
+    private static final int IN_PLACE_BUFFER_SIZE = 256 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Ab dieser Größe wird die Tempdatei vorab auf die Größe der Quelldatei gebracht. Bei kleinen Dateien lohnt
+     * der zusätzliche Systemaufruf nicht.
+     */
+    private static final long PREALLOCATE_MIN_SIZE = 1024 * 1024;
+
+    /**
+     * Größe der Stücke, in denen Rohdaten für die Schreib-Threads zwischengespeichert werden.
+     */
+    private static final int RAW_DATA_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Was ein Befehl ohne Rohdaten ungefähr an Speicher kostet, solange er auf den Schreib-Thread wartet.
+     */
+    private static final int SEGMENT_OVERHEAD = 64;
+
+    public static final int DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    /**
+     * Die Puffer zum Schreiben, die pro Thread wiederverwendet werden.
+     */
+    private static final class Buffers {
+        private ByteBuffer write;
+        private ByteBuffer inPlace;
+
+        /**
+         * Liefert den Puffer für die Tempdateien. Er ist direkt, damit die Daten beim Lesen aus der alten Datei und
+         * beim Schreiben nicht noch einmal kopiert werden müssen, und wird deshalb nur einmal angelegt.
+         */
+        public ByteBuffer getWriteBuffer() {
+            if (this.write == null) {
+                this.write = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            }
+            return this.write;
+        }
+
+        public ByteBuffer getInPlaceBuffer() {
+            if (this.inPlace == null) {
+                this.inPlace = ByteBuffer.allocate(IN_PLACE_BUFFER_SIZE);
+            }
+            return this.inPlace;
+        }
+    }
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * Ein Befehl für einen Schreib-Thread: Rohdaten, ein zu kopierender Bereich, eine Folge von Nullen oder das
+     * Ende der Datei. Beim Ende steht in copyLength die Länge einer unveränderten Datei, sonst -1.
+     */
+    private static final class Segment {
+        private final byte[] rawData;
+        private final long copyOffset;
+        private final long copyLength;
+        private final long zeroLength;
+        private final byte[] expectedDigest;
+        private final int cost;
+
+        private Segment(byte[] rawData, long copyOffset, long copyLength, long zeroLength, byte[] expectedDigest) {
+            this.rawData = rawData;
+            this.copyOffset = copyOffset;
+            this.copyLength = copyLength;
+            this.zeroLength = zeroLength;
+            this.expectedDigest = expectedDigest;
+            this.cost = SEGMENT_OVERHEAD + (rawData == null ? 0 : rawData.length);
+        }
+
+        public static Segment rawData(byte[] data) {
+            return new Segment(data, 0, 0, 0, null);
+        }
+
+        public static Segment copy(long offset, long length) {
+            return new Segment(null, offset, length, 0, null);
+        }
+
+        public static Segment zeros(long length) {
+            return new Segment(null, 0, 0, length, null);
+        }
+
+        public static Segment end(long unchangedLength, byte[] expectedDigest) {
+            return new Segment(null, 0, unchangedLength, 0, expectedDigest);
+        }
+
+        public boolean isEnd() {
+            return this.expectedDigest != null;
+        }
+    }
+
+    /**
+     * Das Ergebnis einer von einem Schreib-Thread fertiggestellten Datei.
+     */
+    private static final class FileResult {
+        private final FileBuilder file;
+        private final boolean ok;
+        private final Exception failure;
+
+        public FileResult(FileBuilder file, boolean ok, Exception failure) {
+            this.file = file;
+            this.ok = ok;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Baut eine Zieldatei aus den Befehlen des Senders auf, entweder in einer Tempdatei oder direkt in der
+     * bestehenden Datei.
+     */
+    private final class FileBuilder {
+        private final int index;
+        private final boolean regionResendStart;
+        private final boolean afterEnumeratorDone;
+
+        private FilePath templatePath;
+        private RandomAccessInput templateFile;
+        private FilePath partialFile;
+        private long partialLength;
+        private FilePath tmpFile;
+        private TempFileWriter tmpFileWriter;
+        private InPlaceUpdate inPlaceUpdate;
+        private boolean opened;
+
+        /**
+         * @param regionResendStart true, wenn die Vorlage die Tempdatei des fehlgeschlagenen Versuchs ist.
+         * @param afterEnumeratorDone true, wenn die Datei nach dem Ende der Aufzählung kommt, also ein Resend ist.
+         */
+        public FileBuilder(int index, boolean regionResendStart, boolean afterEnumeratorDone) {
+            this.index = index;
+            this.regionResendStart = regionResendStart;
+            this.afterEnumeratorDone = afterEnumeratorDone;
+        }
+
+        /**
+         * Öffnet die Datei erst beim ersten Befehl, damit für eine unveränderte Datei gar nichts geschrieben wird.
+         */
+        private void ensureOpen() throws IOException {
+            if (!this.opened) {
+                this.opened = true;
+                this.open();
+            }
+        }
+
+        private void open() throws IOException {
+            final Buffers buffers = BUFFERS.get();
+            if (this.regionResendStart) {
+                //Wiederholung mit den korrekten Abschnitten der fehlgeschlagenen Tempdatei => die wird zur Vorlage
+                this.templatePath = Receiver.this.getResendFileFor(this.index);
+            } else {
+                final TargetFileInfo info = Receiver.this.filePaths.get(this.index);
+                this.templatePath = info.getFilePath();
+                this.partialFile = info.getPartialFile();
+                if (this.partialFile != null) {
+                    //Fortsetzung einer abgebrochenen Übertragung => Vorlage ist der Anfang der alten Tempdatei
+                    //  gefolgt von der bisherigen Datei, das geht nur über eine neue Tempdatei
+                    this.partialLength = info.getPartialLength();
+                    info.setPartialFile(null, 0);
+                } else if (Receiver.this.inPlace
+                        && this.templatePath.getParent().hasChild(this.templatePath.getName())) {
+                    //bestehende Datei direkt ändern
+                    this.inPlaceUpdate = new InPlaceUpdate(this.templatePath, buffers.getInPlaceBuffer());
+                    return;
+                }
+            }
+            this.tmpFile = Receiver.this.createTempFileFor(this.index);
+            this.tmpFileWriter = new TempFileWriter(this.tmpFile, buffers.getWriteBuffer(), Receiver.this.sparse);
+            //bei dünn besetzten Dateien würde das den Platz für die Löcher evtl. doch reservieren
+            final long expectedSize = Receiver.this.filePaths.get(this.index).getSourceSize();
+            if (!Receiver.this.sparse && expectedSize >= PREALLOCATE_MIN_SIZE) {
+                this.tmpFileWriter.preallocate(expectedSize);
+            }
+        }
+
+        public void writeRawData(ReadableByteChannel input, int length) throws IOException {
+            this.ensureOpen();
+            if (this.inPlaceUpdate != null) {
+                this.inPlaceUpdate.writeRawData(input, length);
+            } else {
+                this.tmpFileWriter.writeRawData(input, length);
+            }
+        }
+
+        public void writeRawData(ByteBuffer data) throws IOException {
+            this.ensureOpen();
+            if (this.inPlaceUpdate != null) {
+                this.inPlaceUpdate.writeRawData(data);
+            } else {
+                this.tmpFileWriter.writeRawData(data);
+            }
+        }
+
+        public void writeZeros(long length) throws IOException {
+            this.ensureOpen();
+            if (this.inPlaceUpdate != null) {
+                this.inPlaceUpdate.writeZeros(length);
+            } else {
+                this.tmpFileWriter.writeZeros(length);
+            }
+        }
+
+        public void copy(long offset, long length) throws IOException {
+            this.ensureOpen();
+            if (this.inPlaceUpdate != null) {
+                this.inPlaceUpdate.copy(offset, length);
+            } else {
+                if (this.templateFile == null) {
+                    this.templateFile = this.openTemplate();
+                }
+                this.tmpFileWriter.copy(this.templateFile, offset, length);
+            }
+        }
+
+        private RandomAccessInput openTemplate() throws IOException {
+            if (this.partialFile == null) {
+                return this.templatePath.openRandomAccessInput();
+            }
+            final RandomAccessInput partial = this.partialFile.openRandomAccessInput();
+            final RandomAccessInput old = this.templatePath.getParent().hasChild(this.templatePath.getName())
+                    ? this.templatePath.openRandomAccessInput() : null;
+            return new ConcatenatedInput(partial, this.partialLength, old);
+        }
+
+        /**
+         * Schließt die Datei ab und prüft ihren Hash. Passt er, wird die Datei an ihren Platz gebracht.
+         * @return true, wenn der Hash gepasst hat.
+         */
+        public boolean finish(byte[] expectedDigest) throws IOException {
+            this.ensureOpen();
+            if (this.templateFile != null) {
+                this.templateFile.close();
+                this.templateFile = null;
+            }
+            if (this.regionResendStart) {
+                this.templatePath.delete();
+            }
+            if (this.partialFile != null) {
+                this.partialFile.delete();
+            }
+
+            final byte[] actualDigest;
+            if (this.inPlaceUpdate != null) {
+                actualDigest = this.inPlaceUpdate.finish();
+            } else {
+                actualDigest = this.tmpFileWriter.finish();
+            }
+            if (Arrays.equals(expectedDigest, actualDigest)) {
+                if (this.inPlaceUpdate != null) {
+                    Receiver.this.finishInPlace(this.index, expectedDigest);
+                } else {
+                    //Prüfsumme OK => echte Datei mit Tempdatei überschreiben
+                    Receiver.this.renameToRealName(this.index, this.tmpFile, expectedDigest);
+                }
+                return true;
+            }
+            //Prüfsumme nicht OK => Wenn schon der Versuch, nur einzelne Abschnitte neu zu übertragen,
+            //  fehlgeschlagen ist, wird danach wieder die ganze Datei abgeglichen. Eine direkt geänderte Datei
+            //  wird ganz normal neu abgeglichen
+            if (Receiver.this.regionResend && !this.regionResendStart && this.inPlaceUpdate == null) {
+                final FilePath resendFile = Receiver.this.getResendFileFor(this.index);
+                this.tmpFile.renameTo(resendFile.getName());
+                Receiver.this.filePaths.get(this.index).setFailedTempFile(resendFile);
+            }
+            return false;
+        }
+
+        /**
+         * Schließt eine Datei ab, die laut Sender unverändert am Anfang der bisherigen Datei steht. Hat die bisherige
+         * Datei genau diese Länge, wird nur ihr Hash geprüft und der Änderungszeitpunkt gesetzt, sonst wird der
+         * Anfang wie bei einem normalen Kopierbefehl übernommen.
+         * @return true, wenn der Hash gepasst hat.
+         */
+        public boolean finishUnchanged(long length, byte[] expectedDigest) throws IOException {
+            final FilePath target = Receiver.this.filePaths.get(this.index).getFilePath();
+            if (this.opened || this.regionResendStart
+                    || Receiver.this.filePaths.get(this.index).getPartialFile() != null
+                    || !target.getParent().hasChild(target.getName()) || target.getSize() != length) {
+                this.copy(0, length);
+                return this.finish(expectedDigest);
+            }
+            final byte[] cached = Receiver.this.digestCache == null ? null : Receiver.this.digestCache.load(target);
+            final byte[] actualDigest = cached != null ? cached : DigestCache.compute(target);
+            if (!Arrays.equals(expectedDigest, actualDigest)) {
+                return false;
+            }
+            Receiver.this.finishInPlace(this.index, expectedDigest);
+            return true;
+        }
+
+        /**
+         * Schließt die Datei mit {@link #finish(byte[])} bzw. {@link #finishUnchanged(long, byte[])} ab.
+         * @param unchangedLength Die Länge einer unveränderten Datei, sonst -1.
+         */
+        public boolean finish(long unchangedLength, byte[] expectedDigest) throws IOException {
+            if (unchangedLength >= 0) {
+                return this.finishUnchanged(unchangedLength, expectedDigest);
+            }
+            return this.finish(expectedDigest);
+        }
+    }
+
+    /**
+     * Schreibt eine Datei in einem Schreib-Thread. Die Befehle dafür kommen nach und nach vom dekodierenden Thread.
+     */
+    private final class FileJob implements Runnable {
+        private final FileBuilder file;
+        private final BlockingQueue<Segment> segments = new LinkedBlockingQueue<Segment>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private FileResult result;
+
+        public FileJob(FileBuilder file) {
+            this.file = file;
+        }
+
+        public void add(Segment segment) {
+            this.segments.add(segment);
+        }
+
+        @Override
+        public void run() {
+            Exception failure = null;
+            boolean ok = false;
+            while (true) {
+                final Segment segment;
+                try {
+                    segment = this.segments.take();
+                } catch (final InterruptedException e) {
+                    //die Session wird abgebrochen
+                    return;
+                }
+                try {
+                    //nach einem Fehler werden die restlichen Befehle nur noch abgeholt, damit der Speicher frei wird
+                    if (failure == null) {
+                        if (segment.isEnd()) {
+                            ok = this.file.finish(segment.copyLength, segment.expectedDigest);
+                        } else if (segment.rawData != null) {
+                            this.file.writeRawData(ByteBuffer.wrap(segment.rawData));
+                        } else if (segment.zeroLength > 0) {
+                            this.file.writeZeros(segment.zeroLength);
+                        } else {
+                            this.file.copy(segment.copyOffset, segment.copyLength);
+                        }
+                    }
+                } catch (final Exception e) {
+                    failure = e;
+                } finally {
+                    Receiver.this.memoryBudget.release(segment.cost);
+                }
+                if (segment.isEnd()) {
+                    break;
+                }
+            }
+            this.result = new FileResult(this.file, ok, failure);
+            this.finished.countDown();
+        }
+
+        public boolean isFinished() {
+            return this.finished.getCount() == 0;
+        }
+
+        public FileResult awaitResult() throws InterruptedException {
+            this.finished.await();
+            return this.result;
+        }
+    }
 
     private final DataInputStream input;
+    private final ReadableByteChannel inputChannel;
     private final FastConcurrentList<TargetFileInfo> filePaths;
     private final BlockingQueue<Integer> toResend;
 
@@ -40,80 +434,208 @@ public class Receiver implements Runnable {
 
     private int openResends;
 
+    private SignatureCache signatureCache;
+
+    private DigestCache digestCache;
+
+    private boolean regionResend;
+
+    private boolean inPlace;
+
+    private boolean sparse;
+
+    private int writerThreads;
+    private int memoryBudgetSize = DEFAULT_MEMORY_BUDGET;
+    private Semaphore memoryBudget;
+    //die an die Schreib-Threads abgegebenen Dateien in der Reihenfolge, in der sie angefangen wurden
+    private final Queue<FileJob> pendingJobs = new ArrayDeque<FileJob>();
+
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+    private int fsyncBatchSize = CommitStage.DEFAULT_BATCH_SIZE;
+    private int fsyncMaxLatency = CommitStage.DEFAULT_MAX_LATENCY;
+    private CommitStage commitStage;
+
     public Receiver(InputStream source, FastConcurrentList<TargetFileInfo> b, BlockingQueue<Integer> toResend) {
         this.input = new DataInputStream(source);
+        this.inputChannel = Channels.newChannel(this.input);
         this.filePaths = b;
         this.toResend = toResend;
     }
 
+    /**
+     * Setzt den Cache mit den Signaturen der Zieldateien, dessen Einträge für neu geschriebene Dateien
+     * entfernt werden.
+     */
+    void setSignatureCache(SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    /**
+     * Setzt den Cache, in dem die Hashes neu geschriebener Dateien für den Abgleich über Prüfsummen abgelegt werden.
+     */
+    void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * Wenn gesetzt, wird die Tempdatei einer fehlgeschlagenen Übertragung aufgehoben, damit bei der Wiederholung
+     * nur die fehlerhaften Abschnitte neu übertragen werden müssen (siehe {@link Features#REGION_RESEND}).
+     */
+    void setRegionResend(boolean regionResend) {
+        this.regionResend = regionResend;
+    }
+
+    /**
+     * Wenn gesetzt, werden bestehende Zieldateien direkt geändert statt über eine Tempdatei (siehe
+     * {@link Features#IN_PLACE}). Neue Dateien werden weiterhin in einer Tempdatei aufgebaut.
+     */
+    void setInPlace(boolean inPlace) {
+        this.inPlace = inPlace;
+    }
+
+    /**
+     * Wenn gesetzt, kann der Sender Folgen von Nullen mit ZERO_RUN schicken, und in Tempdateien bleiben Blöcke aus
+     * Nullen Löcher (siehe {@link Features#SPARSE}).
+     */
+    void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * Setzt die Anzahl der Threads, die die Dateien schreiben. Bei 0 (Standard) passiert alles im Thread des
+     * Receivers.
+     */
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Setzt, wieviele Bytes an empfangenen Daten höchstens auf die Schreib-Threads warten dürfen. Ist das Budget
+     * aufgebraucht, wird erst weiter gelesen, wenn wieder etwas geschrieben wurde.
+     */
+    public void setMemoryBudget(int bytes) {
+        this.memoryBudgetSize = Math.max(bytes, RAW_DATA_CHUNK_SIZE + SEGMENT_OVERHEAD);
+    }
+
+    /**
+     * Legt fest, ob fertige Dateien vor dem Umbenennen mit fsync auf die Platte geschrieben werden, siehe
+     * {@link CommitStage}.
+     * @param batchSize Anzahl der Dateien, die bei {@link FsyncPolicy#PER_BATCH} gemeinsam geschrieben werden.
+     * @param maxLatency Millisekunden, die eine Datei bei {@link FsyncPolicy#PER_BATCH} höchstens wartet.
+     */
+    public void setFsyncPolicy(FsyncPolicy policy, int batchSize, int maxLatency) {
+        this.fsyncPolicy = policy;
+        this.fsyncBatchSize = batchSize;
+        this.fsyncMaxLatency = maxLatency;
+    }
+
     @Override
     public void run() {
+        ExecutorService writers = null;
+        this.commitStage = new CommitStage(this.fsyncPolicy, this.fsyncBatchSize, this.fsyncMaxLatency);
         try {
-            int index = -2;
-            FilePath tmpFile = null;
-            MD4OutputStream tmpFileStream = null;
-            RandomAccessInput templateFile = null;
+            this.commitStage.start(Thread.currentThread().getName());
+            if (this.writerThreads > 0) {
+                writers = this.startWriters();
+            }
 
+            FileBuilder currentFile = null;
+            FileJob currentJob = null;
             while (!Thread.interrupted()) {
+                if (this.enumeratorDone && currentFile == null) {
+                    //jetzt kommen nur noch Resends, dafür muss klar sein, welche Dateien noch offen sind
+                    this.handleFinishedFiles(true);
+                    if (this.openResends == 0) {
+                        break;
+                    }
+                }
+
                 final int command = this.input.read();
                 if (command < 0) {
+                    if (currentJob != null) {
+                        throw new EOFException("input ended within file " + currentFile.index);
+                    }
                     break;
                 }
-                if (command == ReceiverCommand.FILE_START.getCode()) {
-                    //Anfang einer neuen Datei => Tempdatei erzeugen
-                    index = this.input.readInt();
-                    tmpFile = this.createTempFileFor(index);
-                    tmpFileStream = new MD4OutputStream(tmpFile.openOutputStream());
+                if (command == ReceiverCommand.FILE_START.getCode()
+                        || command == ReceiverCommand.REGION_RESEND_START.getCode()) {
+                    //Anfang einer neuen Datei => Tempdatei bzw. bestehende Datei wird beim ersten Befehl geöffnet
+                    final int index = this.input.readInt();
+                    currentFile = new FileBuilder(index,
+                            command == ReceiverCommand.REGION_RESEND_START.getCode(), this.enumeratorDone);
+                    if (writers != null) {
+                        currentJob = new FileJob(currentFile);
+                        this.pendingJobs.add(currentJob);
+                        writers.execute(currentJob);
+                    }
                 } else if (command == ReceiverCommand.RAW_DATA.getCode()) {
                     //Rohdaten => in Tempdatei schreiben
                     final int length = this.input.readInt();
-                    StreamHelper.copy(this.input, tmpFileStream, length);
+                    if (currentJob != null) {
+                        this.passRawData(currentJob, length);
+                    } else {
+                        currentFile.writeRawData(this.inputChannel, length);
+                    }
                 } else if (command == ReceiverCommand.COPY_BLOCK.getCode()) {
                     //Block aus Quelldatei kopieren
                     final long offset = this.input.readLong();
                     final short length = this.input.readShort();
-                    if (templateFile == null) {
-                        templateFile = this.filePaths.get(index).getFilePath().openRandomAccessInput();
-                    }
-                    templateFile.copyTo(tmpFileStream, offset, length);
-                } else if (command == ReceiverCommand.FILE_END.getCode()) {
-                    if (templateFile != null) {
-                        templateFile.close();
-                        templateFile = null;
+                    this.copy(currentFile, currentJob, offset, length);
+                } else if (command == ReceiverCommand.COPY_RANGE.getCode()) {
+                    //längeren Bereich aus Quelldatei kopieren
+                    final long offset = this.input.readLong();
+                    final long length = this.input.readLong();
+                    this.copy(currentFile, currentJob, offset, length);
+                } else if (command == ReceiverCommand.ZERO_RUN.getCode()) {
+                    //Folge von Nullen => bei Tempdateien ein Loch
+                    final long length = this.input.readLong();
+                    if (currentJob != null) {
+                        this.memoryBudget.acquire(SEGMENT_OVERHEAD);
+                        currentJob.add(Segment.zeros(length));
+                    } else {
+                        currentFile.writeZeros(length);
                     }
-
-                    //Ende der Datei => Prüfsumme prüfen
+                } else if (command == ReceiverCommand.FILE_END.getCode()
+                        || command == ReceiverCommand.UNCHANGED_FILE_END.getCode()) {
+                    //Ende der Datei => Prüfsumme prüfen. Bei einer unveränderten Datei kommt vorher ihre Länge
+                    final long unchangedLength = command == ReceiverCommand.UNCHANGED_FILE_END.getCode()
+                            ? this.input.readLong() : -1;
                     final byte[] expectedDigest = new byte[MD4.DIGEST_LENGTH];
                     this.input.readFully(expectedDigest);
-
-                    if (Arrays.equals(expectedDigest, tmpFileStream.getDigest())) {
-                        //Prüfsumme OK => echte Datei mit Tempdatei überschreiben
-                        tmpFileStream.close();
-                        this.renameToRealName(index, tmpFile);
-                        if (this.enumeratorDone) {
-                            this.openResends--;
-                            assert this.openResends >= 0;
-                            if (this.openResends == 0) {
-                                break;
-                            }
-                        }
+                    if (currentJob != null) {
+                        this.memoryBudget.acquire(SEGMENT_OVERHEAD);
+                        currentJob.add(Segment.end(unchangedLength, expectedDigest));
+                        currentJob = null;
+                        this.handleFinishedFiles(false);
                     } else {
-                        //Prüfsumme nicht OK => Datei in die Resend-Queue stecken
-                        this.toResend.add(index);
-                        if (!this.enumeratorDone) {
-                            this.openResends++;
-                        }
+                        this.fileDone(currentFile, currentFile.finish(unchangedLength, expectedDigest));
+                    }
+                    currentFile = null;
+                } else if (command == ReceiverCommand.FINE_SIGNATURE_REQUEST.getCode()) {
+                    //der Sender braucht für einen Teil der Superblöcke feine Signaturen => wie ein Resend über
+                    //  die Queue an den Generator, die Datei kommt danach noch einmal
+                    final int requestIndex = this.input.readInt();
+                    final int blockSize = this.input.readInt();
+                    final int superBlockSize = this.input.readInt();
+                    final int superBlockCount = this.input.readInt();
+                    final byte[] matchedBits = new byte[FineSignatureRequest.bitsLength(superBlockCount)];
+                    this.input.readFully(matchedBits);
+                    this.filePaths.get(requestIndex).setFineSignatureRequest(
+                            new FineSignatureRequest(blockSize, superBlockSize, superBlockCount, matchedBits));
+                    this.toResend.add(requestIndex);
+                    if (!this.enumeratorDone) {
+                        this.openResends++;
                     }
                 } else if (command == ReceiverCommand.ENUMERATOR_DONE.getCode()) {
                     this.enumeratorDone = true;
-                    if (this.openResends == 0) {
-                        break;
-                    }
                 } else {
                     throw new IOException("unknown command " + command);
                 }
             }
 
+            this.handleFinishedFiles(true);
+            //erst wenn alle Dateien an ihrem Platz sind, ist die Übertragung fertig
+            this.commitStage.finish();
             //dem Generator sagen, dass nichts mehr kommt
             this.toResend.add(-1);
         } catch (final Exception e) {
@@ -123,6 +645,89 @@ public class Receiver implements Runnable {
             } catch (final IOException e1) {
                 Logger.LOGGER.log(Level.WARNING, "exception while closing", e1);
             }
+        } finally {
+            if (writers != null) {
+                writers.shutdownNow();
+            }
+            this.commitStage.close();
+        }
+    }
+
+    private ExecutorService startWriters() {
+        this.memoryBudget = new Semaphore(this.memoryBudgetSize);
+        final String name = Thread.currentThread().getName();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(this.writerThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, name + "-writer" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Liest die Rohdaten in Stücken und gibt sie an den Schreib-Thread weiter. Ist das Speicherbudget aufgebraucht,
+     * wird gewartet, bis die Schreib-Threads aufgeholt haben.
+     */
+    private void passRawData(FileJob job, int length) throws IOException, InterruptedException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int chunkSize = Math.min(remaining, RAW_DATA_CHUNK_SIZE);
+            this.memoryBudget.acquire(SEGMENT_OVERHEAD + chunkSize);
+            final byte[] chunk = new byte[chunkSize];
+            this.input.readFully(chunk);
+            job.add(Segment.rawData(chunk));
+            remaining -= chunkSize;
+        }
+    }
+
+    private void copy(FileBuilder file, FileJob job, long offset, long length)
+        throws IOException, InterruptedException {
+        if (job != null) {
+            this.memoryBudget.acquire(SEGMENT_OVERHEAD);
+            job.add(Segment.copy(offset, length));
+        } else {
+            file.copy(offset, length);
+        }
+    }
+
+    /**
+     * Verbucht die von den Schreib-Threads fertiggestellten Dateien. Das passiert in der Reihenfolge, in der die
+     * Dateien angefangen wurden, und nicht in der, in der die Schreib-Threads fertig werden. So kommen fehlerhafte
+     * Dateien wie ohne Schreib-Threads nach dem Index sortiert in die Resend-Queue, denn daran erkennt der
+     * {@link Generator} eine neue Runde.
+     * @param waitForAll Wenn true, wird gewartet, bis alle abgegebenen Dateien fertig sind.
+     */
+    private void handleFinishedFiles(boolean waitForAll) throws IOException, InterruptedException {
+        while (!this.pendingJobs.isEmpty()) {
+            if (!waitForAll && !this.pendingJobs.peek().isFinished()) {
+                return;
+            }
+            final FileResult result = this.pendingJobs.remove().awaitResult();
+            if (result.failure != null) {
+                throw new IOException("writing file " + result.file.index + " failed", result.failure);
+            }
+            this.fileDone(result.file, result.ok);
+        }
+    }
+
+    /**
+     * Verbucht eine fertige Datei. Eine fehlerhafte kommt in die Resend-Queue, und die Zahl der noch offenen
+     * Resends wird angepasst.
+     */
+    private void fileDone(FileBuilder file, boolean ok) {
+        if (ok) {
+            if (file.afterEnumeratorDone) {
+                this.openResends--;
+                assert this.openResends >= 0;
+            }
+        } else {
+            this.toResend.add(file.index);
+            if (!file.afterEnumeratorDone) {
+                this.openResends++;
+            }
         }
     }
 
@@ -131,9 +736,46 @@ public class Receiver implements Runnable {
         return orig.getParent().getChild(orig.getName() + TMP_SUFFIX);
     }
 
-    private void renameToRealName(int index, FilePath tmpFile) throws IOException {
+    /**
+     * Liefert die Datei, unter der die Tempdatei eines fehlgeschlagenen Versuchs bis zur Wiederholung aufgehoben
+     * wird.
+     */
+    private FilePath getResendFileFor(int index) {
+        final FilePath orig = this.filePaths.get(index).getFilePath();
+        return orig.getParent().getChild(orig.getName() + REGION_RESEND_SUFFIX);
+    }
+
+    private void renameToRealName(int index, final FilePath tmpFile, final byte[] digest) throws IOException {
+        final FilePath target = this.filePaths.get(index).getFilePath();
         tmpFile.setLastChange(this.filePaths.get(index).getSourceChangeTime());
-        tmpFile.renameTo(this.filePaths.get(index).getFilePath().getName());
+        this.commitStage.add(new CommitStage.PendingFile(tmpFile) {
+            @Override
+            void commit() throws IOException {
+                tmpFile.renameTo(target.getName());
+                Receiver.this.updateCaches(target, digest);
+            }
+        });
+    }
+
+    private void finishInPlace(int index, final byte[] digest) throws IOException {
+        final FilePath target = this.filePaths.get(index).getFilePath();
+        target.setLastChange(this.filePaths.get(index).getSourceChangeTime());
+        this.commitStage.add(new CommitStage.PendingFile(target) {
+            @Override
+            void commit() throws IOException {
+                Receiver.this.updateCaches(target, digest);
+            }
+        });
+    }
+
+    private void updateCaches(FilePath target, byte[] digest) {
+        if (this.signatureCache != null) {
+            this.signatureCache.invalidate(target);
+        }
+        if (this.digestCache != null) {
+            final FilePath written = target.getParent().getChild(target.getName());
+            this.digestCache.store(written, written.getSize(), written.getLastChange(), digest);
+        }
     }
 
 }
@@ -23,7 +23,12 @@ public enum ReceiverCommand {
     RAW_DATA(2),
     COPY_BLOCK(3),
     FILE_END(4),
-    ENUMERATOR_DONE(5);
+    ENUMERATOR_DONE(5),
+    COPY_RANGE(6),
+    FINE_SIGNATURE_REQUEST(7),
+    REGION_RESEND_START(8),
+    ZERO_RUN(9),
+    UNCHANGED_FILE_END(10);
 
     private final byte code;
 
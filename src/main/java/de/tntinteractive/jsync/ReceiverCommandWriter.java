@@ -19,32 +19,167 @@
 package de.tntinteractive.jsync;
 
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 
 public class ReceiverCommandWriter {
 
     private final DataOutputStream output;
+    private final byte[] copyBuffer = new byte[64 * 1024];
+    private boolean zeroRuns;
 
     public ReceiverCommandWriter(DataOutputStream target) {
         this.output = target;
     }
 
+    /**
+     * Wenn gesetzt, werden Folgen von Nullen in den Rohdaten als ZERO_RUN geschickt (siehe {@link Features#SPARSE}).
+     * Gesucht wird in Stücken von {@link ZeroRuns#CHUNK_SIZE} Bytes ab dem Anfang der jeweiligen Rohdaten.
+     */
+    public void setZeroRuns(boolean zeroRuns) {
+        this.zeroRuns = zeroRuns;
+    }
+
+    public boolean isZeroRuns() {
+        return this.zeroRuns;
+    }
+
     public void writeFileStart(int index) throws IOException {
         this.output.writeByte(ReceiverCommand.FILE_START.getCode());
         this.output.writeInt(index);
     }
 
+    /**
+     * Wie {@link #writeFileStart(int)}, aber kopiert wird danach aus der Tempdatei des fehlgeschlagenen
+     * Versuchs statt aus der alten Zieldatei.
+     */
+    public void writeRegionResendStart(int index) throws IOException {
+        this.output.writeByte(ReceiverCommand.REGION_RESEND_START.getCode());
+        this.output.writeInt(index);
+    }
+
     public void writeFileEnd(byte[] hash) throws IOException {
         this.output.writeByte(ReceiverCommand.FILE_END.getCode());
         this.output.write(hash);
     }
 
+    /**
+     * Ersetzt Kopierbefehl und {@link #writeFileEnd(byte[])}, wenn die ganze Datei der Reihe nach aus dem Anfang
+     * der Zieldatei kopiert werden kann.
+     * @param length Länge der Datei.
+     */
+    public void writeUnchangedFileEnd(long length, byte[] hash) throws IOException {
+        this.output.writeByte(ReceiverCommand.UNCHANGED_FILE_END.getCode());
+        this.output.writeLong(length);
+        this.output.write(hash);
+    }
+
     public void writeRawData(int length, InputStream data) throws IOException {
+        if (this.zeroRuns) {
+            final ByteBuffer wrapped = ByteBuffer.wrap(this.copyBuffer);
+            int remaining = length;
+            while (remaining > 0) {
+                final int chunk = data.read(this.copyBuffer, 0, Math.min(remaining, this.copyBuffer.length));
+                if (chunk < 0) {
+                    throw new EOFException("source ended unexpectedly, " + remaining + " bytes missing");
+                }
+                this.writeWithZeroRuns(wrapped, 0, chunk);
+                remaining -= chunk;
+            }
+            return;
+        }
+        this.writeRawDataHeader(length);
+        StreamHelper.copy(data, this.output, length);
+    }
+
+    /**
+     * Schreibt nur den Anfang eines RAW_DATA-Befehls. Die Daten müssen danach auf anderem Weg
+     * (z.B. direkt in den Socket-Kanal) geschrieben werden.
+     */
+    public void writeRawDataHeader(int length) throws IOException {
         this.output.writeByte(ReceiverCommand.RAW_DATA.getCode());
         this.output.writeInt(length);
-        StreamHelper.copy(data, this.output, length);
+    }
+
+    public void writeRawData(byte[] data, int offset, int length) throws IOException {
+        if (this.zeroRuns) {
+            this.writeWithZeroRuns(ByteBuffer.wrap(data), offset, length);
+            return;
+        }
+        this.output.writeByte(ReceiverCommand.RAW_DATA.getCode());
+        this.output.writeInt(length);
+        this.output.write(data, offset, length);
+    }
+
+    /**
+     * Schreibt Rohdaten aus einem (evtl. memory-mapped) Puffer.
+     */
+    public void writeRawData(ByteBuffer data, int offset, int length) throws IOException {
+        if (this.zeroRuns) {
+            this.writeWithZeroRuns(data, offset, length);
+            return;
+        }
+        this.writePlainRawData(data, offset, length);
+    }
+
+    /**
+     * Schickt die Rohdaten, aber Folgen von Nullen ab einem ganzen Stück nur mit ihrer Länge.
+     */
+    private void writeWithZeroRuns(ByteBuffer data, int offset, int length) throws IOException {
+        final int end = offset + length;
+        int literalStart = offset;
+        int pos = offset;
+        while (pos + ZeroRuns.CHUNK_SIZE <= end) {
+            if (!ZeroRuns.isZero(data, pos, ZeroRuns.CHUNK_SIZE)) {
+                pos += ZeroRuns.CHUNK_SIZE;
+                continue;
+            }
+            int runEnd = pos + ZeroRuns.CHUNK_SIZE;
+            while (runEnd + ZeroRuns.CHUNK_SIZE <= end && ZeroRuns.isZero(data, runEnd, ZeroRuns.CHUNK_SIZE)) {
+                runEnd += ZeroRuns.CHUNK_SIZE;
+            }
+            //auch die Nullen im angebrochenen Stück danach gehören noch dazu
+            while (runEnd < end && data.get(runEnd) == 0) {
+                runEnd++;
+            }
+            if (pos > literalStart) {
+                this.writePlainRawData(data, literalStart, pos - literalStart);
+            }
+            this.writeZeroRun(runEnd - pos);
+            pos = runEnd;
+            literalStart = runEnd;
+        }
+        if (end > literalStart) {
+            this.writePlainRawData(data, literalStart, end - literalStart);
+        }
+    }
+
+    private void writePlainRawData(ByteBuffer data, int offset, int length) throws IOException {
+        this.output.writeByte(ReceiverCommand.RAW_DATA.getCode());
+        this.output.writeInt(length);
+        if (data.hasArray()) {
+            this.output.write(data.array(), data.arrayOffset() + offset, length);
+            return;
+        }
+        final ByteBuffer part = data.duplicate();
+        part.limit(offset + length);
+        part.position(offset);
+        while (part.hasRemaining()) {
+            final int chunk = Math.min(part.remaining(), this.copyBuffer.length);
+            part.get(this.copyBuffer, 0, chunk);
+            this.output.write(this.copyBuffer, 0, chunk);
+        }
+    }
+
+    /**
+     * Die nächsten Bytes der Datei sind Nullen.
+     */
+    public void writeZeroRun(long length) throws IOException {
+        this.output.writeByte(ReceiverCommand.ZERO_RUN.getCode());
+        this.output.writeLong(length);
     }
 
     public void writeCopyBlock(long startOffset, short length) throws IOException {
@@ -53,10 +188,36 @@ public class ReceiverCommandWriter {
         this.output.writeShort(length);
     }
 
+    /**
+     * Wie {@link #writeCopyBlock(long, short)}, aber für lange Bereiche (mehrere aufeinanderfolgende
+     * oder sehr große Blöcke).
+     */
+    public void writeCopyRange(long startOffset, long length) throws IOException {
+        this.output.writeByte(ReceiverCommand.COPY_RANGE.getCode());
+        this.output.writeLong(startOffset);
+        this.output.writeLong(length);
+    }
+
+    /**
+     * Fordert für die Superblöcke, die beim groben Abgleich nicht gefunden wurden, die feinen Signaturen an.
+     */
+    public void writeFineSignatureRequest(int index, FineSignatureRequest request) throws IOException {
+        this.output.writeByte(ReceiverCommand.FINE_SIGNATURE_REQUEST.getCode());
+        this.output.writeInt(index);
+        this.output.writeInt(request.getBlockSize());
+        this.output.writeInt(request.getSuperBlockSize());
+        this.output.writeInt(request.getSuperBlockCount());
+        this.output.write(request.getMatchedBits());
+    }
+
     public void writeEnumeratorDone() throws IOException {
         this.output.writeByte(ReceiverCommand.ENUMERATOR_DONE.getCode());
     }
 
+    public void flush() throws IOException {
+        this.output.flush();
+    }
+
     public void close() {
         try {
             this.output.close();
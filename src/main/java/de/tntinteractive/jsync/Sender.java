@@ -18,18 +18,16 @@
  */
 package de.tntinteractive.jsync;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -38,12 +36,102 @@ import java.util.Map;
  */
 public class Sender implements Runnable {
 
-    private static final int RAW_DATA_BUFFER_LIMIT = 8096;
+    private static final int ZERO_COPY_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Nimmt beim Abgleich der Superblöcke statt eines Diffs nur die gefundenen Bereiche auf.
+     */
+    private static final class MatchRecorder extends ReceiverCommandWriter {
+
+        private long[] matches = new long[3 * 16];
+        private int size;
+        private long sourcePos;
+
+        public MatchRecorder() {
+            super(new DataOutputStream(new ByteArrayOutputStream()));
+        }
+
+        public void reset() {
+            this.size = 0;
+            this.sourcePos = 0;
+        }
+
+        /**
+         * Liefert die gefundenen Bereiche im Format für
+         * {@link DeltaScanner#scanMappedWithKnownMatches(RandomAccessInput, long, int, int, long[], byte[])}.
+         */
+        public long[] getMatches() {
+            return Arrays.copyOf(this.matches, this.size);
+        }
+
+        @Override
+        public void writeRawData(byte[] data, int offset, int length) {
+            this.sourcePos += length;
+        }
+
+        @Override
+        public void writeRawData(ByteBuffer data, int offset, int length) {
+            this.sourcePos += length;
+        }
+
+        @Override
+        public void writeCopyBlock(long startOffset, short length) {
+            this.add(startOffset, length);
+        }
+
+        @Override
+        public void writeCopyRange(long startOffset, long length) {
+            this.add(startOffset, length);
+        }
+
+        private void add(long targetOffset, long length) {
+            if (this.size == this.matches.length) {
+                this.matches = Arrays.copyOf(this.matches, 2 * this.size);
+            }
+            this.matches[this.size++] = this.sourcePos;
+            this.matches[this.size++] = targetOffset;
+            this.matches[this.size++] = length;
+            this.sourcePos += length;
+        }
+
+    }
+
+    /**
+     * Die beim Abgleich der Superblöcke gefundenen Bereiche einer Datei, zusammen mit dem dabei berechneten Hash
+     * der gesamten Datei. Damit müssen die gefundenen Bereiche in der zweiten Phase nicht noch einmal gelesen
+     * werden.
+     */
+    private static final class KnownMatches {
+
+        private final long[] matches;
+        private final byte[] fileDigest;
+
+        public KnownMatches(long[] matches, byte[] fileDigest) {
+            this.matches = matches;
+            this.fileDigest = fileDigest;
+        }
+
+    }
 
     private final DataInputStream source;
     private final FastConcurrentList<FilePath> filePaths;
     private final ReceiverCommandWriter writer;
     private final ExceptionBuffer exc;
+    private final SignatureIndex hashes = new SignatureIndex();
+    private final DeltaScanner scanner;
+    private final MatchRecorder superBlockMatches = new MatchRecorder();
+    private final DeltaScanner superBlockScanner;
+    private final Map<Integer, KnownMatches> knownMatches = new HashMap<Integer, KnownMatches>();
+
+    private final MD4 fileDigest = new MD4();
+    private final MD4 segmentDigest = new MD4();
+    private boolean memoryMapped;
+    private boolean pipelined;
+    private WritableByteChannel targetChannel;
+
+    private InputStream pipelinedStream;
+    private RandomAccessInput pipelinedInput;
+    private boolean prefixMatching;
 
     private int count;
     private int countFully;
@@ -53,26 +141,58 @@ public class Sender implements Runnable {
         this.filePaths = filePaths;
         this.writer = new ReceiverCommandWriter(new DataOutputStream(target));
         this.exc = exc;
+        this.scanner = new DeltaScanner(this.hashes, this.writer);
+        this.superBlockScanner = new DeltaScanner(this.hashes, this.superBlockMatches);
     }
 
-    private static class BlockInfo {
+    /**
+     * Wenn gesetzt, werden die Quelldateien abschnittsweise memory-mapped gelesen statt über Streams.
+     */
+    public void setMemoryMapped(final boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
 
-        private final byte[] strongHash;
-        private final int blockNumber;
+    /**
+     * Wenn gesetzt, wird die Quelldatei schon beim Start der Datei geöffnet und angelesen, und solange die Blöcke
+     * der Reihe nach passen, werden sie schon während des Empfangs der restlichen Signaturen abgeglichen.
+     * Das lohnt sich vor allem bei Dateien, an die nur angehängt wird.
+     */
+    public void setPipelined(final boolean pipelined) {
+        this.pipelined = pipelined;
+    }
 
-        public BlockInfo(final byte[] strongHash, final int blockNumber) {
-            this.strongHash = strongHash;
-            this.blockNumber = blockNumber;
-        }
+    /**
+     * Setzt den Kanal, der dieselbe Verbindung wie der Ausgabestream darstellt (z.B. den SocketChannel).
+     * Wenn er gesetzt ist, werden vollständig zu übertragende Dateien ohne Umweg über den Java-Heap
+     * in diesen Kanal kopiert.
+     */
+    public void setTargetChannel(final WritableByteChannel targetChannel) {
+        this.targetChannel = targetChannel;
+    }
 
-        public boolean matches(final byte[] currentMD4) {
-            return Arrays.equals(this.strongHash, currentMD4);
-        }
+    /**
+     * Wenn gesetzt, ändert der {@link Receiver} bestehende Zieldateien direkt. Dann dürfen nur Blöcke kopiert
+     * werden, die dort noch nicht überschrieben sein können.
+     */
+    public void setInPlace(final boolean inPlace) {
+        this.scanner.setTargetUpdatedInPlace(inPlace);
+        this.superBlockScanner.setTargetUpdatedInPlace(inPlace);
+    }
 
-        public void writeCopyCommand(final ReceiverCommandWriter writer, final int blockSize) throws IOException {
-            writer.writeCopyBlock(this.blockNumber * ((long) blockSize), (short) blockSize);
-        }
+    /**
+     * Wenn gesetzt, wird eine Datei, die sich beim Abgleich als unverändert am Anfang der Zieldatei herausstellt,
+     * nicht mit einem Kopierbefehl geschickt, sondern nur als unverändert gemeldet (siehe {@link Features#UNCHANGED}).
+     */
+    public void setSkipUnchanged(final boolean skipUnchanged) {
+        this.scanner.setDetectUnchanged(skipUnchanged);
+    }
 
+    /**
+     * Wenn gesetzt, werden Folgen von Nullen in den Rohdaten nur mit ihrer Länge geschickt (siehe
+     * {@link Features#SPARSE}).
+     */
+    public void setSparse(final boolean sparse) {
+        this.writer.setZeroRuns(sparse);
     }
 
     @Override
@@ -82,8 +202,10 @@ public class Sender implements Runnable {
             int index = -1;
             int strongHashSize = -1;
             int blockSize = -1;
-            final Map<Integer, List<BlockInfo>> hashes = new HashMap<Integer, List<BlockInfo>>();
+            byte[] strongHash = new byte[0];
             int blockNumber = -1;
+            int fineBlockSize = -1;
+            boolean superBlockPhase = false;
 
             while (!Thread.interrupted()) {
                 final int command = this.source.read();
@@ -96,28 +218,71 @@ public class Sender implements Runnable {
                 if (command == SenderCommand.FILE_START.getCode()) {
                     index = this.source.readInt();
                     strongHashSize = this.source.readByte();
-                    blockSize = this.source.readShort();
+                    blockSize = this.source.readInt();
                     blockNumber = 0;
-                    hashes.clear();
-                } else if (command == SenderCommand.HASH.getCode()) {
-                    final Integer rollingHash = this.source.readInt();
-                    List<BlockInfo> blocksForHash = hashes.get(rollingHash);
-                    if (blocksForHash == null) {
-                        blocksForHash = new ArrayList<BlockInfo>(1);
-                        hashes.put(rollingHash, blocksForHash);
+                    superBlockPhase = false;
+                    if (strongHash.length != strongHashSize) {
+                        strongHash = new byte[strongHashSize];
+                    }
+                    this.hashes.reset(strongHashSize, this.estimateBlockCount(index, blockSize));
+                    if (this.pipelined && blockSize > 0 && !this.knownMatches.containsKey(index)) {
+                        this.beginPipelined(index, blockSize, strongHashSize);
+                    }
+                } else if (command == SenderCommand.SUPER_BLOCK_FILE_START.getCode()) {
+                    //erste Phase für eine große Datei: es kommen erst mal nur die Signaturen der Superblöcke
+                    index = this.source.readInt();
+                    strongHashSize = this.source.readByte();
+                    fineBlockSize = this.source.readInt();
+                    blockSize = this.source.readInt();
+                    blockNumber = 0;
+                    superBlockPhase = true;
+                    if (strongHash.length != strongHashSize) {
+                        strongHash = new byte[strongHashSize];
                     }
-                    final byte[] strongHash = new byte[strongHashSize];
+                    this.hashes.reset(strongHashSize, this.estimateBlockCount(index, blockSize));
+                } else if (command == SenderCommand.SKIP_BLOCKS.getCode()) {
+                    blockNumber += this.source.readInt();
+                } else if (command == SenderCommand.HASH.getCode()) {
+                    final int rollingHash = this.source.readInt();
                     this.source.readFully(strongHash);
-                    blocksForHash.add(new BlockInfo(strongHash, blockNumber));
+                    this.hashes.add(rollingHash, strongHash, blockNumber);
+                    if (this.prefixMatching) {
+                        this.prefixMatching = this.scanner.matchNextBlockInPlace(blockNumber, rollingHash, strongHash);
+                    }
                     blockNumber++;
+                } else if (command == SenderCommand.TAIL_HASH.getCode()) {
+                    final int tailLength = this.source.readInt();
+                    final int rollingHash = this.source.readInt();
+                    this.source.readFully(strongHash);
+                    this.hashes.setTail(blockNumber, tailLength, rollingHash, strongHash);
+                } else if (command == SenderCommand.FILE_END.getCode() && superBlockPhase) {
+                    superBlockPhase = false;
+                    final int superBlockCount = blockNumber + (this.hashes.hasTail() ? 1 : 0);
+                    if (this.matchSuperBlocks(index, fineBlockSize, blockSize, superBlockCount, strongHashSize)) {
+                        this.count++;
+                    }
                 } else if (command == SenderCommand.FILE_END.getCode()) {
-                    if (hashes.isEmpty()) {
+                    final KnownMatches matches = this.knownMatches.remove(index);
+                    if (matches != null) {
+                        this.copyFileUsingKnownMatches(index, blockSize, strongHashSize, matches);
+                    } else if (this.isPipelinedFileOpen()) {
+                        if (this.hashes.isEmpty() && !this.hashes.hasTail()) {
+                            this.countFully++;
+                        }
+                        this.finishPipelined();
+                    } else if (this.hashes.isEmpty() && !this.hashes.hasTail()) {
                         this.copyFileFully(index);
                         this.countFully++;
                     } else {
-                        this.copyFileUsingDiff(index, hashes, blockSize, strongHashSize);
+                        this.copyFileUsingDiff(index, blockSize, strongHashSize);
                     }
                     this.count++;
+                } else if (command == SenderCommand.REGION_RESEND.getCode()) {
+                    final int resendIndex = this.source.readInt();
+                    final int segmentSize = this.source.readInt();
+                    final byte[] segmentDigests = new byte[this.source.readInt() * MD4.DIGEST_LENGTH];
+                    this.source.readFully(segmentDigests);
+                    this.resendRegions(resendIndex, segmentSize, segmentDigests);
                 } else if (command == SenderCommand.ENUMERATOR_DONE.getCode()) {
                     this.writer.writeEnumeratorDone();
                 } else if (command == SenderCommand.EVERYTHING_OK.getCode()) {
@@ -131,82 +296,239 @@ public class Sender implements Runnable {
         } catch (final IOException e) {
             this.exc.addThrowable(e);
         } finally {
+            this.closePipelinedFile();
             this.writer.close();
         }
     }
 
-    private void copyFileUsingDiff(final int index, final Map<Integer, List<BlockInfo>> hashes, final int blockSize,
-            final int strongHashSize) throws IOException {
+    private boolean isPipelinedFileOpen() {
+        return this.pipelinedStream != null || this.pipelinedInput != null;
+    }
+
+    /**
+     * Öffnet die Quelldatei schon beim Start der Datei, damit der Abgleich der ersten Blöcke beginnen kann,
+     * während die restlichen Signaturen noch übertragen werden.
+     */
+    private void beginPipelined(final int index, final int blockSize, final int strongHashSize) throws IOException {
         final FilePath file = this.filePaths.get(index);
-        final InputStream fileStream = file.openInputStream();
+        if (this.memoryMapped) {
+            this.pipelinedInput = file.openRandomAccessInput();
+            this.writer.writeFileStart(index);
+            this.scanner.beginMapped(this.pipelinedInput, file.getSize(), blockSize, strongHashSize);
+        } else {
+            this.pipelinedStream = file.openInputStream();
+            this.writer.writeFileStart(index);
+            this.scanner.begin(this.pipelinedStream, blockSize, strongHashSize);
+        }
+        this.prefixMatching = true;
+    }
+
+    private void finishPipelined() throws IOException {
+        try {
+            this.writeDiffEnd(this.scanner.finish());
+        } finally {
+            this.closePipelinedFile();
+        }
+    }
+
+    private void closePipelinedFile() {
+        this.prefixMatching = false;
+        try {
+            if (this.pipelinedStream != null) {
+                this.pipelinedStream.close();
+            }
+            if (this.pipelinedInput != null) {
+                this.pipelinedInput.close();
+            }
+        } catch (final IOException e) {
+            this.exc.addThrowable(e);
+        } finally {
+            this.pipelinedStream = null;
+            this.pipelinedInput = null;
+        }
+    }
+
+    /**
+     * Sucht die Superblöcke der Zieldatei in der Quelldatei. Die gefundenen Bereiche werden bis zur zweiten Phase
+     * aufgehoben, für die restlichen Superblöcke werden über den {@link Receiver} die feinen Signaturen beim
+     * {@link Generator} angefordert.
+     * @return true, wenn alle Superblöcke gefunden wurden und die Datei deshalb schon fertig verschickt ist.
+     */
+    private boolean matchSuperBlocks(final int index, final int fineBlockSize, final int superBlockSize,
+            final int superBlockCount, final int strongHashSize) throws IOException {
+        final FilePath file = this.filePaths.get(index);
+        final RandomAccessInput input = file.openRandomAccessInput();
+        final byte[] fileDigest;
+        try {
+            this.superBlockMatches.reset();
+            fileDigest = this.superBlockScanner.scanMapped(input, file.getSize(), superBlockSize, strongHashSize);
+        } finally {
+            input.close();
+        }
+        final long[] matches = this.superBlockMatches.getMatches();
+
+        final byte[] matchedBits = new byte[FineSignatureRequest.bitsLength(superBlockCount)];
+        int matchedCount = 0;
+        for (int i = 0; i < matches.length; i += 3) {
+            final long first = matches[i + 1] / superBlockSize;
+            final long last = (matches[i + 1] + matches[i + 2] - 1) / superBlockSize;
+            for (long j = first; j <= last; j++) {
+                if ((matchedBits[(int) (j / 8)] & (1 << (j % 8))) == 0) {
+                    matchedBits[(int) (j / 8)] |= 1 << (j % 8);
+                    matchedCount++;
+                }
+            }
+        }
+
+        if (matchedCount == superBlockCount) {
+            //die Zieldatei steckt komplett in der Quelldatei, feine Signaturen werden nicht gebraucht
+            this.hashes.reset(strongHashSize, 0);
+            this.copyFileUsingKnownMatches(index, fineBlockSize, strongHashSize,
+                    new KnownMatches(matches, fileDigest));
+            return true;
+        }
+        this.knownMatches.put(index, new KnownMatches(matches, fileDigest));
+        this.writer.writeFineSignatureRequest(index,
+                new FineSignatureRequest(fineBlockSize, superBlockSize, superBlockCount, matchedBits));
+        return false;
+    }
+
+    private void copyFileUsingKnownMatches(final int index, final int blockSize, final int strongHashSize,
+            final KnownMatches matches) throws IOException {
+        final FilePath file = this.filePaths.get(index);
+        final RandomAccessInput input = file.openRandomAccessInput();
         try {
-            final MD4InputStream md4stream = new MD4InputStream(fileStream);
-            final BufferedInputStream bufferedStream = new BufferedInputStream(md4stream);
             this.writer.writeFileStart(index);
+            this.writeDiffEnd(this.scanner.scanMappedWithKnownMatches(
+                    input, file.getSize(), blockSize, strongHashSize, matches.matches, matches.fileDigest));
+        } finally {
+            input.close();
+        }
+    }
 
-            final Checksum32 rollingChecksum = new Checksum32();
-            final ByteArrayOutputStream rawDataBuffer = new ByteArrayOutputStream();
-            final byte[] block = new byte[blockSize];
-            StreamHelper.readFully(bufferedStream, block);
-            rollingChecksum.check(block, 0, block.length);
-
-            outerLoop: while (true) {
-                final int currentChecksum = rollingChecksum.getValue();
-                final List<BlockInfo> blocksWithChecksum = hashes.get(currentChecksum);
-                if (blocksWithChecksum != null) {
-                    rollingChecksum.copyBlock(block);
-                    final byte[] currentMD4 = MD4.determineFor(block, strongHashSize);
-                    for (final BlockInfo b : blocksWithChecksum) {
-                        if (b.matches(currentMD4)) {
-                            if (rawDataBuffer.size() > 0) {
-                                this.flushRawData(rawDataBuffer);
-                            }
-                            b.writeCopyCommand(this.writer, blockSize);
-                            final int readCount = StreamHelper.readFully(bufferedStream, block);
-                            if (readCount < block.length) {
-                                //EOF
-                                rawDataBuffer.write(block, 0, readCount);
-                                break outerLoop;
-                            } else {
-                                rollingChecksum.check(block, 0, block.length);
-                                continue outerLoop;
-                            }
-                        }
+    /**
+     * Schickt die Datei nach einer fehlgeschlagenen Prüfung erneut. Abschnitte, deren Hash zu dem des gleichen
+     * Abschnitts in der Tempdatei beim Empfänger passt, werden von dort kopiert, nur die anderen werden als
+     * Rohdaten geschickt.
+     */
+    private void resendRegions(final int index, final int segmentSize, final byte[] targetDigests)
+        throws IOException {
+        final FilePath file = this.filePaths.get(index);
+        final RandomAccessInput input = file.openRandomAccessInput();
+        try {
+            this.writer.writeRegionResendStart(index);
+            this.fileDigest.engineReset();
+            final ByteBuffer segment = ByteBuffer.allocate(segmentSize);
+            final byte[] digest = new byte[MD4.DIGEST_LENGTH];
+            long offset = 0;
+            long copyStart = 0;
+            long copyLength = 0;
+            for (int i = 0; true; i++) {
+                segment.clear();
+                while (segment.hasRemaining()) {
+                    if (input.read(offset + segment.position(), segment) < 0) {
+                        break;
                     }
                 }
-
-                //wenn er hier hinkommt, dann hat er kein Match gefunden
-                final int nextByte = bufferedStream.read();
-                if (nextByte < 0) {
-                    //EOF
-                    rollingChecksum.copyBlock(block);
-                    rawDataBuffer.write(block);
-                    break outerLoop;
+                final int length = segment.position();
+                if (length == 0) {
+                    break;
+                }
+                this.fileDigest.engineUpdate(segment.array(), 0, length);
+                this.segmentDigest.determineInto(segment.array(), 0, length, digest);
+                final int digestOffset = i * MD4.DIGEST_LENGTH;
+                if (digestOffset < targetDigests.length && Arrays.equals(digest,
+                        Arrays.copyOfRange(targetDigests, digestOffset, digestOffset + MD4.DIGEST_LENGTH))) {
+                    //aufeinanderfolgende passende Abschnitte werden mit einem Befehl kopiert
+                    if (copyLength == 0) {
+                        copyStart = offset;
+                    }
+                    copyLength += length;
+                } else {
+                    if (copyLength > 0) {
+                        this.writer.writeCopyRange(copyStart, copyLength);
+                        copyLength = 0;
+                    }
+                    this.writer.writeRawData(segment.array(), 0, length);
                 }
-                rawDataBuffer.write(rollingChecksum.roll((byte) nextByte));
-                if (rawDataBuffer.size() > RAW_DATA_BUFFER_LIMIT) {
-                    this.flushRawData(rawDataBuffer);
+                offset += length;
+                if (length < segmentSize) {
+                    break;
                 }
             }
-
-            if (rawDataBuffer.size() > 0) {
-                this.flushRawData(rawDataBuffer);
+            if (copyLength > 0) {
+                this.writer.writeCopyRange(copyStart, copyLength);
             }
+            this.writer.writeFileEnd(this.fileDigest.engineDigest());
+        } finally {
+            input.close();
+        }
+    }
 
-            this.writer.writeFileEnd(md4stream.getDigest());
+    /**
+     * Schätzt die Anzahl der Blöcke, die für die Datei geschickt werden, anhand der Größe der Quelldatei ab.
+     * Die Zieldatei ist normalerweise ähnlich groß, und es ist nicht schlimm, wenn die Schätzung daneben liegt.
+     */
+    private int estimateBlockCount(final int index, final int blockSize) {
+        if (blockSize <= 0) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE / 2, this.filePaths.get(index).getSize() / blockSize + 1);
+    }
+
+    private void copyFileUsingDiff(final int index, final int blockSize, final int strongHashSize) throws IOException {
+        final FilePath file = this.filePaths.get(index);
+        if (this.memoryMapped) {
+            final RandomAccessInput input = file.openRandomAccessInput();
+            try {
+                this.writer.writeFileStart(index);
+                final byte[] digest = this.scanner.scanMapped(input, file.getSize(), blockSize, strongHashSize);
+                this.writeDiffEnd(digest);
+            } finally {
+                input.close();
+            }
+            return;
+        }
+        final InputStream fileStream = file.openInputStream();
+        try {
+            this.writer.writeFileStart(index);
+            final byte[] digest = this.scanner.scan(fileStream, blockSize, strongHashSize);
+            this.writeDiffEnd(digest);
         } finally {
             fileStream.close();
         }
     }
 
-    private void flushRawData(final ByteArrayOutputStream rawDataBuffer) throws IOException {
-        final byte[] data = rawDataBuffer.toByteArray();
-        this.writer.writeRawData(data.length, new ByteArrayInputStream(data));
-        rawDataBuffer.reset();
+    /**
+     * Schließt eine Datei nach dem Abgleich ab. War sie am Anfang der Zieldatei unverändert, bekommt der
+     * {@link Receiver} das mit einem eigenen Befehl mitgeteilt, statt sie neu zu schreiben.
+     */
+    private void writeDiffEnd(final byte[] digest) throws IOException {
+        final long unchangedLength = this.scanner.getUnchangedLength();
+        if (unchangedLength >= 0) {
+            this.writer.writeUnchangedFileEnd(unchangedLength, digest);
+        } else {
+            this.writer.writeFileEnd(digest);
+        }
     }
 
     private void copyFileFully(final int index) throws IOException {
         final FilePath file = this.filePaths.get(index);
+        if (this.targetChannel != null && !this.writer.isZeroRuns()) {
+            //transferTo geht an der Suche nach Nullen vorbei, die Daten werden dann normal gelesen
+            this.copyFileZeroCopy(index, file);
+            return;
+        }
+        if (this.memoryMapped) {
+            final RandomAccessInput input = file.openRandomAccessInput();
+            try {
+                this.writer.writeFileStart(index);
+                this.writer.writeFileEnd(this.scanner.copyMapped(input, file.getSize()));
+            } finally {
+                input.close();
+            }
+            return;
+        }
         final InputStream fileStream = file.openInputStream();
         try {
             final MD4InputStream md4stream = new MD4InputStream(fileStream);
@@ -223,4 +545,41 @@ public class Sender implements Runnable {
         }
     }
 
+    /**
+     * Schickt die Datei per transferTo direkt in den Zielkanal. Der Hash wird danach abschnittsweise über eine
+     * memory-mapped Sicht bestimmt, die Daten sind dann normalerweise noch im Cache des Betriebssystems.
+     */
+    private void copyFileZeroCopy(final int index, final FilePath file) throws IOException {
+        final RandomAccessInput input = file.openRandomAccessInput();
+        try {
+            this.writer.writeFileStart(index);
+            this.fileDigest.engineReset();
+            final long size = file.getSize();
+            long offset = 0;
+            while (offset < size) {
+                final int inThisChunk = (int) Math.min(size - offset, Integer.MAX_VALUE);
+                this.writer.writeRawDataHeader(inThisChunk);
+                this.writer.flush();
+                final long chunkEnd = offset + inThisChunk;
+                while (offset < chunkEnd) {
+                    final int inThisSegment = (int) Math.min(chunkEnd - offset, ZERO_COPY_SEGMENT_SIZE);
+                    long transferred = 0;
+                    while (transferred < inThisSegment) {
+                        final long count = input.transferTo(
+                                offset + transferred, inThisSegment - transferred, this.targetChannel);
+                        if (count <= 0) {
+                            throw new IOException("could not transfer " + file.getName() + ", was it changed?");
+                        }
+                        transferred += count;
+                    }
+                    this.fileDigest.engineUpdate(input.map(offset, inThisSegment), 0, inThisSegment);
+                    offset += inThisSegment;
+                }
+            }
+            this.writer.writeFileEnd(this.fileDigest.engineDigest());
+        } finally {
+            input.close();
+        }
+    }
+
 }
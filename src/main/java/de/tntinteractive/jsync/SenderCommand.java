@@ -23,7 +23,11 @@ public enum SenderCommand {
     HASH(2),
     FILE_END(3),
     ENUMERATOR_DONE(4),
-    EVERYTHING_OK(5);
+    EVERYTHING_OK(5),
+    TAIL_HASH(6),
+    SUPER_BLOCK_FILE_START(7),
+    SKIP_BLOCKS(8),
+    REGION_RESEND(9);
 
     private final byte code;
 
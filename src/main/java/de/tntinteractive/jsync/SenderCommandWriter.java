@@ -32,11 +32,24 @@ class SenderCommandWriter {
 
     void writeFileStart(final int index, final int strongHashSize, final int blockSize) throws IOException {
         assert strongHashSize <= Byte.MAX_VALUE;
-        assert blockSize <= Short.MAX_VALUE;
         this.output.writeByte(SenderCommand.FILE_START.getCode());
         this.output.writeInt(index);
         this.output.writeByte(strongHashSize);
-        this.output.writeShort(blockSize);
+        this.output.writeInt(blockSize);
+    }
+
+    /**
+     * Beginnt die erste Phase für eine Datei, die über Superblöcke abgeglichen wird. Danach folgen die Signaturen
+     * der Superblöcke (evtl. mit einem unvollständigen letzten) und das Dateiende.
+     */
+    void writeSuperBlockFileStart(final int index, final int strongHashSize, final int blockSize,
+            final int superBlockSize) throws IOException {
+        assert strongHashSize <= Byte.MAX_VALUE;
+        this.output.writeByte(SenderCommand.SUPER_BLOCK_FILE_START.getCode());
+        this.output.writeInt(index);
+        this.output.writeByte(strongHashSize);
+        this.output.writeInt(blockSize);
+        this.output.writeInt(superBlockSize);
     }
 
     void writeHashes(final int rollingHash, final byte[] strongHash) throws IOException {
@@ -45,6 +58,38 @@ class SenderCommandWriter {
         this.output.write(strongHash);
     }
 
+    /**
+     * Schreibt die Signatur des unvollständigen letzten Blocks. Sie kommt nach allen vollständigen Blöcken.
+     */
+    void writeTailHash(final int length, final int rollingHash, final byte[] strongHash) throws IOException {
+        this.output.writeByte(SenderCommand.TAIL_HASH.getCode());
+        this.output.writeInt(length);
+        this.output.writeInt(rollingHash);
+        this.output.write(strongHash);
+    }
+
+    /**
+     * Überspringt Blocknummern, für die keine Signaturen geschickt werden.
+     */
+    void writeSkipBlocks(final int count) throws IOException {
+        this.output.writeByte(SenderCommand.SKIP_BLOCKS.getCode());
+        this.output.writeInt(count);
+    }
+
+    /**
+     * Fordert nach einer fehlgeschlagenen Prüfung nur die Abschnitte der Datei neu an, die nicht zu den
+     * übergebenen Hashes der beim Empfänger liegenden Tempdatei passen.
+     * @param segmentDigests Die vollständigen MD4-Hashes der Abschnitte, hintereinander.
+     */
+    void writeRegionResend(final int index, final int segmentSize, final byte[] segmentDigests)
+        throws IOException {
+        this.output.writeByte(SenderCommand.REGION_RESEND.getCode());
+        this.output.writeInt(index);
+        this.output.writeInt(segmentSize);
+        this.output.writeInt(segmentDigests.length / MD4.DIGEST_LENGTH);
+        this.output.write(segmentDigests);
+    }
+
     void writeFileEnd() throws IOException {
         this.output.writeByte(SenderCommand.FILE_END.getCode());
     }
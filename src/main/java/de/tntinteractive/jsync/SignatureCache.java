@@ -0,0 +1,133 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+
+/**
+ * Speichert die Blocksignaturen von Zieldateien auf dem Daemon, damit unveränderte Zieldateien beim nächsten Sync
+ * nicht erneut gelesen und gehasht werden müssen. Ein Eintrag gilt für Pfad, Größe, Änderungszeitpunkt und
+ * Blockgröße der Datei. Passt der Eintrag trotzdem mal nicht zum Inhalt, fällt das bei der Prüfsumme über die
+ * ganze Datei auf und die Datei wird mit anderer Blockgröße (also ohne Cache) neu übertragen.
+ * Jeder Eintrag liegt in einer eigenen Datei, siehe {@link CacheDirectory}.
+ */
+final class SignatureCache {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String ENTRY_SUFFIX = ".sig";
+
+    private final CacheDirectory directory;
+    private final int minBlockSize;
+    private final int maxBlockSize;
+
+    /**
+     * @param directory Verzeichnis, in dem die Einträge abgelegt werden.
+     * @param minBlockSize Untere Grenze für die Blockgröße, wie beim {@link Generator}.
+     * @param maxBlockSize Obere Grenze für die Blockgröße, wie beim {@link Generator}.
+     */
+    public SignatureCache(FilePath directory, int minBlockSize, int maxBlockSize) {
+        this.directory = new CacheDirectory(directory, ENTRY_SUFFIX);
+        this.minBlockSize = minBlockSize;
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    /**
+     * Liefert die gespeicherten Signaturen der Datei, oder null, wenn es keine zu Größe, Änderungszeitpunkt und
+     * Blockgröße passenden gibt.
+     */
+    public FileSignatures load(FilePath file, int blockSize) {
+        final String path = CacheDirectory.pathOf(file);
+        try {
+            final FilePath entry = this.directory.find(path);
+            if (entry == null) {
+                return null;
+            }
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(entry.openInputStream()));
+            try {
+                if (in.readInt() != FORMAT_VERSION
+                        || !in.readUTF().equals(path)
+                        || in.readLong() != file.getSize()
+                        || in.readLong() != file.getLastChange()) {
+                    return null;
+                }
+                final FileSignatures ret = FileSignatures.load(in, file.getSize());
+                return ret.getBlockSize() == blockSize ? ret : null;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.WARNING, "could not read signature cache entry for " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Speichert die Signaturen für die Datei. Größe und Änderungszeitpunkt sollten bestimmt worden sein, bevor
+     * die Datei zum Berechnen der Signaturen gelesen wurde.
+     * Fehler werden nur protokolliert, weil der Cache für den Sync nicht notwendig ist.
+     */
+    public void store(FilePath file, long size, long lastChange, FileSignatures signatures) {
+        final String path = CacheDirectory.pathOf(file);
+        try {
+            final FilePath tmp = this.directory.createTemp(path);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmp.openOutputStream()));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(path);
+                out.writeLong(size);
+                out.writeLong(lastChange);
+                signatures.store(out);
+            } finally {
+                out.close();
+            }
+            this.directory.commit(tmp, path);
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.WARNING, "could not write signature cache entry for " + path, e);
+        }
+    }
+
+    /**
+     * Entfernt den Eintrag für eine gerade neu geschriebene Datei. Die Datei wird dafür nicht noch einmal gelesen,
+     * die Signaturen bestimmt und speichert erst der {@link Generator}, wenn er sie das nächste Mal braucht.
+     * Ohne das könnte ein alter Eintrag passen, wenn die neue Datei zufällig Größe und Änderungszeitpunkt
+     * der alten hat.
+     */
+    public void invalidate(FilePath file) {
+        final String path = CacheDirectory.pathOf(file);
+        try {
+            this.directory.remove(path);
+        } catch (final IOException e) {
+            Logger.LOGGER.log(Level.WARNING, "could not invalidate signature cache entry for " + path, e);
+        }
+    }
+
+    /**
+     * Liefert die Blockgröße, die der {@link Generator} in der ersten Runde für eine Datei der Größe verwendet.
+     */
+    int blockSizeFor(long fileSize) {
+        return Generator.determineBlockSize(fileSize, this.minBlockSize, this.maxBlockSize)
+                + Generator.INITIAL_STRONG_HASH_SIZE;
+    }
+
+}
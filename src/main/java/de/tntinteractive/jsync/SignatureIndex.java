@@ -0,0 +1,338 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.util.Arrays;
+
+/**
+ * Index über die Blocksignaturen (rollende Prüfsumme + kurzer starker Hash) einer Datei.
+ * Die Signaturen werden in parallelen int- bzw. long-Arrays gehalten, so dass pro Block keine Objekte erzeugt
+ * werden müssen. Jede rollende Prüfsumme steht nur einmal in einer Hashtabelle mit offener Adressierung, die
+ * Blöcke dazu sind (in der Reihenfolge des Einfügens) über ein next-Array verkettet. Viele gleiche Blöcke
+ * (z.B. Nullblöcke) bilden so keine langen Cluster in der Tabelle, über die jede Suche laufen müsste.
+ * Vor der eigentlichen Tabelle liegt (wie bei rsync) ein Bitfeld mit einem 16-Bit-Tag pro rollender
+ * Prüfsumme, mit dem die meisten Fehltreffer ohne Zugriff auf die Tabelle aussortiert werden.
+ * Eine Instanz wird über mehrere Dateien hinweg wiederverwendet.
+ */
+final class SignatureIndex {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int NO_BLOCK = -1;
+    private static final int NO_ENTRY = -1;
+
+    private final long[] tags = new long[(1 << 16) / 64];
+
+    //Hashtabelle: pro rollender Prüfsumme der erste und letzte Eintrag der Kette
+    private int[] slotRollingHashes;
+    private int[] slotHeads;
+    private int[] slotTails;
+    private int mask;
+    private int distinctCount;
+
+    //Einträge in der Reihenfolge des Einfügens
+    private int[] rollingHashes;
+    private int[] blockNumbers;
+    private int[] nextEntries;
+    private long[] strongHashes;
+    private long[] packedProbe;
+    private boolean blockNumbersAscending;
+
+    private int strongHashSize;
+    private int longsPerHash;
+    private int size;
+
+    private int tailBlockNumber;
+    private int tailLength;
+    private int tailRollingHash;
+    private byte[] tailStrongHash = new byte[0];
+
+    public SignatureIndex() {
+        this.allocateSlots(MIN_CAPACITY);
+        this.allocateEntries(MIN_CAPACITY, 1);
+    }
+
+    /**
+     * Leert den Index für die nächste Datei.
+     * @param newStrongHashSize Länge der starken Hashes in Bytes.
+     * @param expectedBlocks Erwartete Anzahl Blöcke, damit die Tabelle nicht während des Einfügens
+     *      wachsen muss.
+     */
+    public void reset(int newStrongHashSize, int expectedBlocks) {
+        final int newLongsPerHash = Math.max(1, (newStrongHashSize + 7) / 8);
+        final int wantedCapacity = capacityFor(expectedBlocks);
+        final int currentCapacity = this.slotHeads.length;
+        if (wantedCapacity > currentCapacity || currentCapacity > 8 * wantedCapacity) {
+            //bei zu großer Tabelle wird auch neu angelegt, damit kleine Dateien nach einer großen
+            //  nicht jedes Mal eine riesige Tabelle leeren müssen
+            this.allocateSlots(wantedCapacity);
+        } else {
+            Arrays.fill(this.slotHeads, NO_ENTRY);
+        }
+        final int wantedEntries = wantedCapacity / 2;
+        final int currentEntries = this.blockNumbers.length;
+        if (newLongsPerHash != this.longsPerHash
+                || wantedEntries > currentEntries
+                || currentEntries > 8 * wantedEntries) {
+            this.allocateEntries(wantedEntries, newLongsPerHash);
+        }
+        Arrays.fill(this.tags, 0L);
+        this.strongHashSize = newStrongHashSize;
+        this.distinctCount = 0;
+        this.size = 0;
+        this.blockNumbersAscending = true;
+        this.tailLength = 0;
+    }
+
+    private static int capacityFor(int expectedBlocks) {
+        //Füllgrad höchstens 50%
+        final long wanted = Math.max(MIN_CAPACITY, 2L * Math.max(0, expectedBlocks));
+        if (wanted >= (1 << 30)) {
+            return 1 << 30;
+        }
+        return Integer.highestOneBit((int) wanted - 1) << 1;
+    }
+
+    private void allocateSlots(int capacity) {
+        this.slotRollingHashes = new int[capacity];
+        this.slotHeads = new int[capacity];
+        this.slotTails = new int[capacity];
+        Arrays.fill(this.slotHeads, NO_ENTRY);
+        this.mask = capacity - 1;
+    }
+
+    private void allocateEntries(int capacity, int newLongsPerHash) {
+        this.rollingHashes = new int[capacity];
+        this.blockNumbers = new int[capacity];
+        this.nextEntries = new int[capacity];
+        this.strongHashes = new long[capacity * newLongsPerHash];
+        this.packedProbe = new long[newLongsPerHash];
+        this.longsPerHash = newLongsPerHash;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Fügt die Signatur eines Blocks hinzu. Mehrere Blöcke dürfen dieselbe rollende Prüfsumme haben.
+     */
+    public void add(int rollingHash, byte[] strongHash, int blockNumber) {
+        assert strongHash.length >= this.strongHashSize;
+        if (this.size == this.blockNumbers.length) {
+            final int newCapacity = 2 * this.size;
+            this.rollingHashes = Arrays.copyOf(this.rollingHashes, newCapacity);
+            this.blockNumbers = Arrays.copyOf(this.blockNumbers, newCapacity);
+            this.nextEntries = Arrays.copyOf(this.nextEntries, newCapacity);
+            this.strongHashes = Arrays.copyOf(this.strongHashes, newCapacity * this.longsPerHash);
+        }
+        final int entry = this.size;
+        if (entry > 0 && this.blockNumbers[entry - 1] >= blockNumber) {
+            this.blockNumbersAscending = false;
+        }
+        this.rollingHashes[entry] = rollingHash;
+        this.blockNumbers[entry] = blockNumber;
+        this.nextEntries[entry] = NO_ENTRY;
+        pack(strongHash, this.strongHashSize, this.strongHashes, entry * this.longsPerHash, this.longsPerHash);
+        this.size++;
+
+        int slot = this.findSlot(rollingHash);
+        if (this.slotHeads[slot] == NO_ENTRY) {
+            if (2 * (this.distinctCount + 1) > this.slotHeads.length) {
+                this.growSlots();
+                slot = this.findSlot(rollingHash);
+            }
+            this.slotRollingHashes[slot] = rollingHash;
+            this.slotHeads[slot] = entry;
+            this.distinctCount++;
+        } else {
+            this.nextEntries[this.slotTails[slot]] = entry;
+        }
+        this.slotTails[slot] = entry;
+        final int tag = tag(rollingHash);
+        this.tags[tag >>> 6] |= 1L << tag;
+    }
+
+    /**
+     * Liefert den Platz der rollenden Prüfsumme in der Tabelle bzw. den freien Platz, an den sie gehört.
+     */
+    private int findSlot(int rollingHash) {
+        int slot = this.homeSlot(rollingHash);
+        while (this.slotHeads[slot] != NO_ENTRY && this.slotRollingHashes[slot] != rollingHash) {
+            slot = (slot + 1) & this.mask;
+        }
+        return slot;
+    }
+
+    private void growSlots() {
+        final int[] oldRolling = this.slotRollingHashes;
+        final int[] oldHeads = this.slotHeads;
+        final int[] oldTails = this.slotTails;
+        this.allocateSlots(oldHeads.length * 2);
+        for (int i = 0; i < oldHeads.length; i++) {
+            if (oldHeads[i] != NO_ENTRY) {
+                final int slot = this.findSlot(oldRolling[i]);
+                this.slotRollingHashes[slot] = oldRolling[i];
+                this.slotHeads[slot] = oldHeads[i];
+                this.slotTails[slot] = oldTails[i];
+            }
+        }
+    }
+
+    /**
+     * Setzt die Signatur des unvollständigen letzten Blocks der Zieldatei.
+     */
+    public void setTail(int blockNumber, int length, int rollingHash, byte[] strongHash) {
+        if (this.tailStrongHash.length != strongHash.length) {
+            this.tailStrongHash = new byte[strongHash.length];
+        }
+        System.arraycopy(strongHash, 0, this.tailStrongHash, 0, strongHash.length);
+        this.tailBlockNumber = blockNumber;
+        this.tailLength = length;
+        this.tailRollingHash = rollingHash;
+    }
+
+    public boolean hasTail() {
+        return this.tailLength > 0;
+    }
+
+    /**
+     * Liefert die Länge des unvollständigen letzten Blocks, oder 0, wenn es keinen gibt.
+     */
+    public int getTailLength() {
+        return this.tailLength;
+    }
+
+    public int getTailBlockNumber() {
+        return this.tailBlockNumber;
+    }
+
+    public boolean tailMatches(int rollingHash, byte[] strongHash) {
+        return this.tailLength > 0
+            && this.tailRollingHash == rollingHash
+            && Arrays.equals(this.tailStrongHash, strongHash);
+    }
+
+    /**
+     * Liefert true, wenn es (mindestens) einen Block mit der übergebenen rollenden Prüfsumme gibt.
+     * Nur dann lohnt es sich, den starken Hash zu bestimmen.
+     */
+    public boolean containsRollingHash(int rollingHash) {
+        final int tag = tag(rollingHash);
+        if ((this.tags[tag >>> 6] & (1L << tag)) == 0) {
+            return false;
+        }
+        return this.slotHeads[this.findSlot(rollingHash)] != NO_ENTRY;
+    }
+
+    /**
+     * Sucht einen Block mit passender rollender Prüfsumme und passendem starken Hash.
+     * @return Die Blocknummer oder -1, wenn es keinen solchen Block gibt.
+     */
+    public int find(int rollingHash, byte[] strongHash) {
+        return this.find(rollingHash, strongHash, NO_BLOCK);
+    }
+
+    /**
+     * Wie {@link #find(int, byte[])}, aber wenn mehrere Blöcke passen und der bevorzugte darunter ist,
+     * wird dieser geliefert.
+     */
+    public int find(int rollingHash, byte[] strongHash, int preferredBlock) {
+        return this.find(rollingHash, strongHash, preferredBlock, 0);
+    }
+
+    /**
+     * Wie {@link #find(int, byte[], int)}, aber Blöcke mit einer kleineren Nummer als minBlock werden ignoriert.
+     * Der bevorzugte Block wird direkt über seine Nummer geprüft, erst danach wird in der Kette bis zum ersten
+     * passenden Block gesucht.
+     */
+    public int find(int rollingHash, byte[] strongHash, int preferredBlock, int minBlock) {
+        final int head = this.slotHeads[this.findSlot(rollingHash)];
+        if (head == NO_ENTRY) {
+            return NO_BLOCK;
+        }
+        pack(strongHash, this.strongHashSize, this.packedProbe, 0, this.longsPerHash);
+        boolean searchPreferred = preferredBlock != NO_BLOCK && preferredBlock >= minBlock;
+        if (searchPreferred && this.blockNumbersAscending) {
+            final int preferredEntry = this.entryForBlock(preferredBlock);
+            if (preferredEntry != NO_ENTRY
+                    && this.rollingHashes[preferredEntry] == rollingHash
+                    && this.strongHashEquals(preferredEntry)) {
+                return preferredBlock;
+            }
+            searchPreferred = false;
+        }
+        int found = NO_BLOCK;
+        for (int entry = head; entry != NO_ENTRY; entry = this.nextEntries[entry]) {
+            if (this.blockNumbers[entry] >= minBlock && this.strongHashEquals(entry)) {
+                if (found == NO_BLOCK) {
+                    found = this.blockNumbers[entry];
+                }
+                if (!searchPreferred || this.blockNumbers[entry] == preferredBlock) {
+                    return this.blockNumbers[entry];
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Liefert den Eintrag zur Blocknummer, oder -1, wenn es keinen gibt. Nur bei aufsteigend eingefügten Blöcken
+     * möglich (der Normalfall), sonst muss die Kette nach dem bevorzugten Block durchsucht werden.
+     */
+    private int entryForBlock(int blockNumber) {
+        final int entry = Arrays.binarySearch(this.blockNumbers, 0, this.size, blockNumber);
+        return entry >= 0 ? entry : NO_ENTRY;
+    }
+
+    private boolean strongHashEquals(int entry) {
+        final int base = entry * this.longsPerHash;
+        for (int i = 0; i < this.longsPerHash; i++) {
+            if (this.strongHashes[base + i] != this.packedProbe[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int homeSlot(int rollingHash) {
+        //die rollende Prüfsumme ist in den unteren Bits schlecht verteilt, deshalb wird noch gemischt
+        return ((rollingHash * 0x9E3779B9) ^ (rollingHash >>> 16)) & this.mask;
+    }
+
+    /**
+     * 16-Bit-Tag wie bei rsync: Summe der beiden Hälften der rollenden Prüfsumme.
+     */
+    private static int tag(int rollingHash) {
+        return ((rollingHash & 0xFFFF) + (rollingHash >>> 16)) & 0xFFFF;
+    }
+
+    private static void pack(byte[] source, int length, long[] target, int targetOffset, int longCount) {
+        for (int i = 0; i < longCount; i++) {
+            target[targetOffset + i] = 0L;
+        }
+        for (int i = 0; i < length; i++) {
+            target[targetOffset + (i >>> 3)] |= (source[i] & 0xFFL) << ((i & 7) << 3);
+        }
+    }
+
+}
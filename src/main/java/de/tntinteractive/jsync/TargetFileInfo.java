@@ -22,10 +22,23 @@ class TargetFileInfo {
 
     private final FilePath filePath;
     private final long sourceChangeTime;
+    private final long sourceSize;
+    private FineSignatureRequest fineSignatureRequest;
+    private FilePath failedTempFile;
+    private FilePath partialFile;
+    private long partialLength;
 
     public TargetFileInfo(FilePath filePath, long sourceChangeTime) {
+        this(filePath, sourceChangeTime, -1);
+    }
+
+    /**
+     * @param sourceSize Die Größe der Quelldatei laut {@link Enumerator}, bzw. -1, wenn sie unbekannt ist.
+     */
+    public TargetFileInfo(FilePath filePath, long sourceChangeTime, long sourceSize) {
         this.filePath = filePath;
         this.sourceChangeTime = sourceChangeTime;
+        this.sourceSize = sourceSize;
     }
 
     public FilePath getFilePath() {
@@ -36,4 +49,69 @@ class TargetFileInfo {
         return this.sourceChangeTime;
     }
 
+    /**
+     * Liefert die Größe der Quelldatei bei der Aufzählung, oder -1. Sie kann sich seitdem noch geändert haben.
+     */
+    public long getSourceSize() {
+        return this.sourceSize;
+    }
+
+    /**
+     * Merkt sich die Anforderung feiner Signaturen für den {@link Generator}.
+     */
+    public synchronized void setFineSignatureRequest(FineSignatureRequest request) {
+        this.fineSignatureRequest = request;
+    }
+
+    /**
+     * Liefert die offene Anforderung feiner Signaturen (oder null) und entfernt sie.
+     */
+    public synchronized FineSignatureRequest takeFineSignatureRequest() {
+        final FineSignatureRequest ret = this.fineSignatureRequest;
+        this.fineSignatureRequest = null;
+        return ret;
+    }
+
+    /**
+     * Merkt sich die Tempdatei einer fehlgeschlagenen Übertragung, aus der bei der Wiederholung die
+     * korrekten Abschnitte übernommen werden können.
+     */
+    public synchronized void setFailedTempFile(FilePath tempFile) {
+        this.failedTempFile = tempFile;
+    }
+
+    /**
+     * Liefert die Tempdatei der fehlgeschlagenen Übertragung (oder null) und entfernt sie.
+     */
+    public synchronized FilePath takeFailedTempFile() {
+        final FilePath ret = this.failedTempFile;
+        this.failedTempFile = null;
+        return ret;
+    }
+
+    /**
+     * Merkt sich die Tempdatei einer abgebrochenen früheren Übertragung, deren Anfang zusammen mit der bisherigen
+     * Zieldatei als Vorlage dient.
+     * @param length Die Länge des nutzbaren Anfangs, ein Vielfaches der Blockgröße, bzw. -1, solange sie noch
+     *      nicht bestimmt ist.
+     */
+    public synchronized void setPartialFile(FilePath partialFile, long length) {
+        this.partialFile = partialFile;
+        this.partialLength = length;
+    }
+
+    /**
+     * Liefert die Tempdatei der abgebrochenen Übertragung, oder null.
+     */
+    public synchronized FilePath getPartialFile() {
+        return this.partialFile;
+    }
+
+    /**
+     * Liefert die Länge des nutzbaren Anfangs der Tempdatei der abgebrochenen Übertragung.
+     */
+    public synchronized long getPartialLength() {
+        return this.partialLength;
+    }
+
 }
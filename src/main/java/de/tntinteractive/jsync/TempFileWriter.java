@@ -0,0 +1,193 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Schreibt die Tempdatei im {@link Receiver}. Rohdaten und kopierte Bereiche der alten Datei werden in einem
+ * wiederverwendeten direkten Puffer gesammelt und in großen Stücken über den FileChannel geschrieben. Kopiert wird
+ * direkt aus dem Kanal der alten Datei in den Puffer, und der Hash wird vor dem Schreiben aus diesem Puffer
+ * bestimmt, die Daten müssen also nicht auf den Java-Heap.
+ * Für {@link Features#SPARSE} werden Stücke aus Nullen, die an Blockgrenzen der Datei liegen, nicht geschrieben,
+ * sondern bleiben Löcher in der (anfangs leeren) Tempdatei.
+ */
+final class TempFileWriter {
+
+    private final RandomAccessOutput file;
+    private final ByteBuffer buffer;
+    private final MD4 digest = new MD4();
+    private final boolean sparse;
+    private long position;
+    private long writtenUpTo;
+    private long preallocated;
+
+    /**
+     * @param buffer Der Puffer zum Sammeln der Daten. Er wird über mehrere Dateien wiederverwendet.
+     */
+    public TempFileWriter(FilePath tmpFile, ByteBuffer buffer) throws IOException {
+        this(tmpFile, buffer, false);
+    }
+
+    /**
+     * @param sparse true, wenn Nullen als Löcher in der Datei bleiben sollen.
+     */
+    public TempFileWriter(FilePath tmpFile, ByteBuffer buffer, boolean sparse) throws IOException {
+        this.file = tmpFile.openRandomAccessOutput();
+        //evtl. liegt noch eine Tempdatei von einem abgebrochenen Sync herum
+        this.file.truncate(0);
+        this.buffer = buffer;
+        this.buffer.clear();
+        this.sparse = sparse;
+    }
+
+    /**
+     * Bringt die noch leere Datei vorab auf die erwartete Größe, damit sie möglichst am Stück auf der Platte landet.
+     * Wird dann weniger geschrieben, wird die Datei am Ende wieder gekürzt.
+     */
+    public void preallocate(long expectedSize) throws IOException {
+        this.file.preallocate(expectedSize);
+        this.preallocated = expectedSize;
+    }
+
+    /**
+     * Hängt die nächsten Bytes aus dem Kanal an.
+     */
+    public void writeRawData(ReadableByteChannel input, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            if (!this.buffer.hasRemaining()) {
+                this.flush();
+            }
+            this.buffer.limit(this.buffer.position() + Math.min(remaining, this.buffer.remaining()));
+            final int read = input.read(this.buffer);
+            this.buffer.limit(this.buffer.capacity());
+            if (read < 0) {
+                throw new EOFException("input ended within raw data, " + remaining + " bytes missing");
+            }
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Hängt den Rest des Puffers an.
+     */
+    public void writeRawData(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (!this.buffer.hasRemaining()) {
+                this.flush();
+            }
+            final int limit = data.limit();
+            data.limit(data.position() + Math.min(data.remaining(), this.buffer.remaining()));
+            this.buffer.put(data);
+            data.limit(limit);
+        }
+    }
+
+    /**
+     * Hängt einen Bereich aus der alten Datei an.
+     */
+    public void copy(RandomAccessInput template, long offset, long length) throws IOException {
+        long done = 0;
+        while (done < length) {
+            if (!this.buffer.hasRemaining()) {
+                this.flush();
+            }
+            this.buffer.limit((int) Math.min(this.buffer.capacity(), this.buffer.position() + length - done));
+            final int read = template.read(offset + done, this.buffer);
+            this.buffer.limit(this.buffer.capacity());
+            if (read <= 0) {
+                throw new IOException("template file too short, copy from " + offset + " with length " + length);
+            }
+            done += read;
+        }
+    }
+
+    /**
+     * Hängt die übergebene Anzahl Nullen an. Sie werden nicht geschrieben, sondern übersprungen.
+     */
+    public void writeZeros(long length) throws IOException {
+        this.flush();
+        ZeroRuns.digest(this.digest, length);
+        this.position += length;
+    }
+
+    private void flush() throws IOException {
+        this.buffer.flip();
+        final int length = this.buffer.limit();
+        this.digest.engineUpdate(this.buffer, 0, length);
+        if (this.sparse) {
+            this.writeSparse(length);
+        } else {
+            this.writePart(0, length);
+        }
+        this.position += length;
+        this.buffer.clear();
+    }
+
+    /**
+     * Schreibt den Puffer, lässt dabei aber die Blöcke der Datei aus, die nur Nullen enthalten.
+     */
+    private void writeSparse(int length) throws IOException {
+        final int blockSize = ZeroRuns.CHUNK_SIZE;
+        int start = 0;
+        int pos = (int) ((blockSize - this.position % blockSize) % blockSize);
+        for (; pos + blockSize <= length; pos += blockSize) {
+            if (ZeroRuns.isZero(this.buffer, pos, blockSize)) {
+                this.writePart(start, pos);
+                start = pos + blockSize;
+            }
+        }
+        this.writePart(start, length);
+    }
+
+    private void writePart(int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        this.buffer.limit(to);
+        this.buffer.position(from);
+        this.file.write(this.position + from, this.buffer);
+        this.writtenUpTo = this.position + to;
+    }
+
+    /**
+     * Schreibt die restlichen Daten und schließt die Datei.
+     * @return Der MD4-Hash der geschriebenen Datei.
+     */
+    public byte[] finish() throws IOException {
+        try {
+            this.flush();
+            if (this.writtenUpTo < this.position) {
+                //die Datei endet mit einem Loch => letztes Byte schreiben, damit die Länge stimmt
+                this.file.write(this.position - 1, ByteBuffer.allocate(1));
+            }
+            if (this.preallocated > this.position) {
+                this.file.truncate(this.position);
+            }
+        } finally {
+            this.file.close();
+        }
+        return this.digest.engineDigest();
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hilfsfunktionen für Folgen von Null-Bytes (siehe {@link Features#SPARSE}).
+ */
+final class ZeroRuns {
+
+    /**
+     * Länge der Stücke, in denen nach Nullen gesucht wird. Entspricht der üblichen Blockgröße von Dateisystemen,
+     * denn nur ganze Blöcke können Löcher in der Datei werden.
+     */
+    public static final int CHUNK_SIZE = 4096;
+
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private ZeroRuns() {
+    }
+
+    /**
+     * Liefert true, wenn der Bereich des Puffers nur aus Nullen besteht.
+     */
+    public static boolean isZero(ByteBuffer data, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            if (data.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < end; i++) {
+            if (data.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Nimmt die übergebene Anzahl Null-Bytes in den Hash auf.
+     */
+    public static void digest(MD4 digest, long length) {
+        long remaining = length;
+        while (remaining > 0) {
+            final int chunk = (int) Math.min(remaining, ZEROS.length);
+            digest.engineUpdate(ZEROS, 0, chunk);
+            remaining -= chunk;
+        }
+    }
+
+}
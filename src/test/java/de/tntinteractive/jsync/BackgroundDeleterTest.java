@@ -0,0 +1,125 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BackgroundDeleterTest {
+
+    @Test
+    public void testDeletesRecursivelyAndCounts() throws Exception {
+        final StubFilePath root = StubFilePathBuilder.start("root")
+                .startDir("weg")
+                .file("a", 1, 2)
+                .startDir("unter")
+                .file("b", 1, 2)
+                .endDir()
+                .endDir()
+                .file("auchWeg", 1, 2)
+                .file("bleibt", 1, 2)
+                .build();
+
+        final BackgroundDeleter deleter = new BackgroundDeleter(false);
+        deleter.start("test");
+        deleter.delete(root.getChild("weg"));
+        deleter.delete(root.getChild("auchWeg"));
+        deleter.finish();
+
+        assertEquals(Collections.singletonList("bleibt"), TestHelper.getChildrenNames(root));
+        assertEquals(3, deleter.getDeletedFiles());
+        assertEquals(2, deleter.getDeletedDirectories());
+    }
+
+    @Test
+    public void testEntryIsMovedToTrashBeforeReturning() throws Exception {
+        final StubFilePath root = new StubFilePath(null, "root");
+        final List<String> newNames = new ArrayList<String>();
+        final StubFilePath dir = new StubFilePath(root, "weg") {
+            @Override
+            public void renameTo(String newName) {
+                newNames.add(newName);
+                super.renameTo(newName);
+            }
+        };
+        new StubFilePath(dir, "a", 1, 2);
+
+        final BackgroundDeleter deleter = new BackgroundDeleter(true);
+        deleter.start("test");
+        deleter.delete(dir);
+        assertFalse(root.hasChild("weg"));
+        assertEquals(Arrays.asList("weg.jstrash"), newNames);
+        deleter.finish();
+
+        assertEquals(Collections.emptyList(), TestHelper.getChildrenNames(root));
+        assertEquals(1, deleter.getDeletedFiles());
+        assertEquals(1, deleter.getDeletedDirectories());
+    }
+
+    @Test
+    public void testFailureIsReportedAtFinish() throws Exception {
+        final StubFilePath root = new StubFilePath(null, "root");
+        final StubFilePath dir = new StubFilePath(root, "verz") {
+            @Override
+            public Iterable<? extends FilePath> getChildrenSorted() throws IOException {
+                throw new IOException("absichtlicher Fehler");
+            }
+        };
+
+        final BackgroundDeleter deleter = new BackgroundDeleter(false);
+        deleter.start("test");
+        deleter.delete(dir);
+        boolean failed = false;
+        try {
+            deleter.finish();
+        } catch (final IOException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+
+    @Test
+    public void testVanishedEntryIsNoFailure() throws Exception {
+        final StubFilePath root = new StubFilePath(null, "root");
+        final StubFilePath dir = new StubFilePath(root, "verz") {
+            @Override
+            public Iterable<? extends FilePath> getChildrenSorted() throws IOException {
+                throw new IOException("absichtlicher Fehler, gibt es nicht mehr");
+            }
+        };
+        //schon von jemand anderem gelöscht
+        dir.delete();
+
+        final BackgroundDeleter deleter = new BackgroundDeleter(false);
+        deleter.start("test");
+        deleter.delete(dir);
+        deleter.finish();
+        assertEquals(0, deleter.getDeletedDirectories());
+    }
+
+}
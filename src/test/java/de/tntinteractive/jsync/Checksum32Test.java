@@ -0,0 +1,94 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Checksum32Test {
+
+    private static byte[] randomData(int size) {
+        final byte[] ret = new byte[size];
+        new Random(42).nextBytes(ret);
+        return ret;
+    }
+
+    /**
+     * Die Prüfsumme direkt nach Definition, Byte für Byte.
+     */
+    private static int naiveChecksum(byte[] data, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = off; i < off + len; i++) {
+            a += data[i];
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    @Test
+    public void testCheckRangeForAllRemainders() {
+        final byte[] data = randomData(100);
+        for (int len = 0; len <= 40; len++) {
+            final int expected = naiveChecksum(data, 3, len);
+            assertEquals(expected, Checksum32.checkRange(data, 3, len));
+            assertEquals(expected, Checksum32.checkRange(ByteBuffer.wrap(data), 3, len));
+            final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            assertEquals(expected, Checksum32.checkRange(direct, 3, len));
+        }
+    }
+
+    @Test
+    public void testRollingWithReusedRingBuffer() {
+        final byte[] data = randomData(3000);
+        final Checksum32 checksum = new Checksum32();
+        //erst ein großer Block, dann ein kleinerer im selben Puffer
+        for (final int blockSize : new int[] {700, 123}) {
+            checksum.check(data, 0, blockSize);
+            for (int i = 0; i + blockSize < data.length; i++) {
+                assertEquals(data[i], checksum.roll(data[i + blockSize]));
+                assertEquals(naiveChecksum(data, i + 1, blockSize), checksum.getValue());
+            }
+            final byte[] window = new byte[blockSize];
+            checksum.copyBlock(window);
+            assertArrayEquals(Arrays.copyOfRange(data, data.length - blockSize, data.length), window);
+            checksum.trim();
+            assertEquals(naiveChecksum(data, data.length - blockSize + 1, blockSize - 1), checksum.getValue());
+        }
+    }
+
+    @Test
+    public void testRollingInCallersBuffer() {
+        final byte[] data = randomData(1000);
+        final Checksum32 checksum = new Checksum32();
+        checksum.checkInPlace(data, 0, 64);
+        for (int i = 0; i + 64 < data.length; i++) {
+            checksum.roll(data[i], data[i + 64]);
+            assertEquals(naiveChecksum(data, i + 1, 64), checksum.getValue());
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CommitStageTest {
+
+    /**
+     * Merkt sich die Reihenfolge der Commits und wie oft die Datei vorher synchronisiert wurde.
+     */
+    private static final class RecordingFile extends CommitStage.PendingFile {
+        private final StubFilePath file;
+        private final List<String> log;
+
+        public RecordingFile(StubFilePath file, List<String> log) {
+            super(file);
+            this.file = file;
+            this.log = log;
+        }
+
+        @Override
+        void commit() throws IOException {
+            this.log.add(this.file.getName() + ":" + this.file.getSyncCount());
+        }
+    }
+
+    private static List<String> syncLog() {
+        return Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Test
+    public void testWithoutSyncFilesAreCommittedAtOnce() throws Exception {
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final List<String> log = syncLog();
+        final CommitStage stage = new CommitStage(FsyncPolicy.NONE, 10, 100000);
+        stage.start("test");
+        stage.add(new RecordingFile(new StubFilePath(dir, "a", "x"), log));
+        assertEquals(Arrays.asList("a:0"), log);
+        stage.finish();
+    }
+
+    @Test
+    public void testPerFileSyncsBeforeCommit() throws Exception {
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final List<String> log = syncLog();
+        final CommitStage stage = new CommitStage(FsyncPolicy.PER_FILE, 10, 100000);
+        stage.start("test");
+        stage.add(new RecordingFile(new StubFilePath(dir, "a", "x"), log));
+        stage.add(new RecordingFile(new StubFilePath(dir, "b", "x"), log));
+        assertEquals(Arrays.asList("a:1", "b:1"), log);
+        stage.finish();
+    }
+
+    @Test
+    public void testFullBatchIsCommittedAndRestOnFinish() throws Exception {
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final List<String> log = syncLog();
+        final CommitStage stage = new CommitStage(FsyncPolicy.PER_BATCH, 2, 100000);
+        stage.start("test");
+        stage.add(new RecordingFile(new StubFilePath(dir, "a", "x"), log));
+        stage.add(new RecordingFile(new StubFilePath(dir, "b", "x"), log));
+        stage.add(new RecordingFile(new StubFilePath(dir, "c", "x"), log));
+        final long start = System.currentTimeMillis();
+        stage.finish();
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(Arrays.asList("a:1", "b:1", "c:1"), log);
+    }
+
+    @Test
+    public void testBatchIsCommittedAfterMaxLatency() throws Exception {
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final List<String> log = syncLog();
+        final CommitStage stage = new CommitStage(FsyncPolicy.PER_BATCH, 100, 10);
+        stage.start("test");
+        stage.add(new RecordingFile(new StubFilePath(dir, "a", "x"), log));
+        final long end = System.currentTimeMillis() + 10000;
+        while (log.isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(Arrays.asList("a:1"), log);
+        stage.finish();
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final CommitStage stage = new CommitStage(FsyncPolicy.PER_BATCH, 1, 100000);
+        stage.start("test");
+        stage.add(new CommitStage.PendingFile(new StubFilePath(dir, "a", "x")) {
+            @Override
+            void commit() throws IOException {
+                throw new IOException("kaputt");
+            }
+        });
+        try {
+            stage.finish();
+            fail("expected exception");
+        } catch (final IOException e) {
+            assertEquals("kaputt", e.getCause().getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+public class DeltaScannerTest {
+
+    private static final int BLOCK_SIZE = 16;
+
+    private static SignatureIndex indexFor(byte[] oldContent) {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, oldContent.length / BLOCK_SIZE);
+        final byte[] block = new byte[BLOCK_SIZE];
+        for (int i = 0; i + BLOCK_SIZE <= oldContent.length; i += BLOCK_SIZE) {
+            System.arraycopy(oldContent, i, block, 0, BLOCK_SIZE);
+            index.add(Checksum32.determineFor(block), MD4.determineFor(block, 4), i / BLOCK_SIZE);
+        }
+        return index;
+    }
+
+    private static byte[] randomData(Random r, int length) {
+        final byte[] ret = new byte[length];
+        r.nextBytes(ret);
+        return ret;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            ret.write(part, 0, part.length);
+        }
+        return ret.toByteArray();
+    }
+
+    @Test
+    public void testMappedScanGivesSameDiffAsStreamScan() throws Exception {
+        final Random r = new Random(42);
+        final byte[] a = randomData(r, 3000);
+        final byte[] b = randomData(r, 2000);
+        final byte[] oldContent = concat(a, b);
+        final byte[] newContent = concat(b, randomData(r, 33), a, randomData(r, 7));
+        final StubFilePath file = new StubFilePath(null, "datei", TestHelper.fromIso(newContent));
+        final SignatureIndex index = indexFor(oldContent);
+
+        final ByteArrayOutputStream streamDiff = new ByteArrayOutputStream();
+        final DeltaScanner streamScanner =
+                new DeltaScanner(index, new ReceiverCommandWriter(new DataOutputStream(streamDiff)));
+        final byte[] streamDigest = streamScanner.scan(file.openInputStream(), BLOCK_SIZE, 4);
+
+        final ByteArrayOutputStream mappedDiff = new ByteArrayOutputStream();
+        final DeltaScanner mappedScanner =
+                new DeltaScanner(index, new ReceiverCommandWriter(new DataOutputStream(mappedDiff)));
+        mappedScanner.setMappedSegmentSize(700);
+        final byte[] mappedDigest = mappedScanner.scanMapped(
+                file.openRandomAccessInput(), newContent.length, BLOCK_SIZE, 4);
+
+        assertEquals(TestHelper.toHexString(MD4.determineFor(newContent, 16)), TestHelper.toHexString(streamDigest));
+        assertEquals(TestHelper.toHexString(streamDigest), TestHelper.toHexString(mappedDigest));
+        assertEquals(
+                TestHelper.toHexString(streamDiff.toByteArray()),
+                TestHelper.toHexString(mappedDiff.toByteArray()));
+    }
+
+    @Test
+    public void testMappedCopyUsesOneRawDataCommandPerSegment() throws Exception {
+        final String content = "0123456789abcdefghij";
+        final StubFilePath file = new StubFilePath(null, "datei", content);
+
+        final ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        final DeltaScanner scanner =
+                new DeltaScanner(new SignatureIndex(), new ReceiverCommandWriter(new DataOutputStream(diff)));
+        scanner.setMappedSegmentSize(8);
+        final byte[] digest = scanner.copyMapped(file.openRandomAccessInput(), content.length());
+
+        final String expected = ReceiverCommandBuilder.start()
+                .rawData("01234567")
+                .rawData("89abcdef")
+                .rawData("ghij")
+                .toHexString();
+        assertEquals(expected, TestHelper.toHexString(diff.toByteArray()));
+        assertEquals(TestHelper.toHexString(TestHelper.md4(content)), TestHelper.toHexString(digest));
+    }
+
+    @Test
+    public void testKnownMatchesAreCopiedWithoutSearch() throws Exception {
+        final Random r = new Random(43);
+        final byte[] a = randomData(r, 64);
+        final byte[] b = randomData(r, 64);
+        final byte[] c = randomData(r, 64);
+        final byte[] oldContent = concat(a, b, c);
+        final byte[] inserted = randomData(r, 5);
+        final byte[] newContent = concat(a, inserted, b, c);
+        final StubFilePath file = new StubFilePath(null, "datei", TestHelper.fromIso(newContent));
+
+        //Anfang und Ende sind schon bekannt, der Index enthält nur die Blöcke aus der Mitte
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, 4);
+        final byte[] block = new byte[BLOCK_SIZE];
+        for (int i = 64; i < 128; i += BLOCK_SIZE) {
+            System.arraycopy(oldContent, i, block, 0, BLOCK_SIZE);
+            index.add(Checksum32.determineFor(block), MD4.determineFor(block, 4), i / BLOCK_SIZE);
+        }
+
+        final ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        final DeltaScanner scanner =
+                new DeltaScanner(index, new ReceiverCommandWriter(new DataOutputStream(diff)));
+        scanner.setMappedSegmentSize(40);
+        final byte[] fileDigest = MD4.determineFor(newContent, 16);
+        final byte[] digest = scanner.scanMappedWithKnownMatches(file.openRandomAccessInput(), newContent.length,
+                BLOCK_SIZE, 4, new long[] {0, 0, 64, 133, 128, 64}, fileDigest);
+
+        final String expected = ReceiverCommandBuilder.start()
+                .copyBlock(0, 64)
+                .rawData(TestHelper.fromIso(inserted))
+                .copyBlock(64, 128)
+                .toHexString();
+        assertEquals(expected, TestHelper.toHexString(diff.toByteArray()));
+        assertEquals(TestHelper.toHexString(fileDigest), TestHelper.toHexString(digest));
+    }
+
+    @Test
+    public void testKnownMatchesAreNotReadAgain() throws Exception {
+        final Random r = new Random(45);
+        final byte[] a = randomData(r, 64);
+        final byte[] b = randomData(r, 64);
+        final byte[] c = randomData(r, 64);
+        final byte[] oldContent = concat(a, b, c);
+        final byte[] inserted = randomData(r, 5);
+        final byte[] newContent = concat(a, inserted, b, c);
+        //in der Datei stehen in den bekannten Bereichen andere Daten, die dürfen keine Rolle spielen
+        final byte[] changedContent = concat(new byte[64], inserted, b, new byte[64]);
+        final StubFilePath file = new StubFilePath(null, "datei", TestHelper.fromIso(changedContent));
+
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, 4);
+        final byte[] block = new byte[BLOCK_SIZE];
+        for (int i = 64; i < 128; i += BLOCK_SIZE) {
+            System.arraycopy(oldContent, i, block, 0, BLOCK_SIZE);
+            index.add(Checksum32.determineFor(block), MD4.determineFor(block, 4), i / BLOCK_SIZE);
+        }
+
+        final ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        final DeltaScanner scanner =
+                new DeltaScanner(index, new ReceiverCommandWriter(new DataOutputStream(diff)));
+        scanner.setMappedSegmentSize(40);
+        final byte[] fileDigest = MD4.determineFor(newContent, 16);
+        final byte[] digest = scanner.scanMappedWithKnownMatches(file.openRandomAccessInput(), newContent.length,
+                BLOCK_SIZE, 4, new long[] {0, 0, 64, 133, 128, 64}, fileDigest);
+
+        final String expected = ReceiverCommandBuilder.start()
+                .copyBlock(0, 64)
+                .rawData(TestHelper.fromIso(inserted))
+                .copyBlock(64, 128)
+                .toHexString();
+        assertEquals(expected, TestHelper.toHexString(diff.toByteArray()));
+        assertEquals(TestHelper.toHexString(fileDigest), TestHelper.toHexString(digest));
+    }
+
+    @Test
+    public void testInPlaceDiffCanBeAppliedToTargetFile() throws Exception {
+        final Random r = new Random(44);
+        final byte[] a = randomData(r, 150 * BLOCK_SIZE);
+        final byte[] b = randomData(r, 100 * BLOCK_SIZE);
+        final byte[] oldContent = concat(a, b);
+        //b liegt in der Zieldatei hinter der neuen Position und darf kopiert werden, a davor und muss neu kommen
+        final byte[] newContent = concat(b, randomData(r, 33), a, randomData(r, 7));
+        final StubFilePath source = new StubFilePath(null, "datei", TestHelper.fromIso(newContent));
+
+        final ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        final ReceiverCommandWriter writer = new ReceiverCommandWriter(new DataOutputStream(diff));
+        final DeltaScanner scanner = new DeltaScanner(indexFor(oldContent), writer);
+        scanner.setTargetUpdatedInPlace(true);
+        scanner.setMappedSegmentSize(700);
+        writer.writeFileStart(0);
+        writer.writeFileEnd(scanner.scanMapped(source.openRandomAccessInput(), newContent.length, BLOCK_SIZE, 4));
+        writer.writeEnumeratorDone();
+        assertTrue(diff.size() > a.length);
+        assertTrue(diff.size() < newContent.length);
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath target = new StubFilePath(dir, "datei", TestHelper.fromIso(oldContent));
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(target, 678));
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(diff.toByteArray()), targetFiles, toResend);
+        receiver.setInPlace(true);
+        receiver.run();
+
+        assertEquals(TestHelper.toHexString(newContent), TestHelper.toHexString(TestHelper.toIso(target.getContent())));
+        assertEquals(Integer.valueOf(-1), toResend.poll());
+    }
+
+    @Test
+    public void testZeroRunsAreSentByLengthAndRebuilt() throws Exception {
+        final Random r = new Random(45);
+        final byte[] start = randomData(r, 100);
+        final byte[] end = randomData(r, 50);
+        final byte[] newContent = concat(start, new byte[10000], end);
+        final StubFilePath source = new StubFilePath(null, "datei", TestHelper.fromIso(newContent));
+
+        final ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        final ReceiverCommandWriter writer = new ReceiverCommandWriter(new DataOutputStream(diff));
+        writer.setZeroRuns(true);
+        final DeltaScanner scanner = new DeltaScanner(new SignatureIndex(), writer);
+        writer.writeFileStart(0);
+        writer.writeFileEnd(scanner.copyMapped(source.openRandomAccessInput(), newContent.length));
+        writer.writeEnumeratorDone();
+
+        //gesucht wird in ganzen Stücken ab dem Anfang der Rohdaten, danach wird die Folge bis zu ihrem Ende verlängert
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData(TestHelper.fromIso(Arrays.copyOf(newContent, ZeroRuns.CHUNK_SIZE)))
+                .zeroRun(10100 - ZeroRuns.CHUNK_SIZE)
+                .rawData(TestHelper.fromIso(end))
+                .endFile(MD4.determineFor(newContent, 16))
+                .enumeratorDone()
+                .toHexString();
+        assertEquals(expected, TestHelper.toHexString(diff.toByteArray()));
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(dir.getChild("datei"), 678));
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(diff.toByteArray()), targetFiles, toResend);
+        receiver.setSparse(true);
+        receiver.run();
+
+        assertEquals(TestHelper.toHexString(newContent),
+                TestHelper.toHexString(TestHelper.toIso(dir.getChild("datei").getContent())));
+        assertEquals(Integer.valueOf(-1), toResend.poll());
+    }
+
+    @Test
+    public void testUnchangedFileIsOnlyReported() throws Exception {
+        final Random r = new Random(46);
+        final byte[] oldContent = randomData(r, 100 * BLOCK_SIZE + 5);
+        final SignatureIndex index = indexFor(oldContent);
+        final byte[] tail = Arrays.copyOfRange(oldContent, 100 * BLOCK_SIZE, oldContent.length);
+        index.setTail(100, tail.length, Checksum32.determineFor(tail), MD4.determineFor(tail, 4));
+
+        final ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        final DeltaScanner scanner = new DeltaScanner(index, new ReceiverCommandWriter(new DataOutputStream(diff)));
+        scanner.setDetectUnchanged(true);
+        final StubFilePath same = new StubFilePath(null, "datei", TestHelper.fromIso(oldContent));
+        final byte[] digest = scanner.scan(same.openInputStream(), BLOCK_SIZE, 4);
+        assertEquals(0, diff.size());
+        assertEquals(oldContent.length, scanner.getUnchangedLength());
+        assertEquals(TestHelper.toHexString(MD4.determineFor(oldContent, 16)), TestHelper.toHexString(digest));
+
+        //schon eine Verschiebung führt zum normalen Diff
+        final byte[] moved = concat(Arrays.copyOfRange(oldContent, BLOCK_SIZE, oldContent.length),
+                Arrays.copyOf(oldContent, BLOCK_SIZE));
+        final StubFilePath changed = new StubFilePath(null, "datei", TestHelper.fromIso(moved));
+        scanner.scanMapped(changed.openRandomAccessInput(), moved.length, BLOCK_SIZE, 4);
+        assertTrue(diff.size() > 0);
+        assertEquals(-1, scanner.getUnchangedLength());
+    }
+
+}
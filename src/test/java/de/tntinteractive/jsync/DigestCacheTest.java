@@ -0,0 +1,95 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+public class DigestCacheTest {
+
+    @Test
+    public void testComputeAcrossSeveralReadChunks() throws Exception {
+        final String content = TestHelper.multiplyString("0123456789abcdefghijklmnopq", 100000) + "rest";
+        final StubFilePath file = new StubFilePath(null, "datei", content);
+        assertArrayEquals(TestHelper.md4(content), DigestCache.compute(file));
+        assertArrayEquals(TestHelper.md4(""), DigestCache.compute(new StubFilePath(null, "leer", "")));
+    }
+
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        final DigestCache cache = new DigestCache(new StubFilePath(null, "cache"));
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath file = new StubFilePath(dir, "datei", "0123456789");
+
+        assertNull(cache.load(file));
+        cache.store(file, file.getSize(), file.getLastChange(), TestHelper.md4("0123456789"));
+        assertArrayEquals(TestHelper.md4("0123456789"), cache.load(file));
+
+        assertNull(cache.load(new StubFilePath(dir, "andereDatei", file.getContent())));
+        file.setLastChange(43);
+        assertNull(cache.load(file));
+    }
+
+    @Test
+    public void testDetermineUsesAndFillsCache() throws Exception {
+        final DigestCache cache = new DigestCache(new StubFilePath(null, "cache"));
+        final StubFilePath file = new StubFilePath(null, "datei", "inhalt");
+
+        assertArrayEquals(TestHelper.md4("inhalt"), DigestCache.determine(cache, file));
+        assertArrayEquals(TestHelper.md4("inhalt"), cache.load(file));
+
+        //ein (absichtlich falscher) Eintrag im Cache wird verwendet, ohne die Datei zu lesen
+        cache.store(file, file.getSize(), file.getLastChange(), TestHelper.md4("anders"));
+        assertArrayEquals(TestHelper.md4("anders"), DigestCache.determine(cache, file));
+        assertArrayEquals(TestHelper.md4("inhalt"), DigestCache.determine(null, file));
+    }
+
+    @Test
+    public void testReceiverStoresDigestAfterRename() throws Exception {
+        final String newContent = TestHelper.multiplyString("neu", 1000);
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData(newContent)
+                .endFile(TestHelper.md4(newContent))
+                .enumeratorDone();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath f = new StubFilePath(dir, "datei", "alt");
+        final DigestCache cache = new DigestCache(new StubFilePath(null, "cache"));
+
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(f, 678));
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles,
+                new LinkedBlockingQueue<Integer>());
+        receiver.setDigestCache(cache);
+        receiver.run();
+
+        final StubFilePath written = dir.getChild("datei");
+        assertEquals(newContent, written.getContent());
+        assertEquals(678, written.getLastChange());
+        assertArrayEquals(TestHelper.md4(newContent), cache.load(written));
+    }
+
+}
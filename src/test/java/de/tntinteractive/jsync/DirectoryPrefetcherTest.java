@@ -0,0 +1,133 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DirectoryPrefetcherTest {
+
+    /**
+     * Verzeichnis, das sich merkt, in welchen Threads es aufgelistet wurde, und beim ersten Mal evtl. fehlschlägt.
+     */
+    private static final class RecordingDir extends StubFilePath {
+        private final List<String> listedBy = Collections.synchronizedList(new ArrayList<String>());
+        private boolean failOnce;
+
+        public RecordingDir(StubFilePath parent, String dirName, boolean failOnce) {
+            super(parent, dirName);
+            this.failOnce = failOnce;
+        }
+
+        @Override
+        public synchronized Iterable<? extends FilePath> getChildrenSorted() throws IOException {
+            this.listedBy.add(Thread.currentThread().getName());
+            if (this.failOnce) {
+                this.failOnce = false;
+                throw new IOException("absichtlicher Fehler");
+            }
+            return super.getChildrenSorted();
+        }
+    }
+
+    private static List<String> names(List<FilePath> paths) {
+        final List<String> ret = new ArrayList<String>();
+        for (final FilePath p : paths) {
+            ret.add(p.getName());
+        }
+        return ret;
+    }
+
+    @Test
+    public void testSubdirectoriesAreListedInPool() throws Exception {
+        final StubFilePath root = new StubFilePath(null, "root");
+        final RecordingDir a = new RecordingDir(root, "a", false);
+        new StubFilePath(a, "x.txt", 1, 2);
+        new StubFilePath(root, "f.txt", 3, 4);
+
+        final DirectoryPrefetcher prefetcher = new DirectoryPrefetcher();
+        prefetcher.start(2, "test");
+        try {
+            final List<FilePath> rootChildren = prefetcher.getChildrenSorted(root);
+            assertEquals(TestHelper.getChildrenNames(root), names(rootChildren));
+            assertEquals(Collections.singletonList("x.txt"), names(prefetcher.getChildrenSorted(rootChildren.get(0))));
+            assertEquals(1, a.listedBy.size());
+            assertTrue(a.listedBy.get(0), a.listedBy.get(0).startsWith("test-prefetch"));
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test
+    public void testAttributesAreDeterminedWhenListing() throws Exception {
+        final StubFilePath root = new StubFilePath(null, "root");
+        new StubFilePath(root, "sub");
+        final StubFilePath file = new StubFilePath(root, "datei", 123, 456);
+
+        final DirectoryPrefetcher prefetcher = new DirectoryPrefetcher();
+        final List<FilePath> children = prefetcher.getChildrenSorted(root);
+        file.setLastChange(789);
+
+        assertEquals("datei", children.get(0).getName());
+        assertFalse(children.get(0).isDirectory());
+        assertEquals(123, children.get(0).getSize());
+        assertEquals(456, children.get(0).getLastChange());
+        assertTrue(children.get(1).isDirectory());
+        prefetcher.close();
+    }
+
+    @Test
+    public void testFailedPrefetchIsRetriedDirectly() throws Exception {
+        final StubFilePath root = new StubFilePath(null, "root");
+        final RecordingDir a = new RecordingDir(root, "a", true);
+        new StubFilePath(a, "x.txt", 1, 2);
+
+        final DirectoryPrefetcher prefetcher = new DirectoryPrefetcher();
+        prefetcher.start(1, "test");
+        try {
+            final List<FilePath> rootChildren = prefetcher.getChildrenSorted(root);
+            assertEquals(Collections.singletonList("x.txt"), names(prefetcher.getChildrenSorted(rootChildren.get(0))));
+            assertEquals(2, a.listedBy.size());
+            assertEquals(Thread.currentThread().getName(), a.listedBy.get(1));
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test
+    public void testWithoutPoolEverythingIsListedDirectly() throws Exception {
+        final StubFilePath root = new StubFilePath(null, "root");
+        final RecordingDir a = new RecordingDir(root, "a", false);
+
+        final DirectoryPrefetcher prefetcher = new DirectoryPrefetcher();
+        final List<FilePath> rootChildren = prefetcher.getChildrenSorted(root);
+        prefetcher.getChildrenSorted(rootChildren.get(0));
+        assertEquals(Collections.singletonList(Thread.currentThread().getName()), a.listedBy);
+        prefetcher.close();
+    }
+
+}
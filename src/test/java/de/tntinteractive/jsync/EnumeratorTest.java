@@ -29,9 +29,14 @@ import org.junit.Test;
 public class EnumeratorTest {
 
     private static String callEnumerator(StubFilePath p) throws Exception {
+        return callEnumerator(p, false);
+    }
+
+    private static String callEnumerator(StubFilePath p, boolean sendDigests) throws Exception {
         final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         final ExceptionBuffer exc = new ExceptionBuffer();
         final Enumerator e = new Enumerator(p, buffer, new FastConcurrentList<FilePath>(), exc);
+        e.setSendDigests(sendDigests);
         e.run();
         exc.doHandling();
         return TestHelper.toHexString(buffer.toByteArray());
@@ -92,4 +97,22 @@ public class EnumeratorTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void testSendFilesWithDigests() throws Exception {
+        final StubFilePath p = StubFilePathBuilder.start("x")
+                .file("a.txt", "inhalt a")
+                .file("b.txt", "")
+                .build();
+
+        final String expected = GeneratorCommandBuilder.start()
+                .stepDown("x")
+                .fileWithDigest("a.txt", 8, 42, TestHelper.md4("inhalt a"))
+                .fileWithDigest("b.txt", 0, 42, TestHelper.md4(""))
+                .stepUp()
+                .toHexString();
+
+        final String actual = callEnumerator(p, true);
+        assertEquals(expected, actual);
+    }
+
 }
@@ -43,6 +43,12 @@ public class GeneratorCommandBuilder extends CommandBuilder {
         return this;
     }
 
+    public GeneratorCommandBuilder fileWithDigest(String name, long size, long lastChange, byte[] digest)
+        throws IOException {
+        this.writer.writeFileWithDigest(name, size, lastChange, digest);
+        return this;
+    }
+
     public GeneratorCommandBuilder stepUp() throws IOException {
         this.writer.writeStepUp();
         return this;
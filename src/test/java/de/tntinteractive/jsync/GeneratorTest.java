@@ -19,10 +19,13 @@
 package de.tntinteractive.jsync;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -249,6 +252,39 @@ public class GeneratorTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void testDeletionViaTrash() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .stepUp();
+
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .startDir("verz")
+                .file("a", 123, 456)
+                .endDir()
+                .file("datei", 123, 456)
+                .endDir()
+                .build();
+
+        final String expected = SenderCommandBuilder.start()
+                .enumeratorDone()
+                .everythingOk()
+                .toHexString();
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(-1);
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()), remoteParentDir,
+                toResend, buffer, new FastConcurrentList<TargetFileInfo>());
+        generator.setDeleteViaTrash(true);
+        generator.run();
+        //beim EVERYTHING_OK ist auch der Papierkorb schon geleert
+        checkChildren(remoteParentDir, "xyz");
+        checkChildren(remoteParentDir.getChild("xyz"));
+        assertEquals(expected, TestHelper.toHexString(buffer.toByteArray()));
+    }
+
     @Test
     public void testFileWithSameAttributesIsNotCopied() throws Exception {
         final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
@@ -273,6 +309,62 @@ public class GeneratorTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void testSameDigestOnlySetsChangeTime() throws Exception {
+        final String content = TestHelper.multiplyString("abc", 1000);
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .fileWithDigest("datei", content.length(), 456, TestHelper.md4(content))
+                .stepUp();
+
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei", content)
+                .endDir()
+                .build();
+
+        final String expected = SenderCommandBuilder.start()
+                .enumeratorDone()
+                .everythingOk()
+                .toHexString();
+
+        final String actual = callGenerator(input, remoteParentDir);
+        assertEquals(expected, actual);
+        final StubFilePath file = remoteParentDir.getChild("xyz").getChild("datei");
+        assertEquals(content, file.getContent());
+        assertEquals(456, file.getLastChange());
+    }
+
+    @Test
+    public void testOtherDigestLeadsToNormalSignatures() throws Exception {
+        final String content = TestHelper.multiplyString("a", 3000);
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .fileWithDigest("datei", content.length(), 456, TestHelper.md4(TestHelper.multiplyString("b", 3000)))
+                .stepUp();
+
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei", content)
+                .endDir()
+                .build();
+
+        final String expected = SenderCommandBuilder.start()
+                .startFile(0, 4, 2048)
+                .hash(TestHelper.rollingChecksum(content.substring(0, 2048)),
+                        TestHelper.shortMD4(content.substring(0, 2048), 4))
+                .tailHash(952, TestHelper.rollingChecksum(content.substring(2048)),
+                        TestHelper.shortMD4(content.substring(2048), 4))
+                .endFile()
+                .enumeratorDone()
+                .everythingOk()
+                .toHexString();
+
+        final String actual = callGenerator(input, remoteParentDir);
+        assertEquals(expected, actual);
+        assertEquals(42, remoteParentDir.getChild("xyz").getChild("datei").getLastChange());
+    }
+
     @Test
     public void testFileCreation() throws Exception {
         final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
@@ -450,6 +542,358 @@ public class GeneratorTest {
                 .startFile(0, 4, 2048)
                 .hash(TestHelper.rollingChecksum(block1), TestHelper.shortMD4(block1, 4))
                 .hash(TestHelper.rollingChecksum(block2), TestHelper.shortMD4(block2, 4))
+                .tailHash(2047, TestHelper.rollingChecksum(block3), TestHelper.shortMD4(block3, 4))
+                .endFile()
+                .enumeratorDone()
+                .everythingOk()
+                .toHexString();
+
+        final String actual = callGenerator(input, remoteParentDir);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testOnlyTailHashForShortFile() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .file("datei", 123, 456)
+                .stepUp();
+
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei", "kurzer Inhalt")
+                .endDir()
+                .build();
+
+        final String expected = SenderCommandBuilder.start()
+                .startFile(0, 4, 2048)
+                .tailHash(13, TestHelper.rollingChecksum("kurzer Inhalt"), TestHelper.shortMD4("kurzer Inhalt", 4))
+                .endFile()
+                .enumeratorDone()
+                .everythingOk()
+                .toHexString();
+
+        final String actual = callGenerator(input, remoteParentDir);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testBlockSizeGrowsWithSquareRootOfFileSize() {
+        final int min = Generator.DEFAULT_MIN_BLOCK_SIZE;
+        final int max = Generator.DEFAULT_MAX_BLOCK_SIZE;
+        assertEquals(min, Generator.determineBlockSize(0, min, max));
+        assertEquals(min, Generator.determineBlockSize(1000000, min, max));
+        assertEquals(10000, Generator.determineBlockSize(100000000L, min, max));
+        assertEquals(447216, Generator.determineBlockSize(200L * 1000 * 1000 * 1000, min, max));
+        assertEquals(max, Generator.determineBlockSize(1L << 50, min, max));
+        assertEquals(16, Generator.determineBlockSize(100, 10, 20));
+    }
+
+    @Test
+    public void testFileHashingWithLargerBlocks() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .file("datei", 123, 456)
+                .stepUp();
+
+        final String block1 = TestHelper.multiplyString("a", 40004);
+        final String block2 = TestHelper.multiplyString("b", 1000);
+
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei", block1 + block2)
+                .endDir()
+                .build();
+
+        final String expected = SenderCommandBuilder.start()
+                .startFile(0, 4, 40004)
+                .hash(TestHelper.rollingChecksum(block1), TestHelper.shortMD4(block1, 4))
+                .tailHash(1000, TestHelper.rollingChecksum(block2), TestHelper.shortMD4(block2, 4))
+                .endFile()
+                .enumeratorDone()
+                .everythingOk()
+                .toHexString();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(-1);
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()), remoteParentDir,
+                toResend, buffer, new FastConcurrentList<TargetFileInfo>());
+        generator.setBlockSizeLimits(40000, 50000);
+        generator.run();
+        assertEquals(expected, TestHelper.toHexString(buffer.toByteArray()));
+    }
+
+    @Test
+    public void testSuperBlockSignaturesForLargeFile() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .file("datei", 123, 456)
+                .stepUp();
+
+        final String[] superBlocks = new String[] {
+            TestHelper.multiplyString("a", 320),
+            TestHelper.multiplyString("b", 320),
+            TestHelper.multiplyString("c", 320),
+            TestHelper.multiplyString("d", 320),
+        };
+        final String tail = "eeeee";
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei", superBlocks[0] + superBlocks[1] + superBlocks[2] + superBlocks[3] + tail)
+                .endDir()
+                .build();
+
+        final SenderCommandBuilder expected = SenderCommandBuilder.start().startSuperBlockFile(0, 4, 10, 320);
+        for (final String superBlock : superBlocks) {
+            expected.hash(TestHelper.rollingChecksum(superBlock), TestHelper.shortMD4(superBlock, 4));
+        }
+        expected.tailHash(5, TestHelper.rollingChecksum(tail), TestHelper.shortMD4(tail, 4))
+                .endFile()
+                .enumeratorDone()
+                .everythingOk();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(-1);
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()), remoteParentDir,
+                toResend, buffer, new FastConcurrentList<TargetFileInfo>());
+        generator.setBlockSizeLimits(6, 6);
+        generator.setSuperBlockSignatures(true);
+        generator.run();
+        assertEquals(expected.toHexString(), TestHelper.toHexString(buffer.toByteArray()));
+    }
+
+    @Test
+    public void testNoSuperBlocksForSmallFile() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .file("datei", 123, 456)
+                .stepUp();
+
+        final String content = TestHelper.multiplyString("a", 1275);
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei", content)
+                .endDir()
+                .build();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(-1);
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()), remoteParentDir,
+                toResend, buffer, new FastConcurrentList<TargetFileInfo>());
+        generator.setBlockSizeLimits(6, 6);
+        generator.setSuperBlockSignatures(true);
+        generator.run();
+        final String actual = TestHelper.toHexString(buffer.toByteArray());
+        assertTrue(actual.startsWith(SenderCommandBuilder.start().startFile(0, 4, 10).toHexString()));
+    }
+
+    @Test
+    public void testFineSignaturesOnlyForRequestedSuperBlocks() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .stepUp();
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .endDir()
+                .build();
+
+        final String content = TestHelper.multiplyString("0123456789", 4)
+                + TestHelper.multiplyString("abcdefghij", 4)
+                + TestHelper.multiplyString("ABCDEFGHIJ", 4)
+                + "klmnopqrstuvw";
+        final StubFilePath file = new StubFilePath(null, "datei", content);
+        final FastConcurrentList<TargetFileInfo> filePaths = new FastConcurrentList<TargetFileInfo>();
+        filePaths.add(new TargetFileInfo(file, 123));
+        //Superblock 0 und 2 wurden gefunden, 1 und der unvollständige 3 nicht
+        filePaths.get(0).setFineSignatureRequest(TestHelper.fineSignatureRequest(10, 40, true, false, true, false));
+
+        final SenderCommandBuilder expected = SenderCommandBuilder.start()
+                .enumeratorDone()
+                .startFile(0, 5, 10)
+                .skipBlocks(4);
+        for (int i = 0; i < 4; i++) {
+            expected.hash(TestHelper.rollingChecksum("abcdefghij"), TestHelper.shortMD4("abcdefghij", 5));
+        }
+        expected.skipBlocks(4)
+                .hash(TestHelper.rollingChecksum("klmnopqrst"), TestHelper.shortMD4("klmnopqrst", 5))
+                .tailHash(3, TestHelper.rollingChecksum("uvw"), TestHelper.shortMD4("uvw", 5))
+                .endFile()
+                .everythingOk();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(0);
+        toResend.add(-1);
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()), remoteParentDir,
+                toResend, buffer, filePaths);
+        generator.run();
+        assertEquals(expected.toHexString(), TestHelper.toHexString(buffer.toByteArray()));
+    }
+
+    private static String callGeneratorWithManyChangedFiles(int hashThreads) throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start().stepDown("xyz");
+        final StubFilePathBuilder dir = StubFilePathBuilder.start("tmp").startDir("xyz");
+        for (int i = 0; i < 100; i++) {
+            final String name = String.format("datei%03d", i);
+            input.file(name, 123, 456);
+            if (i % 3 != 0) {
+                //jede dritte Datei fehlt, die anderen haben unterschiedlich viele Blöcke
+                dir.file(name, TestHelper.multiplyString(Integer.toString(i), 1000 * (i % 7) + 5));
+            }
+        }
+        input.stepUp();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(-1);
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()),
+                dir.endDir().build(), toResend, buffer, new FastConcurrentList<TargetFileInfo>());
+        generator.setHashThreads(hashThreads);
+        generator.run();
+        return TestHelper.toHexString(buffer.toByteArray());
+    }
+
+    @Test
+    public void testRegionResendForFailedTempFile() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .stepUp();
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .endDir()
+                .build();
+
+        final int segmentSize = Generator.RESEND_SEGMENT_SIZE;
+        final String[] segments = new String[] {
+            TestHelper.multiplyString("a", segmentSize),
+            TestHelper.multiplyString("b", segmentSize),
+            TestHelper.multiplyString("c", segmentSize),
+            TestHelper.multiplyString("d", segmentSize),
+            "rest",
+        };
+        final StringBuilder content = new StringBuilder();
+        final byte[] segmentDigests = new byte[segments.length * MD4.DIGEST_LENGTH];
+        for (int i = 0; i < segments.length; i++) {
+            content.append(segments[i]);
+            System.arraycopy(TestHelper.md4(segments[i]), 0, segmentDigests, i * MD4.DIGEST_LENGTH, MD4.DIGEST_LENGTH);
+        }
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath file = new StubFilePath(dir, "datei", "alt");
+        final StubFilePath failedTempFile = new StubFilePath(dir, "datei.jsresend", content.toString());
+        final FastConcurrentList<TargetFileInfo> filePaths = new FastConcurrentList<TargetFileInfo>();
+        filePaths.add(new TargetFileInfo(file, 123));
+        filePaths.get(0).setFailedTempFile(failedTempFile);
+
+        final String expected = SenderCommandBuilder.start()
+                .enumeratorDone()
+                .regionResend(0, segmentSize, segmentDigests)
+                .everythingOk()
+                .toHexString();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(0);
+        toResend.add(-1);
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()), remoteParentDir,
+                toResend, buffer, filePaths);
+        generator.run();
+        assertEquals(expected, TestHelper.toHexString(buffer.toByteArray()));
+    }
+
+    @Test
+    public void testSmallFailedTempFileIsDeletedAndFileResentNormally() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .stepUp();
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .endDir()
+                .build();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath file = new StubFilePath(dir, "datei", "alt");
+        final StubFilePath failedTempFile = new StubFilePath(dir, "datei.jsresend", "kaputt");
+        final FastConcurrentList<TargetFileInfo> filePaths = new FastConcurrentList<TargetFileInfo>();
+        filePaths.add(new TargetFileInfo(file, 123));
+        filePaths.get(0).setFailedTempFile(failedTempFile);
+
+        final String expected = SenderCommandBuilder.start()
+                .enumeratorDone()
+                .startFile(0, 5, 0)
+                .endFile()
+                .everythingOk()
+                .toHexString();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(0);
+        toResend.add(-1);
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()), remoteParentDir,
+                toResend, buffer, filePaths);
+        generator.run();
+        assertEquals(expected, TestHelper.toHexString(buffer.toByteArray()));
+        checkChildren(dir, "datei");
+    }
+
+    @Test
+    public void testTempFileOfAbortedTransferIsResumed() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .file("datei", 10000, 456)
+                .stepUp();
+
+        final String block1 = TestHelper.multiplyString("a", 2048);
+        final String block2 = TestHelper.multiplyString("b", 2048);
+        final String zeros = TestHelper.multiplyString("\0", 2048);
+
+        //hinter dem geschriebenen Teil ist die vorab vergrößerte Tempdatei leer, der Rest ist kein ganzer Block
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei.jstmp", block1 + block2 + zeros + "rest")
+                .endDir()
+                .build();
+
+        final String expected = SenderCommandBuilder.start()
+                .startFile(0, 4, 2048)
+                .hash(TestHelper.rollingChecksum(block1), TestHelper.shortMD4(block1, 4))
+                .hash(TestHelper.rollingChecksum(block2), TestHelper.shortMD4(block2, 4))
+                .endFile()
+                .enumeratorDone()
+                .everythingOk()
+                .toHexString();
+
+        final String actual = callGenerator(input, remoteParentDir);
+        assertEquals(expected, actual);
+        checkChildren(remoteParentDir.getChild("xyz"), "datei.jspartial");
+    }
+
+    @Test
+    public void testTempFileOfAbortedTransferIsResumedBeforeOldFile() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .file("datei", 10000, 456)
+                .file("datei.txt", 3, 789)
+                .stepUp();
+
+        final String block1 = TestHelper.multiplyString("a", 2048);
+        final String old = TestHelper.multiplyString("c", 2047);
+
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei", old)
+                .file("datei.jspartial", "noch älter")
+                .file("datei.jstmp", block1 + "b")
+                .file("datei.txt", 3, 789)
+                .endDir()
+                .build();
+
+        final String expected = SenderCommandBuilder.start()
+                .startFile(0, 4, 2048)
+                .hash(TestHelper.rollingChecksum(block1), TestHelper.shortMD4(block1, 4))
+                .tailHash(2047, TestHelper.rollingChecksum(old), TestHelper.shortMD4(old, 4))
                 .endFile()
                 .enumeratorDone()
                 .everythingOk()
@@ -457,10 +901,25 @@ public class GeneratorTest {
 
         final String actual = callGenerator(input, remoteParentDir);
         assertEquals(expected, actual);
+        checkChildren(remoteParentDir.getChild("xyz"), "datei", "datei.jspartial", "datei.txt");
+        assertEquals(block1 + "b", remoteParentDir.getChild("xyz").getChild("datei.jspartial").getContent());
     }
 
     @Test
-    public void testNoHashForShortFile() throws Exception {
+    public void testResumableLengthEndsAfterLastBlockWithData() throws Exception {
+        //mehrere Stücke beim Suchen vom Ende her, der Rest hinter dem letzten ganzen Block zählt nicht
+        final StringBuilder content = new StringBuilder(TestHelper.multiplyString("\0", 3000500));
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        content.setCharAt(1500, 'x');
+        content.setCharAt(3000200, 'x');
+        assertEquals(2000, Generator.determineResumableLength(new StubFilePath(dir, "a", content.toString()), 1000));
+        content.setCharAt(2999999, 'x');
+        assertEquals(3000000, Generator.determineResumableLength(new StubFilePath(dir, "b", content.toString()), 1000));
+        assertEquals(0, Generator.determineResumableLength(new StubFilePath(dir, "c", "\0\0\0"), 1000));
+    }
+
+    @Test
+    public void testLeftoverTempFilesAreDeletedBeforeTheTransfer() throws Exception {
         final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
                 .stepDown("xyz")
                 .file("datei", 123, 456)
@@ -469,11 +928,23 @@ public class GeneratorTest {
         final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
                 .startDir("xyz")
                 .file("datei", "kurzer Inhalt")
+                .file("datei.jsresend", "alt")
                 .endDir()
                 .build();
+        //die Tempdateien müssen im Thread des Generators gelöscht werden, nicht später im Hintergrund, sonst
+        //  könnte die neue Tempdatei des Receivers gelöscht werden
+        final List<Thread> deletingThreads = new ArrayList<Thread>();
+        new StubFilePath(remoteParentDir.getChild("xyz"), "datei.jstmp", "zu kurz zum Weiterverwenden") {
+            @Override
+            public void delete() {
+                deletingThreads.add(Thread.currentThread());
+                super.delete();
+            }
+        };
 
         final String expected = SenderCommandBuilder.start()
                 .startFile(0, 4, 2048)
+                .tailHash(13, TestHelper.rollingChecksum("kurzer Inhalt"), TestHelper.shortMD4("kurzer Inhalt", 4))
                 .endFile()
                 .enumeratorDone()
                 .everythingOk()
@@ -481,5 +952,17 @@ public class GeneratorTest {
 
         final String actual = callGenerator(input, remoteParentDir);
         assertEquals(expected, actual);
+        checkChildren(remoteParentDir.getChild("xyz"), "datei");
+        assertEquals(Arrays.asList(Thread.currentThread()), deletingThreads);
     }
+
+    @Test
+    public void testParallelHashingKeepsOrder() throws Exception {
+        final String sequential = callGeneratorWithManyChangedFiles(1);
+        //66 Dateien mit Hashes, 34 fehlende Dateien mit jeweils 10 Bytes für Start und Ende
+        assertTrue(sequential.length() > 2 * (66 * 20 + 34 * 10));
+        assertEquals(sequential, callGeneratorWithManyChangedFiles(4));
+        assertEquals(sequential, callGeneratorWithManyChangedFiles(16));
+    }
+
 }
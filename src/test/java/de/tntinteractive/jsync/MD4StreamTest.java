@@ -23,6 +23,7 @@ import static org.junit.Assert.assertEquals;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
@@ -105,4 +106,37 @@ public class MD4StreamTest {
                 TestHelper.toHexString(md4.getDigest()));
     }
 
+    @Test
+    public void testReusedInstanceGivesSameShortenedDigests() throws Exception {
+        final byte[] data = TestHelper.toIso("xxdies ist ein test, der laenger als ein MD4-Block ist, damit es spannend wirdyy");
+        final MD4 md4 = new MD4();
+        final byte[] target = new byte[5];
+        for (int len = 0; len < data.length - 4; len++) {
+            md4.determineInto(data, 2, len, target);
+            final byte[] expected = new byte[len];
+            System.arraycopy(data, 2, expected, 0, len);
+            assertEquals(
+                    TestHelper.toHexString(MD4.determineFor(expected, 5)),
+                    TestHelper.toHexString(target));
+        }
+    }
+
+    @Test
+    public void testDirectBufferInSeveralParts() throws Exception {
+        final String content = TestHelper.multiplyString("0123456789abcdefghijklmnopqrstuvwxyz", 20);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(content.length() + 10);
+        direct.put(TestHelper.toIso("XXXXX" + content + "YYYYY"));
+        direct.flip();
+
+        final MD4 md4 = new MD4();
+        md4.engineUpdate(direct, 5, 3);
+        md4.engineUpdate(direct, 8, 100);
+        md4.engineUpdate(direct, 108, content.length() - 103);
+
+        assertEquals(
+                TestHelper.toHexString(TestHelper.md4(content)),
+                TestHelper.toHexString(md4.engineDigest()));
+        assertEquals(0, direct.position());
+    }
+
 }
@@ -0,0 +1,102 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OrderedCommandOutputTest {
+
+    private static final int HASH_COUNT = 20000;
+
+    /**
+     * Schreibt viele Hashes für eine Datei, die Hälfte davon erst, wenn der Latch freigegeben wurde.
+     */
+    private static OrderedCommandOutput.Commands manyHashes(final int index, final CountDownLatch halfway) {
+        return new OrderedCommandOutput.Commands() {
+            @Override
+            public void writeTo(SenderCommandWriter writer) throws IOException {
+                writer.writeFileStart(index, 4, 2048);
+                for (int i = 0; i < HASH_COUNT; i++) {
+                    if (i == HASH_COUNT / 2 && halfway != null) {
+                        try {
+                            if (!halfway.await(10, TimeUnit.SECONDS)) {
+                                throw new IOException("timeout");
+                            }
+                        } catch (final InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    writer.writeHashes(i, new byte[] {(byte) index, 2, 3, 4});
+                }
+                writer.writeFileEnd();
+            }
+        };
+    }
+
+    /**
+     * Ein Stream, der meldet, wenn eine bestimmte Anzahl Bytes angekommen ist.
+     */
+    private static final class WatchingStream extends ByteArrayOutputStream {
+        private final int threshold;
+        private final CountDownLatch reached = new CountDownLatch(1);
+
+        public WatchingStream(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            if (this.size() >= this.threshold) {
+                this.reached.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void testCommandsOfFirstFileAreWrittenWhileTheyAreProduced() throws Exception {
+        final WatchingStream target = new WatchingStream(HASH_COUNT / 4 * 9);
+        final OrderedCommandOutput output = new OrderedCommandOutput(target);
+        output.start(2, "test");
+        final CountDownLatch halfway = new CountDownLatch(1);
+        output.submitParallel(manyHashes(0, halfway));
+        output.submitParallel(manyHashes(1, null));
+        //der Anfang muss ankommen, obwohl die erste Datei noch nicht fertig ist
+        assertTrue(target.reached.await(10, TimeUnit.SECONDS));
+        halfway.countDown();
+        output.finish();
+        output.close();
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final SenderCommandWriter writer = new SenderCommandWriter(new DataOutputStream(expected));
+        manyHashes(0, null).writeTo(writer);
+        manyHashes(1, null).writeTo(writer);
+        assertArrayEquals(expected.toByteArray(), target.toByteArray());
+    }
+
+}
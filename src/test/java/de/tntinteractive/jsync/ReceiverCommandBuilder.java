@@ -39,23 +39,49 @@ public class ReceiverCommandBuilder extends CommandBuilder {
         return this;
     }
 
+    public ReceiverCommandBuilder startRegionResend(int index) throws IOException {
+        this.writer.writeRegionResendStart(index);
+        return this;
+    }
+
     public ReceiverCommandBuilder endFile(byte[] checksum) throws IOException {
         this.writer.writeFileEnd(checksum);
         return this;
     }
 
+    public ReceiverCommandBuilder unchangedFileEnd(long length, byte[] checksum) throws IOException {
+        this.writer.writeUnchangedFileEnd(length, checksum);
+        return this;
+    }
+
     public ReceiverCommandBuilder rawData(String string) throws IOException {
         final byte[] data = TestHelper.toIso(string);
         this.writer.writeRawData(data.length, new ByteArrayInputStream(data));
         return this;
     }
 
+    public ReceiverCommandBuilder zeroRun(long length) throws IOException {
+        this.writer.writeZeroRun(length);
+        return this;
+    }
+
     public ReceiverCommandBuilder copyBlock(long startOffset, int length) throws IOException {
         assert length <= Short.MAX_VALUE;
         this.writer.writeCopyBlock(startOffset, (short) length);
         return this;
     }
 
+    public ReceiverCommandBuilder copyRange(long startOffset, long length) throws IOException {
+        this.writer.writeCopyRange(startOffset, length);
+        return this;
+    }
+
+    public ReceiverCommandBuilder fineSignatureRequest(int index, int blockSize, int superBlockSize,
+            boolean... matched) throws IOException {
+        this.writer.writeFineSignatureRequest(index, TestHelper.fineSignatureRequest(blockSize, superBlockSize, matched));
+        return this;
+    }
+
     public ReceiverCommandBuilder enumeratorDone() throws IOException {
         this.writer.writeEnumeratorDone();
         return this;
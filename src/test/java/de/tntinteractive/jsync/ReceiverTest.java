@@ -22,12 +22,20 @@ n 3 of the License, or
 package de.tntinteractive.jsync;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -107,6 +115,27 @@ public class ReceiverTest {
         checkToResend(toResend, -1);
     }
 
+    @Test
+    public void testReceptionWithCopyRange() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyRange(5, 6)
+                .rawData("2")
+                .copyRange(0, 5)
+                .endFile(TestHelper.md4("inhalt2datei"))
+                .enumeratorDone();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath f = new StubFilePath(dir, "datei", "dateiinhalt");
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        callReceiver(input, toResend, f);
+
+        checkDirectoryContent(dir, "datei");
+        checkContent(dir.getChild("datei"), "inhalt2datei");
+        checkToResend(toResend, -1);
+    }
+
     @Test
     public void testReceptionWithWrongChecksumLeadsToResend() throws Exception {
         final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
@@ -151,6 +180,412 @@ public class ReceiverTest {
         checkToResend(toResend, 0, 0, -1);
     }
 
+    @Test
+    public void testFineSignatureRequestIsPassedOnLikeAResend() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .fineSignatureRequest(0, 10, 40, true, false, true)
+                .enumeratorDone()
+                .startFile(0)
+                .rawData("dateiinhalt")
+                .endFile(TestHelper.md4("dateiinhalt"));
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath f = new StubFilePath(dir, "datei", "alter Inhalt");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(f, 678));
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend).run();
+
+        checkContent(dir.getChild("datei"), "dateiinhalt");
+        checkToResend(toResend, 0, -1);
+        final FineSignatureRequest request = targetFiles.get(0).takeFineSignatureRequest();
+        assertEquals(10, request.getBlockSize());
+        assertEquals(40, request.getSuperBlockSize());
+        assertEquals(3, request.getSuperBlockCount());
+        assertTrue(request.isMatched(0));
+        assertFalse(request.isMatched(1));
+        assertTrue(request.isMatched(2));
+        assertNull(targetFiles.get(0).takeFineSignatureRequest());
+    }
+
+    @Test
+    public void testFailedTempFileIsKeptForRegionResend() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData("0123falsch456789")
+                .endFile(TestHelper.md4("0123richtig456789"))
+                .enumeratorDone()
+                .startRegionResend(0)
+                .copyRange(0, 4)
+                .rawData("richtig")
+                .copyRange(10, 6)
+                .endFile(TestHelper.md4("0123richtig456789"));
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath f = new StubFilePath(dir, "datei", "alter Inhalt");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(f, 678));
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.setRegionResend(true);
+        receiver.run();
+
+        final FilePath failed = targetFiles.get(0).takeFailedTempFile();
+        assertEquals("datei.jsresend", failed.getName());
+        checkDirectoryContent(dir, "datei");
+        checkContent(dir.getChild("datei"), "0123richtig456789");
+        checkToResend(toResend, 0, -1);
+    }
+
+    @Test
+    public void testNoRegionResendAfterFailedRegionResend() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData("0123falsch456789")
+                .endFile(TestHelper.md4("0123richtig456789"))
+                .enumeratorDone()
+                .startRegionResend(0)
+                .copyRange(0, 4)
+                .rawData("immer noch falsch")
+                .endFile(TestHelper.md4("0123richtig456789"));
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath f = new StubFilePath(dir, "datei", "alter Inhalt");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(f, 678));
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.setRegionResend(true);
+        receiver.run();
+
+        //beim zweiten Fehlschlag wird die Tempdatei nicht mehr aufgehoben, sondern wieder die ganze Datei abgeglichen
+        checkDirectoryContent(dir, "datei");
+        checkContent(dir.getChild("datei"), "alter Inhalt");
+        checkToResend(toResend, 0, 0, -1);
+    }
+
+    @Test
+    public void testInPlaceUpdateOfExistingFile() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyBlock(0, 10)
+                .rawData("XY")
+                .copyBlock(14, 6)
+                .endFile(TestHelper.md4("0123456789XYefghij"))
+                .enumeratorDone();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath f = new StubFilePath(dir, "datei", "0123456789abcdefghij");
+
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(f, 678));
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.setInPlace(true);
+        receiver.run();
+
+        //die Datei wurde nicht über eine Tempdatei ersetzt, sondern direkt geändert und gekürzt
+        checkDirectoryContent(dir, "datei");
+        assertTrue(dir.getChild("datei") == f);
+        checkContent(f, "0123456789XYefghij");
+        assertEquals(678, f.getLastChange());
+        checkToResend(toResend, -1);
+    }
+
+    @Test
+    public void testInPlaceModeUsesTempFileForNewFile() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData("neu")
+                .endFile(TestHelper.md4("neu"))
+                .enumeratorDone();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(dir.getChild("datei"), 678));
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.setInPlace(true);
+        receiver.run();
+
+        checkDirectoryContent(dir, "datei");
+        checkContent(dir.getChild("datei"), "neu");
+        checkToResend(toResend, -1);
+    }
+
+    @Test
+    public void testParallelWritersWithSmallMemoryBudget() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start();
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        final List<Integer> failing = new ArrayList<Integer>();
+        for (int i = 0; i < 30; i++) {
+            final StubFilePath f = new StubFilePath(dir, String.format("datei%02d", i), "alt" + i);
+            targetFiles.add(new TargetFileInfo(f, 678));
+            //einige Dateien sind größer als das Speicherbudget
+            final String content = TestHelper.multiplyString("neu" + i, i % 5 == 0 ? 200000 : 100);
+            input.startFile(i).copyBlock(0, 3).rawData(content);
+            if (i % 7 == 3) {
+                failing.add(i);
+                input.endFile(TestHelper.md4("falsch"));
+            } else {
+                input.endFile(TestHelper.md4("alt" + content));
+            }
+        }
+        input.enumeratorDone();
+        for (final Integer i : failing) {
+            input.startFile(i).rawData("korrigiert").endFile(TestHelper.md4("korrigiert"));
+        }
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.setWriterThreads(4);
+        receiver.setMemoryBudget(0);
+        receiver.run();
+
+        final List<Integer> resent = new ArrayList<Integer>(toResend);
+        assertEquals(Integer.valueOf(-1), resent.remove(resent.size() - 1));
+        //trotz der Schreib-Threads in der Reihenfolge der Dateien, sonst sieht der Generator eine neue Runde
+        assertEquals(failing, resent);
+        for (int i = 0; i < 30; i++) {
+            final StubFilePath f = dir.getChild(String.format("datei%02d", i));
+            if (failing.contains(i)) {
+                checkContent(f, "korrigiert");
+            } else {
+                checkContent(f, "alt" + TestHelper.multiplyString("neu" + i, i % 5 == 0 ? 200000 : 100));
+            }
+            assertEquals(678, f.getLastChange());
+        }
+    }
+
+    @Test
+    public void testParallelWritersReportFailedFilesInOrder() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyBlock(0, 3)
+                .endFile(TestHelper.md4("falsch"))
+                .startFile(1)
+                .rawData("neu")
+                .endFile(TestHelper.md4("falsch"))
+                .enumeratorDone()
+                .startFile(0)
+                .rawData("eins")
+                .endFile(TestHelper.md4("eins"))
+                .startFile(1)
+                .rawData("zwei")
+                .endFile(TestHelper.md4("zwei"));
+
+        final CountDownLatch secondReported = new CountDownLatch(1);
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>() {
+            @Override
+            public boolean add(Integer index) {
+                if (index == 1) {
+                    secondReported.countDown();
+                }
+                return super.add(index);
+            }
+        };
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        //die erste Datei wird erst fertig, wenn die zweite gemeldet wurde (oder das nicht mehr passiert)
+        final StubFilePath slow = new StubFilePath(dir, "langsam", "alt") {
+            @Override
+            public RandomAccessInput openRandomAccessInput() throws IOException {
+                try {
+                    secondReported.await(500, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.openRandomAccessInput();
+            }
+        };
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(slow, 678));
+        targetFiles.add(new TargetFileInfo(dir.getChild("schnell"), 678));
+
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.setWriterThreads(2);
+        receiver.run();
+
+        checkToResend(toResend, 0, 1, -1);
+        checkContent(dir.getChild("langsam"), "eins");
+        checkContent(dir.getChild("schnell"), "zwei");
+    }
+
+    @Test
+    public void testParallelWriterFailureStopsReceiver() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyBlock(100, 5)
+                .endFile(TestHelper.md4("egal"))
+                .startFile(1)
+                .rawData("neu")
+                .endFile(TestHelper.md4("neu"))
+                .enumeratorDone();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(new StubFilePath(dir, "kurz", "zu kurz"), 678));
+        targetFiles.add(new TargetFileInfo(dir.getChild("neu"), 678));
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.setWriterThreads(2);
+        receiver.run();
+
+        //wie im Single-Thread-Modus bricht der Receiver ab, ohne das Ende zu melden
+        checkToResend(toResend);
+    }
+
+    @Test
+    public void testFilesAreSyncedInBatchesBeforeTheEnd() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start();
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        for (int i = 0; i < 10; i++) {
+            targetFiles.add(new TargetFileInfo(dir.getChild("datei" + i), 678));
+            input.startFile(i).rawData("inhalt" + i).endFile(TestHelper.md4("inhalt" + i));
+        }
+        input.startFile(10).rawData("kaputt").endFile(TestHelper.md4("falsch"));
+        targetFiles.add(new TargetFileInfo(dir.getChild("datei10"), 678));
+        input.enumeratorDone();
+        input.startFile(10).rawData("korrigiert").endFile(TestHelper.md4("korrigiert"));
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.setWriterThreads(2);
+        receiver.setFsyncPolicy(FsyncPolicy.PER_BATCH, 3, 100000);
+        receiver.run();
+
+        checkToResend(toResend, 10, -1);
+        for (int i = 0; i < 10; i++) {
+            final StubFilePath f = dir.getChild("datei" + i);
+            checkContent(f, "inhalt" + i);
+            assertEquals(678, f.getLastChange());
+            assertEquals(1, f.getSyncCount());
+        }
+        checkContent(dir.getChild("datei10"), "korrigiert");
+        assertEquals(1, dir.getChild("datei10").getSyncCount());
+        assertFalse(dir.hasChild("datei0.jstmp"));
+    }
+
+    @Test
+    public void testZeroRunsInTempFileAndInPlace() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData("anfang")
+                .zeroRun(9000)
+                .rawData("ende")
+                .endFile(TestHelper.md4("anfang" + TestHelper.multiplyString("\0", 9000) + "ende"))
+                .startFile(1)
+                .zeroRun(5)
+                .copyBlock(5, 3)
+                .zeroRun(2)
+                .endFile(TestHelper.md4("\0\0\0\0\0abc\0\0"))
+                .enumeratorDone();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(dir.getChild("neu"), 678));
+        targetFiles.add(new TargetFileInfo(new StubFilePath(dir, "alt", "\0\0xx\0abcdefgh"), 678));
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.setSparse(true);
+        receiver.setInPlace(true);
+        receiver.setWriterThreads(2);
+        receiver.run();
+
+        checkToResend(toResend, -1);
+        checkContent(dir.getChild("neu"), "anfang" + TestHelper.multiplyString("\0", 9000) + "ende");
+        checkContent(dir.getChild("alt"), "\0\0\0\0\0abc\0\0");
+    }
+
+    @Test
+    public void testPreallocatedTempFileGetsActualSize() throws Exception {
+        //die Quelldatei ist seit der Aufzählung geschrumpft
+        final String content = TestHelper.multiplyString("neu", 500000);
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData(content)
+                .endFile(TestHelper.md4(content))
+                .enumeratorDone();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(dir.getChild("datei"), 678, 3000000));
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.run();
+
+        checkToResend(toResend, -1);
+        checkContent(dir.getChild("datei"), content);
+    }
+
+    @Test
+    public void testUnchangedFilesAreNotRewritten() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .unchangedFileEnd(6, TestHelper.md4("gleich"))
+                .startFile(1)
+                .unchangedFileEnd(5, TestHelper.md4("anfa"))
+                .startFile(2)
+                .unchangedFileEnd(4, TestHelper.md4("anfa"))
+                .enumeratorDone()
+                .startFile(1)
+                .rawData("anfan")
+                .endFile(TestHelper.md4("anfan"));
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath same = new StubFilePath(dir, "gleich", "gleich");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(same, 678));
+        //falscher Hash => neu übertragen
+        targetFiles.add(new TargetFileInfo(new StubFilePath(dir, "falsch", "anfan"), 678));
+        //nur der Anfang der alten Datei => wird wie eine Kopie behandelt
+        targetFiles.add(new TargetFileInfo(new StubFilePath(dir, "laenger", "anfang"), 678));
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.run();
+
+        checkToResend(toResend, 1, -1);
+        assertSame(same, dir.getChild("gleich"));
+        assertEquals(678, same.getLastChange());
+        checkContent(dir.getChild("falsch"), "anfan");
+        checkContent(dir.getChild("laenger"), "anfa");
+        assertEquals(678, dir.getChild("laenger").getLastChange());
+        checkDirectoryContent(dir, "falsch", "gleich", "laenger");
+    }
+
+    @Test
+    public void testPartialFileOfEarlierAttemptIsUsedBeforeOldFile() throws Exception {
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyBlock(0, 5)
+                .rawData(" ")
+                .copyBlock(11, 4)
+                .endFile(TestHelper.md4("neuer Rest"))
+                .enumeratorDone();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath partial = new StubFilePath(dir, "datei.jspartial", "neuerXXX");
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(new StubFilePath(dir, "datei", "alter Rest"), 678));
+        targetFiles.get(0).setPartialFile(partial, 5);
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles, toResend);
+        receiver.run();
+
+        checkToResend(toResend, -1);
+        checkContent(dir.getChild("datei"), "neuer Rest");
+        checkDirectoryContent(dir, "datei");
+    }
+
     private static void checkToResend(BlockingQueue<Integer> toResend, Integer... expectedValues) {
         final ArrayList<Integer> actual = new ArrayList<Integer>();
         toResend.drainTo(actual);
@@ -38,11 +38,32 @@ public class SenderCommandBuilder extends CommandBuilder {
         return this;
     }
 
+    public SenderCommandBuilder startSuperBlockFile(int index, int strongHashSize, int blockSize, int superBlockSize)
+        throws IOException {
+        this.writer.writeSuperBlockFileStart(index, strongHashSize, blockSize, superBlockSize);
+        return this;
+    }
+
+    public SenderCommandBuilder skipBlocks(int count) throws IOException {
+        this.writer.writeSkipBlocks(count);
+        return this;
+    }
+
     public SenderCommandBuilder hash(int rollingChecksum, byte[] shortMD4) throws IOException {
         this.writer.writeHashes(rollingChecksum, shortMD4);
         return this;
     }
 
+    public SenderCommandBuilder tailHash(int length, int rollingChecksum, byte[] shortMD4) throws IOException {
+        this.writer.writeTailHash(length, rollingChecksum, shortMD4);
+        return this;
+    }
+
+    public SenderCommandBuilder regionResend(int index, int segmentSize, byte[] segmentDigests) throws IOException {
+        this.writer.writeRegionResend(index, segmentSize, segmentDigests);
+        return this;
+    }
+
     public SenderCommandBuilder endFile() throws IOException {
         this.writer.writeFileEnd();
         return this;
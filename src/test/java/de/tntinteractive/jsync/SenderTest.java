@@ -22,6 +22,9 @@ import static org.junit.Assert.assertEquals;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.junit.Test;
 
@@ -41,6 +44,36 @@ public class SenderTest {
         return TestHelper.toHexString(buffer.toByteArray());
     }
 
+    private static String callSenderPipelined(SenderCommandBuilder input, FilePath... files) throws Exception {
+        final FastConcurrentList<FilePath> b = new FastConcurrentList<FilePath>();
+        for (final FilePath p : files) {
+            b.add(p);
+        }
+        final ByteArrayInputStream source = new ByteArrayInputStream(input.toByteArray());
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final ExceptionBuffer exc = new ExceptionBuffer();
+        final Sender e = new Sender(source, b, buffer, exc);
+        e.setPipelined(true);
+        e.run();
+        exc.doHandling();
+        return TestHelper.toHexString(buffer.toByteArray());
+    }
+
+    private static String callSenderWithChannel(SenderCommandBuilder input, FilePath... files) throws Exception {
+        final FastConcurrentList<FilePath> b = new FastConcurrentList<FilePath>();
+        for (final FilePath p : files) {
+            b.add(p);
+        }
+        final ByteArrayInputStream source = new ByteArrayInputStream(input.toByteArray());
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final ExceptionBuffer exc = new ExceptionBuffer();
+        final Sender e = new Sender(source, b, buffer, exc);
+        e.setTargetChannel(Channels.newChannel(buffer));
+        e.run();
+        exc.doHandling();
+        return TestHelper.toHexString(buffer.toByteArray());
+    }
+
     @Test
     public void testSendWithoutHashes() throws Exception {
         final SenderCommandBuilder input = SenderCommandBuilder.start()
@@ -114,6 +147,43 @@ public class SenderTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void testMultipleFilesWithoutHashesViaChannel() throws Exception {
+        final SenderCommandBuilder input = SenderCommandBuilder.start()
+                .startFile(0, 4, 0)
+                .endFile()
+                .startFile(1, 4, 0)
+                .endFile()
+                .startFile(2, 4, 0)
+                .endFile()
+                .enumeratorDone()
+                .everythingOk();
+
+        final String data1 = "dies sind daten in der ersten datei";
+        final StubFilePath file1 = new StubFilePath(null, "datei", data1);
+
+        final String data2 = "";
+        final StubFilePath file2 = new StubFilePath(null, "datei2", data2);
+
+        final String data3 = "dies sind daten in der dritten datei";
+        final StubFilePath file3 = new StubFilePath(null, "datei3", data3);
+
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData(data1)
+                .endFile(TestHelper.md4(data1))
+                .startFile(1)
+                .endFile(TestHelper.md4(data2))
+                .startFile(2)
+                .rawData(data3)
+                .endFile(TestHelper.md4(data3))
+                .enumeratorDone()
+                .toHexString();
+
+        final String actual = callSenderWithChannel(input, file1, file2, file3);
+        assertEquals(expected, actual);
+    }
+
     @Test
     public void testSendWithHashesAndInsertAtFront() throws Exception {
         final String block1 = TestHelper.multiplyString("x", 10);
@@ -134,8 +204,7 @@ public class SenderTest {
         final String expected = ReceiverCommandBuilder.start()
                 .startFile(0)
                 .rawData("a")
-                .copyBlock(0, 10)
-                .copyBlock(10, 10)
+                .copyBlock(0, 20)
                 .endFile(TestHelper.md4(newContent))
                 .enumeratorDone()
                 .toHexString();
@@ -193,8 +262,7 @@ public class SenderTest {
 
         final String expected = ReceiverCommandBuilder.start()
                 .startFile(0)
-                .copyBlock(0, 10)
-                .copyBlock(10, 10)
+                .copyBlock(0, 20)
                 .rawData("a")
                 .endFile(TestHelper.md4(newContent))
                 .enumeratorDone()
@@ -264,4 +332,353 @@ public class SenderTest {
         assertEquals(expected, actual);
     }
 
+    private static String randomString(Random r, int length) {
+        final byte[] data = new byte[length];
+        r.nextBytes(data);
+        return TestHelper.fromIso(data);
+    }
+
+    private static SenderCommandBuilder hashesFor(String oldContent, int blockSize) throws Exception {
+        final SenderCommandBuilder input = SenderCommandBuilder.start().startFile(0, 4, blockSize);
+        int i = 0;
+        for (; i + blockSize <= oldContent.length(); i += blockSize) {
+            final String block = oldContent.substring(i, i + blockSize);
+            input.hash(TestHelper.rollingChecksum(block), TestHelper.shortMD4(block, 4));
+        }
+        if (i < oldContent.length()) {
+            final String tail = oldContent.substring(i);
+            input.tailHash(tail.length(), TestHelper.rollingChecksum(tail), TestHelper.shortMD4(tail, 4));
+        }
+        return input.endFile().enumeratorDone().everythingOk();
+    }
+
+    /**
+     * Schickt das Diff vom Sender durch den Receiver und liefert den neuen Inhalt der Zieldatei.
+     */
+    private static String roundTrip(String oldContent, String newContent, int blockSize) throws Exception {
+        final FastConcurrentList<FilePath> sourceFiles = new FastConcurrentList<FilePath>();
+        sourceFiles.add(new StubFilePath(null, "datei", newContent));
+        final ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        final ExceptionBuffer exc = new ExceptionBuffer();
+        new Sender(new ByteArrayInputStream(hashesFor(oldContent, blockSize).toByteArray()),
+                sourceFiles, diff, exc).run();
+        exc.doHandling();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath target = new StubFilePath(dir, "datei", oldContent);
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(target, 42));
+        final LinkedBlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        new Receiver(new ByteArrayInputStream(diff.toByteArray()), targetFiles, toResend).run();
+        assertEquals(Integer.valueOf(-1), toResend.poll());
+        return dir.getChild("datei").getContent();
+    }
+
+    @Test
+    public void testLongRunOfBlocksIsSentAsCopyRange() throws Exception {
+        final String oldContent = randomString(new Random(7), 50000);
+        final String newContent = "x" + oldContent.substring(0, 40000) + "y" + oldContent.substring(40000);
+
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData("x")
+                .copyRange(0, 40000)
+                .rawData("y")
+                .copyBlock(40000, 10000)
+                .endFile(TestHelper.md4(newContent))
+                .enumeratorDone()
+                .toHexString();
+
+        final String actual = callSender(hashesFor(oldContent, 10000),
+                new StubFilePath(null, "datei", newContent));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testRepeatedBlocksAreCopiedInOrder() throws Exception {
+        final String block = TestHelper.multiplyString("z", 10);
+        final String oldContent = block + block + block;
+        final String newContent = oldContent + "!";
+
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyBlock(0, 30)
+                .rawData("!")
+                .endFile(TestHelper.md4(newContent))
+                .enumeratorDone()
+                .toHexString();
+
+        final String actual = callSender(hashesFor(oldContent, 10),
+                new StubFilePath(null, "datei", newContent));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testRoundTripWithFileLargerThanScanBuffer() throws Exception {
+        final Random r = new Random(123);
+        final String part1 = randomString(r, 300000);
+        final String part2 = randomString(r, 400000);
+        final String oldContent = part1 + part2;
+        final String newContent = part2 + randomString(r, 77) + part1.substring(1000) + "ende";
+
+        assertEquals(newContent, roundTrip(oldContent, newContent, 700));
+    }
+
+    @Test
+    public void testPipelinedWithAppendedData() throws Exception {
+        final String oldContent = randomString(new Random(11), 100);
+        final String newContent = oldContent + "neu";
+
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyBlock(0, 100)
+                .rawData("neu")
+                .endFile(TestHelper.md4(newContent))
+                .enumeratorDone()
+                .toHexString();
+
+        final String actual = callSenderPipelined(hashesFor(oldContent, 10),
+                new StubFilePath(null, "datei", newContent));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testPipelinedGivesSameDiffAsNormalMode() throws Exception {
+        final Random r = new Random(99);
+        final String oldContent = randomString(r, 5000);
+        final String[] newContents = new String[] {
+            oldContent,
+            oldContent.substring(0, 2000) + "abc" + oldContent.substring(2000),
+            "vorne" + oldContent,
+            oldContent.substring(0, 4321),
+            oldContent.substring(1000, 3000) + oldContent.substring(0, 1000),
+            "",
+            randomString(r, 3000),
+        };
+        for (final String newContent : newContents) {
+            final StubFilePath file = new StubFilePath(null, "datei", newContent);
+            assertEquals(
+                    callSender(hashesFor(oldContent, 100), file),
+                    callSenderPipelined(hashesFor(oldContent, 100), file));
+        }
+    }
+
+    @Test
+    public void testPipelinedWithoutHashes() throws Exception {
+        final SenderCommandBuilder input = SenderCommandBuilder.start()
+                .startFile(0, 4, 100)
+                .endFile()
+                .enumeratorDone()
+                .everythingOk();
+
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData("kurz")
+                .endFile(TestHelper.md4("kurz"))
+                .enumeratorDone()
+                .toHexString();
+
+        final String actual = callSenderPipelined(input, new StubFilePath(null, "datei", "kurz"));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testUnchangedTailIsCopied() throws Exception {
+        final String oldContent = randomString(new Random(5), 105);
+        final String newContent = oldContent.substring(0, 50) + "neu" + oldContent.substring(50);
+
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyBlock(0, 50)
+                .rawData("neu")
+                .copyBlock(50, 55)
+                .endFile(TestHelper.md4(newContent))
+                .enumeratorDone()
+                .toHexString();
+
+        final String actual = callSender(hashesFor(oldContent, 10),
+                new StubFilePath(null, "datei", newContent));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testShortFileMatchingOnlyTheTail() throws Exception {
+        final String newContent = "neu" + "kurz";
+
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData("neu")
+                .copyBlock(0, 4)
+                .endFile(TestHelper.md4(newContent))
+                .enumeratorDone()
+                .toHexString();
+
+        final String actual = callSender(hashesFor("kurz", 10), new StubFilePath(null, "datei", newContent));
+        assertEquals(expected, actual);
+        assertEquals(actual, callSenderPipelined(hashesFor("kurz", 10), new StubFilePath(null, "datei", newContent)));
+    }
+
+    @Test
+    public void testChangedTailIsSentAsRawData() throws Exception {
+        final String oldContent = TestHelper.multiplyString("x", 20) + "abc";
+        final String newContent = TestHelper.multiplyString("x", 20) + "abd";
+
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyBlock(0, 20)
+                .rawData("abd")
+                .endFile(TestHelper.md4(newContent))
+                .enumeratorDone()
+                .toHexString();
+
+        final String actual = callSender(hashesFor(oldContent, 10), new StubFilePath(null, "datei", newContent));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testRoundTripWithTail() throws Exception {
+        final Random r = new Random(321);
+        final String oldContent = randomString(r, 300123);
+        final String newContent = oldContent.substring(0, 1000) + randomString(r, 5) + oldContent.substring(1000);
+
+        assertEquals(newContent, roundTrip(oldContent, newContent, 700));
+    }
+
+    @Test
+    public void testRoundTripWithBlocksLargerThanShortLimit() throws Exception {
+        final Random r = new Random(8);
+        final String oldContent = randomString(r, 250000);
+        final String newContent = oldContent.substring(100000) + "x" + oldContent.substring(0, 100000);
+
+        assertEquals(newContent, roundTrip(oldContent, newContent, 50000));
+    }
+
+    private static SenderCommandBuilder addHashes(SenderCommandBuilder input, String content, int blockSize)
+        throws Exception {
+        int i = 0;
+        for (; i + blockSize <= content.length(); i += blockSize) {
+            final String block = content.substring(i, i + blockSize);
+            input.hash(TestHelper.rollingChecksum(block), TestHelper.shortMD4(block, 4));
+        }
+        if (i < content.length()) {
+            final String tail = content.substring(i);
+            input.tailHash(tail.length(), TestHelper.rollingChecksum(tail), TestHelper.shortMD4(tail, 4));
+        }
+        return input;
+    }
+
+    @Test
+    public void testAllSuperBlocksFoundNeedsNoFineSignatures() throws Exception {
+        final String oldContent = randomString(new Random(12), 160);
+        final String newContent = oldContent.substring(0, 80) + "neu" + oldContent.substring(80);
+
+        final SenderCommandBuilder input = SenderCommandBuilder.start().startSuperBlockFile(0, 4, 10, 40);
+        addHashes(input, oldContent, 40).endFile().enumeratorDone().everythingOk();
+
+        final String expected = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .copyBlock(0, 80)
+                .rawData("neu")
+                .copyBlock(80, 80)
+                .endFile(TestHelper.md4(newContent))
+                .enumeratorDone()
+                .toHexString();
+
+        assertEquals(expected, callSender(input, new StubFilePath(null, "datei", newContent)));
+    }
+
+    @Test
+    public void testFineSignaturesAreRequestedForChangedSuperBlocks() throws Exception {
+        final String oldContent = randomString(new Random(13), 165);
+        final String newContent = oldContent.substring(0, 95) + "X" + oldContent.substring(96);
+
+        //erste Phase nur mit Superblöcken, die zweite kommt erst nach dem Ende der Aufzählung
+        final SenderCommandBuilder input = SenderCommandBuilder.start().startSuperBlockFile(0, 4, 10, 40);
+        addHashes(input, oldContent, 40).endFile().enumeratorDone();
+        input.startFile(0, 4, 10).skipBlocks(8);
+        addHashes(input, oldContent.substring(80, 120), 10).endFile().everythingOk();
+
+        final String expected = ReceiverCommandBuilder.start()
+                .fineSignatureRequest(0, 10, 40, true, true, false, true, true)
+                .enumeratorDone()
+                .startFile(0)
+                .copyBlock(0, 90)
+                .rawData(newContent.substring(90, 100))
+                .copyBlock(100, 65)
+                .endFile(TestHelper.md4(newContent))
+                .toHexString();
+
+        assertEquals(expected, callSender(input, new StubFilePath(null, "datei", newContent)));
+    }
+
+    @Test
+    public void testRegionResendOnlySendsSegmentsWithOtherDigests() throws Exception {
+        final String content = "0123456789abcdefghijABCDEFGHIJklm";
+        final byte[] failedDigests = new byte[4 * MD4.DIGEST_LENGTH];
+        System.arraycopy(TestHelper.md4("0123456789"), 0, failedDigests, 0, MD4.DIGEST_LENGTH);
+        System.arraycopy(TestHelper.md4("abcdefghiX"), 0, failedDigests, 16, MD4.DIGEST_LENGTH);
+        System.arraycopy(TestHelper.md4("ABCDEFGHIJ"), 0, failedDigests, 32, MD4.DIGEST_LENGTH);
+        System.arraycopy(TestHelper.md4("klX"), 0, failedDigests, 48, MD4.DIGEST_LENGTH);
+
+        final SenderCommandBuilder input = SenderCommandBuilder.start()
+                .enumeratorDone()
+                .regionResend(0, 10, failedDigests)
+                .everythingOk();
+
+        final String expected = ReceiverCommandBuilder.start()
+                .enumeratorDone()
+                .startRegionResend(0)
+                .copyRange(0, 10)
+                .rawData("abcdefghij")
+                .copyRange(20, 10)
+                .rawData("klm")
+                .endFile(TestHelper.md4(content))
+                .toHexString();
+
+        assertEquals(expected, callSender(input, new StubFilePath(null, "datei", content)));
+    }
+
+    @Test
+    public void testRegionResendWithShorterFailedFile() throws Exception {
+        final String content = "0123456789abcdefghij";
+        final byte[] failedDigests = TestHelper.md4("0123456789");
+
+        final SenderCommandBuilder input = SenderCommandBuilder.start()
+                .enumeratorDone()
+                .regionResend(0, 10, failedDigests)
+                .everythingOk();
+
+        final String expected = ReceiverCommandBuilder.start()
+                .enumeratorDone()
+                .startRegionResend(0)
+                .copyRange(0, 10)
+                .rawData("abcdefghij")
+                .endFile(TestHelper.md4(content))
+                .toHexString();
+
+        assertEquals(expected, callSender(input, new StubFilePath(null, "datei", content)));
+    }
+
+    @Test
+    public void testFineSignaturesForChangedTailSuperBlock() throws Exception {
+        final String oldContent = randomString(new Random(14), 165);
+        final String newContent = oldContent.substring(0, 160) + "fünf!";
+
+        final SenderCommandBuilder input = SenderCommandBuilder.start().startSuperBlockFile(0, 4, 10, 40);
+        addHashes(input, oldContent, 40).endFile().enumeratorDone();
+        input.startFile(0, 4, 10).skipBlocks(16);
+        addHashes(input, oldContent.substring(160), 10).endFile().everythingOk();
+
+        final String expected = ReceiverCommandBuilder.start()
+                .fineSignatureRequest(0, 10, 40, true, true, true, true, false)
+                .enumeratorDone()
+                .startFile(0)
+                .copyBlock(0, 160)
+                .rawData("fünf!")
+                .endFile(TestHelper.md4(newContent))
+                .toHexString();
+
+        assertEquals(expected, callSender(input, new StubFilePath(null, "datei", newContent)));
+    }
+
 }
@@ -0,0 +1,206 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+public class SignatureCacheTest {
+
+    private static String hashCommands(FileSignatures signatures, int strongHashSize) throws Exception {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        signatures.writeTo(new SenderCommandWriter(new DataOutputStream(buffer)), strongHashSize);
+        return TestHelper.toHexString(buffer.toByteArray());
+    }
+
+    private static FileSignatures compute(String content, int blockSize) throws Exception {
+        final StubFilePath file = new StubFilePath(null, "datei", content);
+        return FileSignatures.compute(file.openRandomAccessInput(), content.length(), blockSize);
+    }
+
+    @Test
+    public void testComputedSignaturesMatchSingleHashes() throws Exception {
+        final String block1 = TestHelper.multiplyString("a", 10);
+        final String block2 = TestHelper.multiplyString("b", 10);
+        final String tail = "cde";
+
+        final String expected = SenderCommandBuilder.start()
+                .hash(TestHelper.rollingChecksum(block1), TestHelper.shortMD4(block1, 5))
+                .hash(TestHelper.rollingChecksum(block2), TestHelper.shortMD4(block2, 5))
+                .tailHash(3, TestHelper.rollingChecksum(tail), TestHelper.shortMD4(tail, 5))
+                .toHexString();
+
+        assertEquals(expected, hashCommands(compute(block1 + block2 + tail, 10), 5));
+    }
+
+    @Test
+    public void testComputeAcrossSeveralReadChunks() throws Exception {
+        final String content = TestHelper.multiplyString("0123456789abcdefghijklmnopq", 100000) + "rest";
+        final int blockSize = 1000;
+
+        final SenderCommandBuilder expected = SenderCommandBuilder.start();
+        int i = 0;
+        for (; i + blockSize <= content.length(); i += blockSize) {
+            final String block = content.substring(i, i + blockSize);
+            expected.hash(TestHelper.rollingChecksum(block), TestHelper.shortMD4(block, 4));
+        }
+        final String tail = content.substring(i);
+        expected.tailHash(tail.length(), TestHelper.rollingChecksum(tail), TestHelper.shortMD4(tail, 4));
+
+        assertEquals(expected.toHexString(), hashCommands(compute(content, blockSize), 4));
+        //mit falscher erwarteter Größe, die Datei muss trotzdem bis zum Ende gelesen werden
+        final StubFilePath file = new StubFilePath(null, "datei", content);
+        assertEquals(expected.toHexString(),
+                hashCommands(FileSignatures.compute(file.openRandomAccessInput(), 10, blockSize), 4));
+    }
+
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        final StubFilePath cacheDir = new StubFilePath(null, "cache");
+        final SignatureCache cache = new SignatureCache(cacheDir, 10, 100);
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath file = new StubFilePath(dir, "datei", "0123456789abcdefghijklmnopqrstuvwxyz");
+
+        assertNull(cache.load(file, 10));
+        final FileSignatures signatures = compute(file.getContent(), 10);
+        cache.store(file, file.getSize(), file.getLastChange(), signatures);
+
+        final FileSignatures loaded = cache.load(file, 10);
+        assertNotNull(loaded);
+        assertEquals(hashCommands(signatures, 4), hashCommands(loaded, 4));
+        assertEquals(hashCommands(signatures, 7), hashCommands(loaded, 7));
+
+        assertNull(cache.load(file, 11));
+        assertNull(cache.load(new StubFilePath(dir, "andereDatei", file.getContent()), 10));
+        file.setLastChange(43);
+        assertNull(cache.load(file, 10));
+    }
+
+    @Test
+    public void testGeneratorUsesCachedSignatures() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .file("datei", 123, 456)
+                .stepUp();
+
+        final String content = TestHelper.multiplyString("a", 3000);
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei", content)
+                .endDir()
+                .build();
+        final StubFilePath file = remoteParentDir.getChild("xyz").getChild("datei");
+
+        //im Cache liegen absichtlich Signaturen eines anderen Inhalts, daran sieht man, dass die Datei
+        //  nicht gelesen wurde
+        final SignatureCache cache = new SignatureCache(new StubFilePath(null, "cache"),
+                Generator.DEFAULT_MIN_BLOCK_SIZE, Generator.DEFAULT_MAX_BLOCK_SIZE);
+        final String otherContent = TestHelper.multiplyString("b", 3000);
+        cache.store(file, file.getSize(), file.getLastChange(), compute(otherContent, 2048));
+
+        final String expected = SenderCommandBuilder.start()
+                .startFile(0, 4, 2048)
+                .hash(TestHelper.rollingChecksum(otherContent.substring(0, 2048)),
+                        TestHelper.shortMD4(otherContent.substring(0, 2048), 4))
+                .tailHash(952, TestHelper.rollingChecksum(otherContent.substring(2048)),
+                        TestHelper.shortMD4(otherContent.substring(2048), 4))
+                .endFile()
+                .enumeratorDone()
+                .everythingOk()
+                .toHexString();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(-1);
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()), remoteParentDir,
+                toResend, buffer, new FastConcurrentList<TargetFileInfo>());
+        generator.setSignatureCache(cache);
+        generator.run();
+        assertEquals(expected, TestHelper.toHexString(buffer.toByteArray()));
+    }
+
+    @Test
+    public void testGeneratorFillsCache() throws Exception {
+        final GeneratorCommandBuilder input = GeneratorCommandBuilder.start()
+                .stepDown("xyz")
+                .file("datei", 123, 456)
+                .stepUp();
+
+        final String content = TestHelper.multiplyString("a", 3000);
+        final StubFilePath remoteParentDir = StubFilePathBuilder.start("tmp")
+                .startDir("xyz")
+                .file("datei", content)
+                .endDir()
+                .build();
+        final StubFilePath file = remoteParentDir.getChild("xyz").getChild("datei");
+        final SignatureCache cache = new SignatureCache(new StubFilePath(null, "cache"),
+                Generator.DEFAULT_MIN_BLOCK_SIZE, Generator.DEFAULT_MAX_BLOCK_SIZE);
+
+        final BlockingQueue<Integer> toResend = new LinkedBlockingQueue<Integer>();
+        toResend.add(-1);
+        final Generator generator = new Generator(new ByteArrayInputStream(input.toByteArray()), remoteParentDir,
+                toResend, new ByteArrayOutputStream(), new FastConcurrentList<TargetFileInfo>());
+        generator.setSignatureCache(cache);
+        generator.run();
+
+        final FileSignatures cached = cache.load(file, 2048);
+        assertNotNull(cached);
+        assertEquals(hashCommands(compute(content, 2048), 4), hashCommands(cached, 4));
+    }
+
+    @Test
+    public void testReceiverInvalidatesEntryAfterRename() throws Exception {
+        final String newContent = TestHelper.multiplyString("neu", 1000);
+        final ReceiverCommandBuilder input = ReceiverCommandBuilder.start()
+                .startFile(0)
+                .rawData(newContent)
+                .endFile(TestHelper.md4(newContent))
+                .enumeratorDone();
+
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath f = new StubFilePath(dir, "datei", "alt");
+        final SignatureCache cache = new SignatureCache(new StubFilePath(null, "cache"),
+                Generator.DEFAULT_MIN_BLOCK_SIZE, Generator.DEFAULT_MAX_BLOCK_SIZE);
+        //ein alter Eintrag, der zufällig zu Größe und Änderungszeitpunkt der neuen Datei passt
+        final String otherContent = TestHelper.multiplyString("alt", 1000);
+        cache.store(f, otherContent.length(), 678, compute(otherContent, 2048));
+
+        final FastConcurrentList<TargetFileInfo> targetFiles = new FastConcurrentList<TargetFileInfo>();
+        targetFiles.add(new TargetFileInfo(f, 678));
+        final Receiver receiver = new Receiver(new ByteArrayInputStream(input.toByteArray()), targetFiles,
+                new LinkedBlockingQueue<Integer>());
+        receiver.setSignatureCache(cache);
+        receiver.run();
+
+        final StubFilePath written = dir.getChild("datei");
+        assertEquals(newContent, written.getContent());
+        assertEquals(678, written.getLastChange());
+        assertNull(cache.load(written, cache.blockSizeFor(newContent.length())));
+    }
+
+}
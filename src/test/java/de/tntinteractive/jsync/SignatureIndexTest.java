@@ -0,0 +1,162 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SignatureIndexTest {
+
+    private static byte[] strongHash(int size, int seed) {
+        final byte[] ret = new byte[size];
+        for (int i = 0; i < size; i++) {
+            ret[i] = (byte) (seed * 31 + i);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testEmpty() {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, 0);
+        assertEquals(true, index.isEmpty());
+        assertEquals(false, index.containsRollingHash(1234));
+        assertEquals(-1, index.find(1234, strongHash(4, 1)));
+    }
+
+    @Test
+    public void testFindByRollingAndStrongHash() {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, 2);
+        index.add(17, strongHash(4, 1), 0);
+        index.add(42, strongHash(4, 2), 1);
+
+        assertEquals(false, index.isEmpty());
+        assertEquals(2, index.size());
+        assertEquals(true, index.containsRollingHash(17));
+        assertEquals(true, index.containsRollingHash(42));
+        assertEquals(false, index.containsRollingHash(18));
+        assertEquals(0, index.find(17, strongHash(4, 1)));
+        assertEquals(1, index.find(42, strongHash(4, 2)));
+        assertEquals(-1, index.find(17, strongHash(4, 2)));
+    }
+
+    @Test
+    public void testSameRollingHashForDifferentBlocks() {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(5, 3);
+        index.add(99, strongHash(5, 1), 0);
+        index.add(99, strongHash(5, 2), 1);
+        index.add(99, strongHash(5, 3), 2);
+
+        assertEquals(0, index.find(99, strongHash(5, 1)));
+        assertEquals(1, index.find(99, strongHash(5, 2)));
+        assertEquals(2, index.find(99, strongHash(5, 3)));
+        assertEquals(-1, index.find(99, strongHash(5, 4)));
+    }
+
+    @Test
+    public void testMinimumBlockNumber() {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, 3);
+        index.add(99, strongHash(4, 1), 0);
+        index.add(99, strongHash(4, 1), 3);
+        index.add(99, strongHash(4, 1), 5);
+
+        assertEquals(3, index.find(99, strongHash(4, 1), 3, 1));
+        assertEquals(5, index.find(99, strongHash(4, 1), 0, 4));
+        assertEquals(-1, index.find(99, strongHash(4, 1), 0, 6));
+    }
+
+    @Test
+    public void testManyEqualBlocksShareOneRollingHash() {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, 1);
+        for (int i = 0; i < 5000; i++) {
+            index.add(0, strongHash(4, 0), 2 * i);
+            index.add(i * 65537 + 1, strongHash(4, i + 1), 2 * i + 1);
+        }
+        assertEquals(10000, index.size());
+        assertEquals(0, index.find(0, strongHash(4, 0)));
+        assertEquals(4242, index.find(0, strongHash(4, 0), 4242));
+        assertEquals(-1, index.find(0, strongHash(4, 1)));
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(true, index.containsRollingHash(i * 65537 + 1));
+            assertEquals(2 * i + 1, index.find(i * 65537 + 1, strongHash(4, i + 1)));
+        }
+    }
+
+    @Test
+    public void testPreferredBlockAmongEqualBlocks() {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, 100);
+        for (int i = 0; i < 100; i++) {
+            index.add(0, strongHash(4, i % 2), i);
+        }
+        assertEquals(42, index.find(0, strongHash(4, 0), 42));
+        assertEquals(0, index.find(0, strongHash(4, 0), 43));
+        assertEquals(44, index.find(0, strongHash(4, 0), 43, 43));
+        assertEquals(-1, index.find(0, strongHash(4, 2), 42));
+        assertEquals(0, index.find(0, strongHash(4, 0), 200));
+    }
+
+    @Test
+    public void testPreferredBlockWithUnorderedBlockNumbers() {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, 4);
+        index.add(7, strongHash(4, 1), 8);
+        index.add(7, strongHash(4, 1), 3);
+        index.add(7, strongHash(4, 1), 5);
+
+        assertEquals(8, index.find(7, strongHash(4, 1)));
+        assertEquals(5, index.find(7, strongHash(4, 1), 5));
+        assertEquals(3, index.find(7, strongHash(4, 1), 3));
+        assertEquals(8, index.find(7, strongHash(4, 1), 4));
+        assertEquals(8, index.find(7, strongHash(4, 1), 0, 4));
+        assertEquals(5, index.find(7, strongHash(4, 1), 5, 4));
+    }
+
+    @Test
+    public void testGrowsBeyondEstimateAndSupportsLongStrongHashes() {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(12, 1);
+        for (int i = 0; i < 10000; i++) {
+            index.add(i * 65537, strongHash(12, i), i);
+        }
+        assertEquals(10000, index.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, index.find(i * 65537, strongHash(12, i)));
+        }
+        assertEquals(-1, index.find(5 * 65537, strongHash(12, 6)));
+    }
+
+    @Test
+    public void testResetForgetsOldEntries() {
+        final SignatureIndex index = new SignatureIndex();
+        index.reset(4, 10);
+        index.add(17, strongHash(4, 1), 0);
+        index.reset(4, 10);
+        assertEquals(true, index.isEmpty());
+        assertEquals(false, index.containsRollingHash(17));
+        index.add(18, strongHash(4, 1), 0);
+        assertEquals(0, index.find(18, strongHash(4, 1)));
+    }
+
+}
@@ -23,18 +23,22 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class StubFilePath implements FilePath {
 
     private final StubFilePath parent;
     private String name;
     private final boolean isDir;
-    private final TreeMap<String, StubFilePath> children;
+    private final ConcurrentSkipListMap<String, StubFilePath> children;
     private final long size;
     private long lastChange;
     private byte[] content;
+    private volatile int syncCount;
 
     /**
      * Konstruktor für Verzeichnis.
@@ -42,7 +46,7 @@ public class StubFilePath implements FilePath {
     public StubFilePath(StubFilePath parent, String dirName) {
         this.parent = parent;
         this.name = dirName;
-        this.children = new TreeMap<String, StubFilePath>();
+        this.children = new ConcurrentSkipListMap<String, StubFilePath>();
         this.isDir = true;
         this.size = 0;
         this.lastChange = 0;
@@ -98,7 +102,7 @@ public class StubFilePath implements FilePath {
 
     @Override
     public long getSize() {
-        return this.size;
+        return this.content != null ? this.content.length : this.size;
     }
 
     @Override
@@ -174,17 +178,83 @@ public class StubFilePath implements FilePath {
 
     @Override
     public RandomAccessInput openRandomAccessInput() throws IOException {
-        return new RandomAccessInput() {
+        return new StubRandomAccess();
+    }
 
-            @Override
-            public void copyTo(OutputStream target, long offset, short length) throws IOException {
-                target.write(StubFilePath.this.content, (int) offset, length);
+    @Override
+    public RandomAccessOutput openRandomAccessOutput() throws IOException {
+        if (this.content == null) {
+            this.content = new byte[(int) this.size];
+        }
+        return new StubRandomAccess();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        this.syncCount++;
+    }
+
+    public int getSyncCount() {
+        return this.syncCount;
+    }
+
+    /**
+     * Greift direkt auf den aktuellen Inhalt der Datei zu, Änderungen sind also sofort sichtbar.
+     */
+    private final class StubRandomAccess implements RandomAccessOutput {
+
+        @Override
+        public ByteBuffer map(long offset, int length) throws IOException {
+            //direkter Puffer, damit wie bei echtem memory-mapping kein Array dahinter liegt
+            final ByteBuffer ret = ByteBuffer.allocateDirect(length);
+            ret.put(StubFilePath.this.content, (int) offset, length);
+            ret.flip();
+            return ret;
+        }
+
+        @Override
+        public int read(long offset, ByteBuffer target) throws IOException {
+            if (offset >= StubFilePath.this.content.length) {
+                return -1;
             }
+            final int count = (int) Math.min(target.remaining(), StubFilePath.this.content.length - offset);
+            target.put(StubFilePath.this.content, (int) offset, count);
+            return count;
+        }
 
-            @Override
-            public void close() throws IOException {
+        @Override
+        public long transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+            final int count = (int) Math.min(length, StubFilePath.this.content.length - offset);
+            return target.write(ByteBuffer.wrap(StubFilePath.this.content, (int) offset, count));
+        }
+
+        @Override
+        public void write(long offset, ByteBuffer data) throws IOException {
+            final int end = (int) offset + data.remaining();
+            if (end > StubFilePath.this.content.length) {
+                StubFilePath.this.content = Arrays.copyOf(StubFilePath.this.content, end);
             }
-        };
+            data.get(StubFilePath.this.content, (int) offset, data.remaining());
+        }
+
+        @Override
+        public void truncate(long length) throws IOException {
+            if (length < StubFilePath.this.content.length) {
+                StubFilePath.this.content = Arrays.copyOf(StubFilePath.this.content, (int) length);
+            }
+        }
+
+        @Override
+        public void preallocate(long length) throws IOException {
+            if (length > StubFilePath.this.content.length) {
+                StubFilePath.this.content = Arrays.copyOf(StubFilePath.this.content, (int) length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
     }
 
 }
@@ -0,0 +1,98 @@
+/*
+    Copyright (C) 2013-2017  Tobias Baum <tbaum at tntinteractive.de>
+
+    This file is a part of jsync.
+
+    jsync is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    jsync is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with jsync.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.tntinteractive.jsync;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.junit.Test;
+
+public class TempFileWriterTest {
+
+    private static ReadableByteChannel input(String data) {
+        return Channels.newChannel(new ByteArrayInputStream(TestHelper.toIso(data)));
+    }
+
+    @Test
+    public void testRawDataAndCopiesAcrossBufferBoundaries() throws Exception {
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath template = new StubFilePath(dir, "alt", "0123456789abcdefghij");
+        final StubFilePath tmp = dir.getChild("datei.jstmp");
+
+        final TempFileWriter writer = new TempFileWriter(tmp, ByteBuffer.allocateDirect(7));
+        final ReadableByteChannel in = input("neuer Anfang|Mitte");
+        writer.writeRawData(in, 13);
+        writer.copy(template.openRandomAccessInput(), 10, 10);
+        writer.writeRawData(in, 5);
+        writer.copy(template.openRandomAccessInput(), 0, 3);
+        final byte[] digest = writer.finish();
+
+        final String expected = "neuer Anfang|abcdefghijMitte012";
+        assertEquals(expected, tmp.getContent());
+        assertEquals(TestHelper.toHexString(TestHelper.md4(expected)), TestHelper.toHexString(digest));
+    }
+
+    @Test
+    public void testOldTempFileIsOverwritten() throws Exception {
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath tmp = new StubFilePath(dir, "datei.jstmp", "Rest von einem abgebrochenen Sync");
+
+        final TempFileWriter writer = new TempFileWriter(tmp, ByteBuffer.allocateDirect(1024));
+        writer.writeRawData(input("neu"), 3);
+        writer.finish();
+
+        assertEquals("neu", tmp.getContent());
+    }
+
+    @Test
+    public void testSparseFileWithTrailingZeros() throws Exception {
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath tmp = dir.getChild("datei.jstmp");
+        final String zeros = TestHelper.multiplyString("\0", 3 * ZeroRuns.CHUNK_SIZE);
+
+        final TempFileWriter writer = new TempFileWriter(tmp, ByteBuffer.allocateDirect(5000), true);
+        final String data = "x" + zeros;
+        writer.writeRawData(input(data), data.length());
+        writer.writeZeros(10);
+        final byte[] digest = writer.finish();
+
+        final String expected = data + TestHelper.multiplyString("\0", 10);
+        assertEquals(expected, tmp.getContent());
+        assertEquals(TestHelper.toHexString(TestHelper.md4(expected)), TestHelper.toHexString(digest));
+    }
+
+    @Test
+    public void testPreallocatedFileIsCutToWrittenSize() throws Exception {
+        final StubFilePath dir = new StubFilePath(null, "dir");
+        final StubFilePath tmp = dir.getChild("datei.jstmp");
+
+        final TempFileWriter writer = new TempFileWriter(tmp, ByteBuffer.allocateDirect(4));
+        writer.preallocate(100);
+        assertEquals(100, tmp.getSize());
+        writer.writeRawData(input("kürzer als gedacht"), 18);
+        writer.finish();
+
+        assertEquals("kürzer als gedacht", tmp.getContent());
+    }
+
+}
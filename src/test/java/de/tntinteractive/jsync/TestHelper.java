@@ -89,4 +89,14 @@ public class TestHelper {
         return MD4.determineFor(toIso(block1), i);
     }
 
+    public static FineSignatureRequest fineSignatureRequest(int blockSize, int superBlockSize, boolean... matched) {
+        final byte[] bits = new byte[FineSignatureRequest.bitsLength(matched.length)];
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                bits[i / 8] |= 1 << (i % 8);
+            }
+        }
+        return new FineSignatureRequest(blockSize, superBlockSize, matched.length, bits);
+    }
+
 }